@@ -0,0 +1,84 @@
+package _test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Benchmark results kept in a properties file, so a run of ServerBenchmark or LoadTest can be checked against the
+ * last accepted numbers. Each result is printed next to its baseline and flagged when it's worse by more than the
+ * tolerance. Saving writes the results back over the old ones and keeps every other entry in the file.
+ *
+ * <p>The numbers only mean something on the machine that recorded them, so re-save the baseline before comparing
+ * on a different one.
+ */
+public class Baseline {
+
+    public static final Path DEFAULT_FILE = Path.of("src/_test/benchmark-baseline.properties");
+
+    private final Path file;
+    private final double tolerance;
+    private final Map<String, String> entries = new TreeMap<>(); // sorted so the file diffs cleanly
+    private final List<String> header = new ArrayList<>();
+    private boolean regressed = false;
+
+
+    public Baseline(Path file, double tolerance) throws IOException {
+        this.file = file;
+        this.tolerance = tolerance;
+        if (!Files.exists(file)) return;
+
+        for (String line : Files.readAllLines(file)) {
+            if (line.startsWith("#")) {
+                header.add(line);
+                continue;
+            }
+            int equals = line.indexOf('=');
+            if (equals > 0) entries.put(line.substring(0, equals).trim(), line.substring(equals + 1).trim());
+        }
+    }
+
+    /**
+     * Prints the result against its baseline and records it for save. Returns true when it's a regression.
+     */
+    public boolean check(String name, double value, boolean higherIsBetter) {
+        String previous = entries.put(name, format(value));
+        if (previous == null) {
+            System.out.printf("  %-40s %12s %12s%n", name, format(value), "(new)");
+            return false;
+        }
+
+        double baseline = Double.parseDouble(previous);
+        double change = (baseline == 0)? 0 : (value - baseline) / baseline;
+        boolean worse = higherIsBetter? change < -tolerance : change > tolerance;
+        regressed |= worse;
+        System.out.printf("  %-40s %12s %12s %+8.1f%%%s%n", name, format(value), previous, change * 100, worse? "  REGRESSION" : "");
+        return worse;
+    }
+
+    public boolean regressed() {
+        return regressed;
+    }
+
+    public void save() throws IOException {
+        List<String> lines = new ArrayList<>(header);
+        if (lines.isEmpty()) {
+            lines.add("# Server benchmark baseline, written by ServerBenchmark and LoadTest with --save.");
+            lines.add("# Numbers are machine specific, re-save on the machine you compare on.");
+        }
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            lines.add(entry.getKey() + "=" + entry.getValue());
+        }
+        Files.write(file, lines);
+        System.out.println("saved baseline to " + file);
+    }
+
+    private static String format(double value) {
+        return String.format("%.1f", value);
+    }
+
+}
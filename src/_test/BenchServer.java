@@ -0,0 +1,52 @@
+package _test;
+
+import webserver.Server;
+import webserver.Server.Endpoint;
+
+
+/**
+ * The server ServerBenchmark and LoadTest measure. Its endpoints cover the usual shapes of request: a static path,
+ * path variables with query params and a header, and a body.
+ */
+@Endpoint("/bench")
+public class BenchServer extends Server<Void> {
+
+    public BenchServer(int port, Engine engine, int maxConnections) {
+        super(
+            port,
+            (json, type, serializer) -> json,
+            (json, serializer) -> json.toString(),
+            null,
+            new ServerConfig()
+                .engine(engine)
+                .timeoutMillis(30000)
+                .contentType("text/plain")
+                .maxConnections(maxConnections)
+                .rateLimitRequestsPerMinute(1_000_000_000)
+        );
+    }
+
+
+
+
+    @Get("/hello")
+    public String hello() {
+        return "hello";
+    }
+
+    @Get("/users/{id}/orders/{order}")
+    public String order(
+        @PathVariable("id") long id,
+        @PathVariable("order") int order,
+        @Param("verbose") boolean verbose,
+        @Header("Accept-Language") String language
+    ) {
+        return "order " + order + " of user " + id + (verbose? " in " + language : "");
+    }
+
+    @Post("/echo")
+    public String echo(@Body String body) {
+        return "received " + body.length();
+    }
+
+}
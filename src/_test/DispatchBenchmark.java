@@ -0,0 +1,140 @@
+package _test;
+
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import webserver.Server;
+import webserver.Server.Engine;
+import webserver.Server.Header;
+import webserver.Server.Param;
+import webserver.Server.PathVariable;
+
+/**
+ * Compares the two ways Server has dispatched to endpoint methods: reading the parameter annotations and calling
+ * Method.invoke on every request, against the EndpointInvoker the server builds once at startup. The invoker is
+ * the server's own, built through a private lookup on BenchServer's order endpoint, so this measures the code
+ * that ships. Runs JMH style warmup and measurement iterations and prints the average time per call.
+ */
+public class DispatchBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+    private static final int CALLS_PER_ITERATION = 1_000_000;
+
+    private static Object sink; // keeps the jit from dropping the calls
+
+
+    public static void main(String[] args) throws Throwable {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        BenchServer server = new BenchServer(port, Engine.NIO, 20);
+        Method method = BenchServer.class.getMethod("order", long.class, int.class, boolean.class, String.class);
+
+        String target = "/bench/users/1234/orders/56?verbose=true";
+        List<String> pathVariableNames = List.of("id", "order");
+        String[] pathVariables = { "1234", "56" };
+        Map<String, String> params = Map.of("verbose", "true");
+        Map<String, String> headers = Map.of("Accept-Language", "en-US");
+
+        // reflective path, what Server.getResponseFromClass used to do per request
+        Runnable reflective = () -> {
+            try {
+                Parameter[] methodParams = method.getParameters();
+                Object[] arguments = new Object[methodParams.length];
+                for (int i = 0; i < arguments.length; i++) {
+                    Parameter param = methodParams[i];
+                    PathVariable pathVariable = param.getAnnotation(PathVariable.class);
+                    if (pathVariable != null) {
+                        arguments[i] = parse(pathVariables[pathVariableNames.indexOf(pathVariable.value())], param.getType());
+                        continue;
+                    }
+                    Param paramAnnotation = param.getAnnotation(Param.class);
+                    if (paramAnnotation != null) {
+                        arguments[i] = parse(params.get(paramAnnotation.value()), param.getType());
+                        continue;
+                    }
+                    Header headerAnnotation = param.getAnnotation(Header.class);
+                    if (headerAnnotation != null) {
+                        arguments[i] = parse(headers.get(headerAnnotation.value()), param.getType());
+                    }
+                }
+                sink = method.invoke(server, arguments);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        };
+
+        // precompiled path, Server's EndpointInvoker for the same method. The call is built once, parsing the
+        // query string is the router's job and not part of dispatch
+        Class<?> invokerClass = Class.forName("webserver.Server$EndpointInvoker");
+        Class<?> metricsClass = Class.forName("webserver.Server$EndpointMetrics");
+        Class<?> callClass = Class.forName("webserver.Server$EndpointCall");
+        Class<?> paramsClass = Class.forName("webserver.Server$QueryParams");
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(Server.class, MethodHandles.lookup());
+
+        Object metrics = lookup.findConstructor(metricsClass, MethodType.methodType(void.class, String.class)).invoke("order");
+        Object invoker = lookup.findConstructor(invokerClass, MethodType.methodType(void.class, Server.class, Method.class, List.class, metricsClass))
+            .invoke(server, method, pathVariableNames, metrics);
+        Object queryParams = lookup.findConstructor(paramsClass, MethodType.methodType(void.class, String.class, int.class))
+            .invoke(target, target.indexOf('?'));
+        Object call = lookup.findConstructor(callClass, MethodType.methodType(void.class, paramsClass, Map.class, byte[].class, InputStream.class, String[].class))
+            .invoke(queryParams, headers, new byte[0], null, pathVariables);
+        MethodHandle invoke = lookup.findVirtual(invokerClass, "invoke", MethodType.methodType(Object.class, callClass))
+            .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+
+        Runnable precompiled = () -> {
+            try {
+                sink = (Object) invoke.invokeExact(invoker, call);
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        };
+
+        precompiled.run();
+        reflective.run();
+        if (!sink.equals(server.order(1234, 56, true, "en-US"))) throw new IllegalStateException("Dispatch returned " + sink);
+
+        System.out.printf("reflective   %8.1f ns/op%n", measure(reflective));
+        System.out.printf("precompiled  %8.1f ns/op%n", measure(precompiled));
+        server.stop(Duration.ofSeconds(1));
+    }
+
+    private static double measure(Runnable call) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            run(call);
+        }
+
+        double total = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            total += run(call);
+        }
+        return total / MEASUREMENT_ITERATIONS;
+    }
+
+    private static double run(Runnable call) {
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS_PER_ITERATION; i++) {
+            call.run();
+        }
+        return (System.nanoTime() - start) / (double) CALLS_PER_ITERATION;
+    }
+
+    private static Object parse(String value, Class<?> type) {
+        if (value == null) return null;
+        if (type == boolean.class || type == Boolean.class) return Boolean.parseBoolean(value);
+        if (type == long.class || type == Long.class) return Long.parseLong(value);
+        if (type == int.class || type == Integer.class) return Integer.parseInt(value);
+        return value;
+    }
+
+}
@@ -0,0 +1,71 @@
+package _test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import webserver.Server.Engine;
+
+/**
+ * Checks that header names are matched without regard to case on both engines. A request that spells Host,
+ * Connection and Accept-Language in lowercase has to be answered with a 200, has to see the header value in the
+ * endpoint, and has to have the connection closed after it like Connection: close asks.
+ *
+ *   java _test.HeaderCaseTest
+ */
+public class HeaderCaseTest {
+
+    private static final String REQUEST = "GET /bench/users/1/orders/2?verbose=true HTTP/1.1\r\n"
+        + "host: localhost\r\n"
+        + "accept-language: fr-CA\r\n"
+        + "connection: close\r\n"
+        + "\r\n";
+
+
+    public static void main(String[] args) throws Exception {
+        int failures = 0;
+        for (Engine engine : Engine.values()) {
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            BenchServer server = new BenchServer(port, engine, 8);
+            try {
+                String response = send(port);
+                if (!response.startsWith("HTTP/1.1 200") || !response.endsWith("order 2 of user 1 in fr-CA")) {
+                    failures++;
+                    System.out.println("FAIL " + engine + " answered " + response);
+                }
+            } finally {
+                server.stop(Duration.ofSeconds(1));
+            }
+        }
+
+        System.out.println((failures == 0)? "header case ok" : failures + " header case failures");
+        System.exit((failures == 0)? 0 : 1);
+    }
+
+    // reads until the server closes the connection, so a connection header that wasn't seen shows up as a timeout
+    private static String send(int port) throws IOException, InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(REQUEST.getBytes(StandardCharsets.ISO_8859_1));
+                InputStream in = socket.getInputStream();
+                try {
+                    return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+                } catch (SocketTimeoutException e) {
+                    return "nothing before the timeout, the connection was kept open";
+                }
+            } catch (IOException e) {
+                Thread.sleep(50); // not listening yet
+            }
+        }
+        throw new IllegalStateException("Server didn't start on port " + port);
+    }
+
+}
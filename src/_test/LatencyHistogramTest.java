@@ -0,0 +1,63 @@
+package _test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Random;
+
+/**
+ * Checks the buckets of Server's latency histogram, which is private so it's reached through a private lookup.
+ * For a sweep of values the bucket a value lands in has to report a highest value at or above it, and within one
+ * sub bucket of it, which is what keeps every percentile within about 3% of what was recorded.
+ *
+ *   java _test.LatencyHistogramTest
+ */
+public class LatencyHistogramTest {
+
+    private static final long LARGEST_TRACKED = (1L << 41) - 1; // top of the last bucket, about 36 minutes
+
+    private static MethodHandle bucketOf;
+    private static MethodHandle highestValueIn;
+    private static int failures = 0;
+
+
+    public static void main(String[] args) throws Throwable {
+        Class<?> histogramClass = Class.forName("webserver.Server$LatencyHistogram");
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(histogramClass, MethodHandles.lookup());
+        bucketOf = lookup.findStatic(histogramClass, "bucketOf", MethodType.methodType(int.class, long.class));
+        highestValueIn = lookup.findStatic(histogramClass, "highestValueIn", MethodType.methodType(long.class, int.class));
+
+        // every small value, then each power of two and its neighbours, then random values of every magnitude
+        for (long value = 0; value < 100_000; value++) {
+            check(value);
+        }
+        for (int bit = 0; bit <= 40; bit++) {
+            check((1L << bit) - 1);
+            check(1L << bit);
+            check((1L << bit) + 1);
+            check((1L << bit) + (1L << bit) / 2);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 1_000_000; i++) {
+            check(random.nextLong() >>> (23 + random.nextInt(41)));
+        }
+        check(1_500_000); // 1.5 ms
+        check(10_000_000); // 10 ms
+
+        System.out.println((failures == 0)? "histogram ok" : failures + " histogram failures");
+        System.exit((failures == 0)? 0 : 1);
+    }
+
+    private static void check(long value) throws Throwable {
+        if (value > LARGEST_TRACKED) return;
+        int bucket = (int) bucketOf.invokeExact(value);
+        long highest = (long) highestValueIn.invokeExact(bucket);
+        // a bucket's width is 1 below 64 and 1/32 of its power of two above that
+        long subBucket = Math.max(1, Long.highestOneBit(value) >>> 5);
+
+        if (highest < value || highest - value >= subBucket) {
+            if (failures++ < 20) System.out.println("FAIL " + value + " is in bucket " + bucket + " which reports " + highest);
+        }
+    }
+
+}
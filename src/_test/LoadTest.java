@@ -0,0 +1,260 @@
+package _test;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import webserver.Server.Engine;
+
+/**
+ * Load generator for a local Server. It starts a BenchServer and drives it over raw keep alive sockets, one thread
+ * per connection, in one of two modes:
+ *
+ *   closed  each connection sends its next request as soon as the last response is read, this finds the most
+ *           the server can do
+ *   open    requests are due on a fixed schedule at the given rate whatever the server is doing. Latency is
+ *           counted from when a request was due rather than when it went out, so a server that stalls can't
+ *           hide the requests queued up behind the stall
+ *
+ * Requests during the warmup are thrown away. Prints throughput and p50/p99/p999/max latency and checks them
+ * against the baseline file.
+ *
+ *   java _test.LoadTest [--engine nio|blocking] [--mode closed|open] [--request hello|variables|body]
+ *                       [--connections 32] [--rate 20000] [--warmup 3] [--seconds 10]
+ *                       [--baseline file] [--tolerance 0.15] [--save]
+ */
+public class LoadTest {
+
+    private static final String BODY = "{\"id\": 1234, \"name\": \"" + "x".repeat(480) + "\"}";
+
+
+    public static void main(String[] args) throws Exception {
+        Engine engine = Engine.NIO;
+        String mode = "closed";
+        String requestName = "hello";
+        int connections = 32;
+        int rate = 20000;
+        int warmupSeconds = 3;
+        int seconds = 10;
+        Path baselineFile = Baseline.DEFAULT_FILE;
+        double tolerance = 0.15;
+        boolean save = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--engine": engine = Engine.valueOf(args[++i].toUpperCase()); break;
+                case "--mode": mode = args[++i]; break;
+                case "--request": requestName = args[++i]; break;
+                case "--connections": connections = Integer.parseInt(args[++i]); break;
+                case "--rate": rate = Integer.parseInt(args[++i]); break;
+                case "--warmup": warmupSeconds = Integer.parseInt(args[++i]); break;
+                case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "--baseline": baselineFile = Path.of(args[++i]); break;
+                case "--tolerance": tolerance = Double.parseDouble(args[++i]); break;
+                case "--save": save = true; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (!mode.equals("closed") && !mode.equals("open")) throw new IllegalArgumentException("Unknown mode " + mode);
+        boolean open = mode.equals("open");
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        BenchServer server = new BenchServer(port, engine, connections + 8);
+        waitForServer(port);
+
+        byte[] request = request(requestName, port);
+        long start = System.nanoTime() + 100_000_000; // gives every connection time to open first
+        long measureFrom = start + warmupSeconds * 1_000_000_000L;
+        long end = measureFrom + seconds * 1_000_000_000L;
+        long interval = open? (long) (connections * 1e9 / rate) : 0; // per connection
+
+        List<Connection> workers = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            // open loop connections are staggered so the requests are spread evenly over each interval
+            long first = start + (open? interval * i / connections : 0);
+            Connection connection = new Connection(port, request, first, interval, measureFrom, end);
+            workers.add(connection);
+            connection.start();
+        }
+        for (Connection connection : workers) {
+            connection.join();
+        }
+        server.stop(Duration.ofSeconds(2));
+
+        // merge every connection's latencies
+        int count = 0;
+        long errors = 0;
+        for (Connection connection : workers) {
+            count += connection.count;
+            errors += connection.errors;
+        }
+        long[] latencies = new long[count];
+        int offset = 0;
+        for (Connection connection : workers) {
+            System.arraycopy(connection.latencies, 0, latencies, offset, connection.count);
+            offset += connection.count;
+        }
+        Arrays.sort(latencies);
+
+        String name = "load." + engine.name().toLowerCase() + "." + mode + "." + requestName;
+        System.out.printf("%s: %d connections, %ds after %ds warmup%s%n", name, connections, seconds, warmupSeconds, open? ", " + rate + " req/s offered" : "");
+        System.out.printf("  requests %d, errors %d, max %.3f ms%n", count, errors, (count == 0)? 0 : latencies[count - 1] / 1e6);
+        if (count == 0) {
+            System.out.println("  no responses");
+            System.exit(1);
+        }
+
+        Baseline baseline = new Baseline(baselineFile, tolerance);
+        baseline.check(name + ".throughput", count / (double) seconds, true);
+        baseline.check(name + ".p50_us", percentile(latencies, 0.50) / 1e3, false);
+        baseline.check(name + ".p99_us", percentile(latencies, 0.99) / 1e3, false);
+        baseline.check(name + ".p999_us", percentile(latencies, 0.999) / 1e3, false);
+        if (save) baseline.save();
+        System.exit((errors > 0 || baseline.regressed()) && !save? 1 : 0);
+    }
+
+    private static byte[] request(String name, int port) {
+        String host = "Host: localhost:" + port + "\r\n";
+        String request;
+        switch (name) {
+            case "hello":
+                request = "GET /bench/hello HTTP/1.1\r\n" + host + "\r\n";
+                break;
+            case "variables":
+                request = "GET /bench/users/1234/orders/56?verbose=true HTTP/1.1\r\n" + host + "Accept-Language: en-US\r\n\r\n";
+                break;
+            case "body":
+                request = "POST /bench/echo HTTP/1.1\r\n" + host + "Content-Type: application/json\r\nContent-Length: " + BODY.length() + "\r\n\r\n" + BODY;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown request " + name);
+        }
+        return request.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void waitForServer(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server didn't start on port " + port);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+
+    private static class Connection extends Thread {
+        private final int port;
+        private final byte[] request;
+        private final long first; // when the first request is due
+        private final long interval; // between requests in open mode, 0 sends back to back
+        private final long measureFrom;
+        private final long end;
+
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private long errors = 0;
+
+        public Connection(int port, byte[] request, long first, long interval, long measureFrom, long end) {
+            this.port = port;
+            this.request = request;
+            this.first = first;
+            this.interval = interval;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                InputStream in = new BufferedInputStream(socket.getInputStream(), 16384);
+
+                long due = first;
+                while (due < end) {
+                    long now = System.nanoTime();
+                    if (now < due) {
+                        LockSupport.parkNanos(due - now);
+                        continue;
+                    }
+                    if (interval == 0) due = now;
+
+                    out.write(request);
+                    out.flush();
+                    boolean ok = readResponse(in);
+                    long done = System.nanoTime();
+
+                    if (due >= measureFrom) {
+                        if (!ok) errors++;
+                        record(done - due);
+                    }
+                    due = (interval == 0)? done : due + interval;
+                }
+            } catch (IOException e) {
+                errors++;
+            }
+        }
+
+        private void record(long latency) {
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = latency;
+        }
+
+        // reads one response, true when it's a 2xx
+        private static boolean readResponse(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int status = -1;
+            int contentLength = -1;
+            while (true) {
+                int b = in.read();
+                if (b == -1) throw new IOException("Connection closed");
+                if (b != '\n') {
+                    if (b != '\r') line.append((char) b);
+                    continue;
+                }
+
+                if (line.length() == 0) break; // end of the headers
+                if (status == -1) {
+                    status = Integer.parseInt(line.substring(9, 12));
+                }
+                else if (line.length() > 15 && line.substring(0, 15).equalsIgnoreCase("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+                }
+                line.setLength(0);
+            }
+
+            if (contentLength == -1) throw new IOException("Response without a Content-Length");
+            for (long skipped = 0; skipped < contentLength; ) {
+                long n = in.skip(contentLength - skipped);
+                if (n <= 0) {
+                    if (in.read() == -1) throw new IOException("Connection closed");
+                    n = 1;
+                }
+                skipped += n;
+            }
+            return status >= 200 && status < 300;
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package _test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks Server's router, which is private so it's reached through a private lookup: path variables have to come
+ * out under the right names when a template mixes {name} segments with * segments, and decoded to the right text.
+ *
+ *   java _test.RouterTest
+ */
+public class RouterTest {
+
+    public static void main(String[] args) throws Throwable {
+        Class<?> routerClass = Class.forName("webserver.Server$Router");
+        Class<?> matchClass = Class.forName("webserver.Server$Router$Match");
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(routerClass, MethodHandles.lookup());
+        Object router = lookup.findConstructor(routerClass, MethodType.methodType(void.class)).invoke();
+        MethodHandle add = lookup.findVirtual(routerClass, "add", MethodType.methodType(void.class, String.class, String.class, Object.class));
+        MethodHandle find = lookup.findVirtual(routerClass, "find", MethodType.methodType(matchClass, String.class));
+        MethodHandle variableNames = lookup.findStatic(routerClass, "variableNames", MethodType.methodType(List.class, String.class));
+        MethodHandle variables = lookup.findGetter(matchClass, "variables", String[].class);
+
+        String[][] cases = {
+            // template, path, variable name, expected value
+            { "/a/*/{id}", "/a/skipped/42", "id", "42" },
+            { "/b/{first}/*/{second}", "/b/1/skipped/2", "second", "2" },
+            { "/b/{first}/*/{second}", "/b/1/skipped/2", "first", "1" },
+            { "/c/*/*/{id}/**", "/c/x/y/7/rest/of/it", "id", "7" },
+            // a raw character outside the BMP next to an escaped one, the decoding runs because of the %
+            { "/d/{name}", "/d/%F0%9F%98%80-\uD83D\uDE00", "name", "\uD83D\uDE00-\uD83D\uDE00" }
+        };
+        for (String template : new String[] { "/a/*/{id}", "/b/{first}/*/{second}", "/c/*/*/{id}/**", "/d/{name}" }) {
+            add.invoke(router, "GET", template, template);
+        }
+
+        int failures = 0;
+        for (String[] c : cases) {
+            Object match = find.invoke(router, c[1]);
+            List<?> names = (List<?>) variableNames.invoke(c[0]);
+            String[] values = (match == null)? null : (String[]) variables.invoke(match);
+            int index = names.indexOf(c[2]);
+            String value = (values == null || index == -1 || index >= values.length)? null : values[index];
+            if (!c[3].equals(value)) {
+                failures++;
+                System.out.println("FAIL " + c[0] + " " + c[1] + ": " + c[2] + " was " + value + ", names " + names + " values " + Arrays.toString(values));
+            }
+        }
+
+        System.out.println((failures == 0)? "router ok" : failures + " router failures");
+        System.exit((failures == 0)? 0 : 1);
+    }
+
+}
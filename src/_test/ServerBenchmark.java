@@ -0,0 +1,214 @@
+package _test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import webserver.Server;
+import webserver.Server.Engine;
+
+/**
+ * JMH style micro benchmarks for the steps a request goes through in Server, each measured on its own: parsing raw
+ * bytes into a request, finding the endpoint in the router, and dispatching a parsed request through the endpoint
+ * to a response. Those steps are private to Server so they're reached through a private lookup. Runs warmup and
+ * measurement iterations, prints the average time per call and checks it against the baseline file.
+ *
+ *   java _test.ServerBenchmark [--baseline file] [--tolerance 0.15] [--save]
+ */
+public class ServerBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+    private static final int CALLS_PER_ITERATION = 200_000;
+
+    private static Object sink; // keeps the jit from dropping the calls
+
+    private static final String GET_REQUEST = "GET /bench/users/1234/orders/56?verbose=true&fields=id%2Cname HTTP/1.1\r\n"
+        + "Host: localhost:8080\r\n"
+        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)\r\n"
+        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+        + "Accept-Language: en-US,en;q=0.5\r\n"
+        + "Accept-Encoding: gzip, deflate\r\n"
+        + "Connection: keep-alive\r\n"
+        + "Cookie: session=8f2a9c1e4b7d6a3f; theme=dark\r\n"
+        + "\r\n";
+
+    private static final String BODY = "{\"id\": 1234, \"name\": \"" + "x".repeat(960) + "\"}";
+
+    private static final String POST_REQUEST = "POST /bench/echo HTTP/1.1\r\n"
+        + "Host: localhost:8080\r\n"
+        + "Content-Type: application/json\r\n"
+        + "Content-Length: " + BODY.length() + "\r\n"
+        + "\r\n"
+        + BODY;
+
+    private static final String CHUNKED_REQUEST = "POST /bench/echo HTTP/1.1\r\n"
+        + "Host: localhost:8080\r\n"
+        + "Content-Type: application/json\r\n"
+        + "Transfer-Encoding: chunked\r\n"
+        + "\r\n"
+        + Integer.toHexString(512) + "\r\n" + BODY.substring(0, 512) + "\r\n"
+        + Integer.toHexString(BODY.length() - 512) + "\r\n" + BODY.substring(512) + "\r\n"
+        + "0\r\n\r\n";
+
+
+    public static void main(String[] args) throws Throwable {
+        Path baselineFile = Baseline.DEFAULT_FILE;
+        double tolerance = 0.15;
+        boolean save = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--baseline": baselineFile = Path.of(args[++i]); break;
+                case "--tolerance": tolerance = Double.parseDouble(args[++i]); break;
+                case "--save": save = true; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        Baseline baseline = new Baseline(baselineFile, tolerance);
+
+        System.out.println("parsing");
+        benchmarkParser(baseline);
+        System.out.println("routing");
+        benchmarkRouter(baseline);
+        System.out.println("dispatch");
+        benchmarkDispatch(baseline);
+
+        if (save) baseline.save();
+        if (sink == null) System.out.println();
+        System.exit(baseline.regressed() && !save? 1 : 0);
+    }
+
+
+    private static void benchmarkParser(Baseline baseline) throws Throwable {
+        Class<?> parserClass = Class.forName("webserver.Server$RequestParser");
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(parserClass, MethodHandles.lookup());
+        MethodHandle newParser = lookup.findConstructor(parserClass, MethodType.methodType(void.class, int.class))
+            .asType(MethodType.methodType(Object.class, int.class));
+        MethodHandle parse = lookup.findVirtual(parserClass, "parse", MethodType.methodType(Class.forName("webserver.Server$HttpRequest"), ByteBuffer.class))
+            .asType(MethodType.methodType(Object.class, Object.class, ByteBuffer.class));
+
+        Object parser = (Object) newParser.invokeExact(5_000_000);
+        String[][] requests = { { "parse.get_headers", GET_REQUEST }, { "parse.post_body", POST_REQUEST }, { "parse.post_chunked", CHUNKED_REQUEST } };
+        for (String[] request : requests) {
+            ByteBuffer buffer = ByteBuffer.wrap(request[1].getBytes(StandardCharsets.ISO_8859_1));
+            Runnable call = () -> {
+                buffer.clear();
+                try {
+                    sink = (Object) parse.invokeExact(parser, buffer);
+                } catch (Throwable e) {
+                    throw new RuntimeException(e);
+                }
+            };
+            call.run();
+            if (sink == null) throw new IllegalStateException(request[0] + " didn't parse a whole request");
+            baseline.check(request[0] + ".ns", measure(call), false);
+        }
+    }
+
+    private static void benchmarkRouter(Baseline baseline) throws Throwable {
+        Class<?> routerClass = Class.forName("webserver.Server$Router");
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(routerClass, MethodHandles.lookup());
+        Object router = lookup.findConstructor(routerClass, MethodType.methodType(void.class)).invoke();
+        MethodHandle add = lookup.findVirtual(routerClass, "add", MethodType.methodType(void.class, String.class, String.class, Object.class));
+        MethodHandle find = lookup.findVirtual(routerClass, "find", MethodType.methodType(Class.forName("webserver.Server$Router$Match"), String.class))
+            .asType(MethodType.methodType(Object.class, Object.class, String.class));
+
+        // a route table the size of a small rest api
+        String[] resources = { "users", "orders", "products", "carts", "invoices", "payments", "reviews", "sessions" };
+        for (String resource : resources) {
+            add.invoke(router, "GET", "/api/" + resource, resource);
+            add.invoke(router, "POST", "/api/" + resource, resource);
+            add.invoke(router, "GET", "/api/" + resource + "/{id}", resource);
+            add.invoke(router, "PUT", "/api/" + resource + "/{id}", resource);
+            add.invoke(router, "DELETE", "/api/" + resource + "/{id}", resource);
+            add.invoke(router, "GET", "/api/" + resource + "/{id}/history/{version}", resource);
+        }
+        add.invoke(router, "GET", "/health", "health");
+        add.invoke(router, "GET", "/assets/**", "assets");
+
+        String[][] paths = {
+            { "route.static", "/api/products" },
+            { "route.two_variables", "/api/invoices/8812/history/3" },
+            { "route.catch_all", "/assets/css/site/main.css" },
+            { "route.miss", "/api/products/12/unknown" }
+        };
+        for (String[] path : paths) {
+            Runnable call = () -> {
+                try {
+                    sink = (Object) find.invokeExact(router, path[1]);
+                } catch (Throwable e) {
+                    throw new RuntimeException(e);
+                }
+            };
+            baseline.check(path[0] + ".ns", measure(call), false);
+        }
+    }
+
+    private static void benchmarkDispatch(Baseline baseline) throws Throwable {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        BenchServer server = new BenchServer(port, Engine.NIO, 20);
+
+        Class<?> requestClass = Class.forName("webserver.Server$HttpRequest");
+        MethodHandle newRequest = MethodHandles.privateLookupIn(requestClass, MethodHandles.lookup())
+            .findConstructor(requestClass, MethodType.methodType(void.class, String.class, String.class, String.class, Map.class, byte[].class))
+            .asType(MethodType.methodType(Object.class, String.class, String.class, String.class, Map.class, byte[].class));
+        MethodHandle handleRequest = MethodHandles.privateLookupIn(Server.class, MethodHandles.lookup())
+            .findVirtual(Server.class, "handleRequest", MethodType.methodType(Class.forName("webserver.Server$HttpResponse"), requestClass))
+            .asType(MethodType.methodType(Object.class, Server.class, Object.class));
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Host", "localhost:" + port);
+        headers.put("Accept-Language", "en-US");
+        byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+        String[][] requests = {
+            { "dispatch.static", "GET", "/bench/hello" },
+            { "dispatch.variables_and_params", "GET", "/bench/users/1234/orders/56?verbose=true" },
+            { "dispatch.body", "POST", "/bench/echo" }
+        };
+        for (String[] request : requests) {
+            byte[] requestBody = "POST".equals(request[1])? body : new byte[0];
+            Runnable call = () -> {
+                try {
+                    Object parsed = (Object) newRequest.invokeExact(request[1], request[2], "HTTP/1.1", headers, requestBody);
+                    sink = (Object) handleRequest.invokeExact((Server) server, parsed);
+                } catch (Throwable e) {
+                    throw new RuntimeException(e);
+                }
+            };
+            baseline.check(request[0] + ".ns", measure(call), false);
+        }
+
+        server.stop(Duration.ofSeconds(1));
+    }
+
+    private static double measure(Runnable call) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            run(call);
+        }
+
+        double total = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            total += run(call);
+        }
+        return total / MEASUREMENT_ITERATIONS;
+    }
+
+    private static double run(Runnable call) {
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS_PER_ITERATION; i++) {
+            call.run();
+        }
+        return (System.nanoTime() - start) / (double) CALLS_PER_ITERATION;
+    }
+
+}
@@ -1,15 +1,32 @@
 package jsonserializer;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.lang.annotation.Documented;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
@@ -18,10 +35,14 @@ import java.time.format.DateTimeParseException;
 import java.time.temporal.Temporal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
 
 
 
@@ -32,132 +53,149 @@ public class Serializer {
 
     private Serializer() {}
 
+    private static volatile boolean generatedCodecs = false;
+
+
+    /**
+     * Turns on generated codecs. Each public class with a public no args constructor gets a class generated for it
+     * the first time it's read or written, which reads and sets its fields directly instead of through reflection.
+     * Other classes, and fields the generated class can't reach, keep using the reflective path.
+     */
+    public static void useGeneratedCodecs(boolean enabled) {
+        generatedCodecs = enabled;
+    }
+
 
     public static <T> String json(T object, boolean pretty) {
         if (object == null) return null;
         if (object instanceof String) return (String) object;
 
-        if (object instanceof List) {
-            List<?> list = (List<?>) object;
-            List<Map<String, Object>> newList = new ArrayList<>();
-            for (Object o : list) {
-                newList.add(mapify(o));
-            }
-            return convertListToJson(newList, pretty);
-        }
-
-        Map<String, Object> mapObject = mapify(object);
+        StringBuilder builder = new StringBuilder();
+        writeJson(object, builder, pretty);
+        return builder.toString();
+    }
 
-        if (pretty) {
-            return mapToPrettyJsonString(mapObject);
+    /**
+     * Writes the object as json straight to out, walking it once without building anything in between. Like json,
+     * a String is written as is.
+     */
+    public static void writeJson(Object object, Appendable out, boolean pretty) {
+        try {
+            if (object instanceof String) out.append((String) object);
+            else new JsonWriter(out, pretty).writeValue(object);
+        } catch (IOException e) {
+            throw new SerializerException("Failed to write json", e);
         }
-        else {
-            return mapToJsonString(mapObject);
+    }
+
+    /**
+     * Writes the object as UTF-8 json to out, encoding it as it's written. The stream is flushed but left open.
+     */
+    public static void writeJson(Object object, OutputStream out, boolean pretty) {
+        Utf8Output utf8 = new Utf8Output(out);
+        writeJson(object, utf8, pretty);
+        try {
+            utf8.flush();
+        } catch (IOException e) {
+            throw new SerializerException("Failed to write json", e);
         }
     }
 
+    public static void writeJson(Object object, OutputStream out) {
+        writeJson(object, out, false);
+    }
+
     public static <T> T fromJson(String json, Type type) {
-        // remove whitespace
-        json = removeWhitespaceFromJson(json);
-        Class<T> clazz = (Class<T>) typeToClassWildcard(type);
+        // a string is handed back as is, whatever the text holds
+        if (type == String.class) return (T) json;
 
-        // if map or object
-        if (json.charAt(0) == '{') {
-            Map<String, Object> map = jsonStringToMap(json);
-            
-            if (Map.class.isAssignableFrom(clazz)) {
-                return safeCast(map, clazz);
-            }
-            else {
-                T object = getDefault(clazz);
-                return convertMapToObj(object, map);
-            }
-        }
-        // if list
-        else if (json.charAt(0) == '[') {
-            // parse json into list of maps
-            List<Map<String, Object>> value = (List<Map<String, Object>>) getObjectFromString(json);
+        return fromJson(JsonTokenizer.of(json.toCharArray()), type);
+    }
 
-            // convert maps into objects
-            Type listType = ((ParameterizedType) type).getActualTypeArguments()[0];
-            Class<?> listTypeClass = typeToClassWildcard(listType);
-            List<Object> newList = new ArrayList<>();
-            for (Map<String, Object> elem : value) {
-                if (Map.class.isAssignableFrom(listTypeClass)) {
-                    newList.add(elem);
-                }
-                else {
-                    Object converted = convertMapToObj(
-                        getDefault(listTypeClass),
-                        elem
-                    );
-                    newList.add(converted);
-                }
-            }
+    public static <T> T fromJson(String json, ParamType<T> type) {
+        return fromJson(json, type.getType());
+    }
 
-            return safeCast(newList, clazz);
-        }
-        // if string
-        else if (clazz == String.class) {
-            return safeCast(json, clazz);
-        }
-        else {
-            throw new SerializerException("Invalid json string", null);
-        }
-        
+    public static <T> T fromJson(Reader json, Type type) {
+        return fromJson(JsonTokenizer.of(json), type);
     }
 
-    public static <T> T fromJson(String json, ParamType<T> type) {
+    public static <T> T fromJson(Reader json, ParamType<T> type) {
         return fromJson(json, type.getType());
     }
 
+    /**
+     * Reads UTF-8 json from the bytes as they are, without decoding them into a string first.
+     */
+    public static <T> T fromJson(byte[] json, Type type) {
+        if (type == String.class) return (T) new String(json, StandardCharsets.UTF_8);
 
+        return fromJson(JsonTokenizer.of(json), type);
+    }
 
-    private static String convertListToJson(List<Map<String, Object>> mapifiedList, boolean pretty) {
-        StringBuilder stringBuilder = new StringBuilder("[");
-        if (pretty) {
-            stringBuilder.append("\n");
-            for (Map<String, Object> map : mapifiedList) {
-                String mapString = mapToPrettyJsonString(map);
-                String[] lines = mapString.split("\n");
-                for (String line : lines) {
-                    stringBuilder.append("    ").append(line).append("\n");
-                }
-                stringBuilder.deleteCharAt(stringBuilder.length() - 1);
-                stringBuilder.append(",\n");
-            }
+    public static <T> T fromJson(byte[] json, ParamType<T> type) {
+        return fromJson(json, type.getType());
+    }
+
+    /**
+     * Reads UTF-8 json from the remaining bytes of the buffer. The buffer's position isn't moved.
+     */
+    public static <T> T fromJson(ByteBuffer json, Type type) {
+        if (json.hasArray()) {
+            int offset = json.arrayOffset() + json.position();
+            if (type == String.class) return (T) new String(json.array(), offset, json.remaining(), StandardCharsets.UTF_8);
+            return fromJson(JsonTokenizer.of(json.array(), offset, json.remaining()), type);
         }
-        else {
-            stringBuilder.append(" ");
-            for (Map<String, Object> map : mapifiedList) {
-                String mapString = mapToJsonString(map);
-                stringBuilder.append(mapString).append(", ");
+
+        byte[] bytes = new byte[json.remaining()];
+        json.duplicate().get(bytes);
+        return fromJson(bytes, type);
+    }
+
+    public static <T> T fromJson(ByteBuffer json, ParamType<T> type) {
+        return fromJson(json, type.getType());
+    }
+
+    /**
+     * Reads UTF-8 json from the stream as it comes in. The stream is read to the end of the json but not closed.
+     */
+    public static <T> T fromJson(InputStream json, Type type) {
+        if (type == String.class) {
+            try {
+                return (T) new String(json.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new SerializerException("Failed to read json", e);
             }
         }
-        
-        stringBuilder.deleteCharAt(stringBuilder.length() - 2);
-        stringBuilder.append("]");
 
-        return stringBuilder.toString();
+        return fromJson(JsonTokenizer.of(json), type);
     }
 
-    public static <T> T convertMapToObj(T object, Map<String, Object> map) {
+    public static <T> T fromJson(InputStream json, ParamType<T> type) {
+        return fromJson(json, type.getType());
+    }
+
+    private static <T> T fromJson(JsonTokenizer tokenizer, Type type) {
+        int token = tokenizer.next();
+        if (token == JsonTokenizer.END) throw new SerializerException("Invalid json string", null);
+
+        Object value = readerFor(type).read(tokenizer, token);
+        if (tokenizer.next() != JsonTokenizer.END) throw tokenizer.error("Unexpected data after the json value");
+        return (T) value;
+    }
+
+
 
-        Field[] fields = object.getClass().getFields();
+    public static <T> T convertMapToObj(T object, Map<String, Object> map) {
 
-        for (Field field : fields) {
+        for (FieldCodec field : CODECS.get(object.getClass()).fields) {
             
             try {
 
-                if (map.containsKey(field.getName())) {
-                    boolean originalAccessibility = field.canAccess(object);
-                    field.setAccessible(true);
-
-                    Object value = map.get(field.getName());
-                    Object convertedValue = convertObjectToType(value, field.getGenericType());
+                if (map.containsKey(field.name)) {
+                    Object value = map.get(field.name);
+                    Object convertedValue = convertObjectToType(value, field.genericType);
                     field.set(object, convertedValue);
-
-                    field.setAccessible(originalAccessibility);
                 }
                 
             } catch (Exception e) {
@@ -217,17 +255,22 @@ public class Serializer {
         }
         // numbers
         else if (isNumericClass(type)) {
-            boolean notBigDecimal = !(value instanceof BigDecimal);
-            if (notBigDecimal) {
-                value = new BigDecimal(value.toString());
+            if (value instanceof BigDecimal) {
+                return (T) convertBigDecimalToType((BigDecimal) value, type);
+            }
+            if (type.isInstance(value)) {
+                return (T) value;
+            }
+            if (isWholeNumber(value) && isWholeNumberClass(type)) {
+                // the low bits, like BigDecimal's intValue and friends
+                long whole = ((Number) value).longValue();
+                if (type == long.class || type == Long.class) return (T) (Long) whole;
+                if (type == int.class || type == Integer.class) return (T) (Integer) (int) whole;
+                if (type == short.class || type == Short.class) return (T) (Short) (short) whole;
+                return (T) (Byte) (byte) whole;
             }
 
-            Object numberValue = convertBigDecimalToType(
-                safeCast(value, BigDecimal.class), 
-                type
-            );
-
-            return (T) numberValue;
+            return (T) parseNumber(value.toString(), type);
         }
         // date types
         else if (Temporal.class.isAssignableFrom(type)) {
@@ -246,7 +289,7 @@ public class Serializer {
         }
         // enum
         else if (type.isEnum()) {
-            Object enumValue = Enum.valueOf((Class<Enum>) type, value.toString());
+            Object enumValue = enumValue(type, value.toString());
             return safeCast(enumValue, type);
         }
         // a user defined object
@@ -266,17 +309,19 @@ public class Serializer {
         else if (type instanceof ParameterizedType parameterizedType) {
             return (Class<?>) parameterizedType.getRawType();
         }
+        else if (type instanceof WildcardType wildcardType) {
+            return typeToClassWildcard(wildcardType.getUpperBounds()[0]);
+        }
+        else if (type instanceof TypeVariable<?> typeVariable) {
+            return typeToClassWildcard(typeVariable.getBounds()[0]);
+        }
         else {
             throw new SerializerException("Failed to convert type to class", null);
         }
     }
 
     private static <T> T getDefault(Class<T> type) {
-        try {
-            return type.getDeclaredConstructor().newInstance();
-        } catch (Exception e) {
-            throw new SerializerException("Missing no args constructor for type " + type.getName(), e);
-        }
+        return (T) CODECS.get(type).newInstance();
     }
 
 
@@ -298,348 +343,302 @@ public class Serializer {
 
         Map<String, Object> mappedResponse = new LinkedHashMap<>(); // linked to maintain order
         
-        Class<?> objectType = object.getClass();
-
-        Field[] fields = objectType.getFields();
-
-        for (Field field : fields) {
-            
-            try {
-                // check for ignore tag
-                if (field.isAnnotationPresent(JsonIgnore.class)) continue;
+        for (FieldCodec field : CODECS.get(object.getClass()).written) {
 
-                // get the original accessibility and set accessible during the method
-                boolean originalAccessibility = field.canAccess(object);
-                field.setAccessible(true);
+            Object fieldValue = field.get(object);
+            if (fieldValue != null) {
 
+                Object value = null;
 
-                if (field.get(object) != null) {
+                // check if the field is a list
+                if (List.class.isAssignableFrom(field.type)) {
+                    List<Object> list = new ArrayList<>();
 
-                    Object value = null;
-    
-                    // check if the field is a list
-                    if (List.class.isAssignableFrom(field.getType())) {
-                        List<Object> list = new ArrayList<>();
-
-                        Object fieldResponse = field.get(object);
-
-                        List<?> resList = safeCast(fieldResponse, List.class);
-                        for (Object o : resList) {
-                            Object val = (isBasicJavaType(o.getClass()) || o.getClass().isEnum())? o : mapify(o);
-                            list.add(val);
-                        }
-                        value = list;
-                    }
-                    // check if the field is a map
-                    else if (Map.class.isAssignableFrom(field.getType())) {
-                        Map<Object, Object> map = new LinkedHashMap<>();
-
-                        Map<?, ?> resMap = safeCast(field.get(object), Map.class);
-                        for (Entry<?, ?> entry : resMap.entrySet()) {
-                            Object key = entry.getKey();
-                            Object val = entry.getValue();
-                            val = (isBasicJavaType(val.getClass()) || val.getClass().isEnum())? val : mapify(val);
-                            map.put(key, val);
-                        }
-
-                        value = map;
-                    }
-                    // check if the field is a basic java type or enum
-                    else if (isBasicJavaType(field.getType()) || field.getType().isEnum()) {
-                        value = field.get(object);
+                    List<?> resList = safeCast(fieldValue, List.class);
+                    for (Object o : resList) {
+                        Object val = (isBasicJavaType(o.getClass()) || o.getClass().isEnum())? o : mapify(o);
+                        list.add(val);
                     }
-                    // otherwise we need to fulfill it as well
-                    else {
-                        Object fieldResponse = field.get(object);
-                        value = mapify(fieldResponse);
-                    }
-
-
-                    mappedResponse.put(field.getName(), value);
-    
+                    value = list;
                 }
-                field.setAccessible(originalAccessibility);
-                
-            } catch (IllegalArgumentException e) {
-                throw new SerializerException("Tried to map bad value to field '" + field.getName() + "' in static class '" + objectType.getName() + "'", e);
-            }  catch (IllegalAccessException e) {
-                throw new SerializerException("Couldn't access field '" + field.getName() + "' in static class '" + objectType.getName() + "'", e);
-            } 
-        }
-
-        return mappedResponse;
-    }
-
-    private static String mapToJsonString(Map<String, Object> map) {
-        StringBuilder stringBuilder = new StringBuilder("{ ");
-
-        for (Entry<String, Object> entry : map.entrySet()) {
-
-            stringBuilder.append("\"").append(entry.getKey()).append("\" : ");
-            if (entry.getValue() instanceof Map) {
-                Map<String, Object> value = safeCast(entry.getValue(), Map.class);
-                String mapAsString = mapToJsonString(value);
-                stringBuilder.append(mapAsString);
-            } 
-            else if (entry.getValue() instanceof List) {
-                List<?> list = (List<?>) entry.getValue();
-                stringBuilder.append("[ ");
-                for (Object o : list) {
-                    if (o instanceof Map) {
-                        Map<String, Object> value = safeCast(o, Map.class);
-                        String mapAsString = mapToJsonString(value);
-                        stringBuilder.append(mapAsString);
-                    } 
-                    else if (o instanceof List) {
-                        throw new SerializerException("Double nested lists aren't supported for jsonMap conversion. Map key: " + entry.getKey(), null);
-                    }
-                    else if (o instanceof String || o.getClass().isEnum()) {
-                        appendStringOrEnum(
-                            stringBuilder,
-                            o,
-                            false
-                        );
+                // check if the field is a map
+                else if (Map.class.isAssignableFrom(field.type)) {
+                    Map<Object, Object> map = new LinkedHashMap<>();
+
+                    Map<?, ?> resMap = safeCast(fieldValue, Map.class);
+                    for (Entry<?, ?> entry : resMap.entrySet()) {
+                        Object key = entry.getKey();
+                        Object val = entry.getValue();
+                        val = (isBasicJavaType(val.getClass()) || val.getClass().isEnum())? val : mapify(val);
+                        map.put(key, val);
                     }
-                    else {
-                        stringBuilder.append(entry.getValue());
-                    }
-                    stringBuilder.append(", ");
+
+                    value = map;
                 }
-                stringBuilder.deleteCharAt(stringBuilder.length() - 2);
-                stringBuilder.append("]");
-            }
-            else {
-                if (entry.getValue() instanceof String || entry.getValue().getClass().isEnum()) {
-                    appendStringOrEnum(
-                        stringBuilder,
-                        entry.getValue(),
-                        false
-                    );
+                // check if the field is a basic java type or enum
+                else if (isBasicJavaType(field.type) || field.type.isEnum()) {
+                    value = fieldValue;
                 }
+                // otherwise we need to fulfill it as well
                 else {
-                    stringBuilder.append(entry.getValue());
+                    value = mapify(fieldValue);
                 }
-            }
 
-            stringBuilder.append(", ");
-        }
 
-        stringBuilder.deleteCharAt(stringBuilder.length() - 2);
-        stringBuilder.append("}");
+                mappedResponse.put(field.name, value);
+            }
+        }
 
-        return stringBuilder.toString();
+        return mappedResponse;
     }
 
     /**
-     * Converts a map to a pretty json string
+     * Parses a json value into maps, lists, strings, BigDecimals and Booleans
      */
-    private static String mapToPrettyJsonString(Map<String, Object> map) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("{\n");
+    public static Object getObjectFromString(String valueString) {
+        return fromJson(JsonTokenizer.of(valueString.toCharArray()), Object.class);
+    }
 
-        for (Entry<String, Object> entry : map.entrySet()) {
+    // works out once how to read a value of the type, so reading it is only the json. Null is read as null
+    private static ValueReader readerFor(Type genericType) {
+        Class<?> type = typeToClassWildcard(genericType);
+        ValueReader reader;
 
-            if (entry.getValue() == null) {
-                builder.append("    \"").append(entry.getKey()).append("\": null,\n");
-            }
-            else if (entry.getValue() instanceof Map) {
-                builder.append("    \"").append(entry.getKey()).append("\": ");
-                String mapString = mapToPrettyJsonString((Map<String, Object>) entry.getValue());
-                String[] lines = mapString.split("\n");
+        // untyped
+        if (type == Object.class) {
+            return Serializer::readAny;
+        }
+        // list type
+        else if (List.class.isAssignableFrom(type)) {
+            ValueReader elementReader = readerFor(typeArgument(genericType, 0));
+            reader = (tokenizer, token) -> {
+                expect(tokenizer, token, JsonTokenizer.ARRAY_START, type);
+                List<Object> list = new ArrayList<>();
+                readElements(tokenizer, elementToken -> list.add(elementReader.read(tokenizer, elementToken)));
+                return list;
+            };
+        }
+        else if (Map.class.isAssignableFrom(type)) {
+            Class<?> keyType = typeToClassWildcard(typeArgument(genericType, 0));
+            ValueReader valueReader = readerFor(typeArgument(genericType, 1));
+            reader = (tokenizer, token) -> {
+                expect(tokenizer, token, JsonTokenizer.OBJECT_START, type);
+                Map<Object, Object> map = new LinkedHashMap<>(); // linked to maintain order
+                readMembers(tokenizer, (key, valueToken) -> map.put(
+                    convertStringToKey(key, keyType),
+                    valueReader.read(tokenizer, valueToken)
+                ));
+                return map;
+            };
+        }
+        // numbers
+        else if (isNumericClass(type)) {
+            reader = (tokenizer, token) -> {
+                if (token == JsonTokenizer.NUMBER) return tokenizer.number(type);
+                if (token == JsonTokenizer.STRING) return parseNumber(tokenizer.string(), type);
+                throw unexpected(tokenizer, token, type);
+            };
+        }
+        // date types
+        else if (Temporal.class.isAssignableFrom(type)) {
+            reader = (tokenizer, token) -> {
+                expect(tokenizer, token, JsonTokenizer.STRING, type);
+                return convertStringToDate(tokenizer.string(), type);
+            };
+        }
+        // boolean
+        else if (isBoolean(type)) {
+            reader = (tokenizer, token) -> {
+                if (token == JsonTokenizer.TRUE) return true;
+                if (token == JsonTokenizer.FALSE) return false;
+                throw unexpected(tokenizer, token, type);
+            };
+        }
+        // string
+        else if (type == String.class) {
+            reader = (tokenizer, token) -> {
+                expect(tokenizer, token, JsonTokenizer.STRING, type);
+                return tokenizer.string();
+            };
+        }
+        else if (type == char.class || type == Character.class) {
+            reader = (tokenizer, token) -> {
+                expect(tokenizer, token, JsonTokenizer.STRING, type);
+                if (tokenizer.string().length() != 1) throw tokenizer.error("Expected a single character");
+                return tokenizer.string().charAt(0);
+            };
+        }
+        // enum
+        else if (type.isEnum()) {
+            reader = (tokenizer, token) -> {
+                expect(tokenizer, token, JsonTokenizer.STRING, type);
+                return enumValue(type, tokenizer.string());
+            };
+        }
+        // a user defined object, its codec is looked up when it's read so types can refer to themselves
+        else {
+            reader = (tokenizer, token) -> readObject(tokenizer, token, CODECS.get(type));
+        }
 
-                builder.append(lines[0]).append("\n");
-                String[] otherLines = Arrays.copyOfRange(lines, 1, lines.length);
-                for (String line : otherLines) {
-                    builder.append("    ").append(line).append("\n");
-                }
-                builder.deleteCharAt(builder.length() - 1);
-                builder.append(",\n");
+        return (tokenizer, token) -> (token == JsonTokenizer.NULL)? null : reader.read(tokenizer, token);
+    }
 
-            } 
-            else if (entry.getValue() instanceof List) {
-                builder.append("    \"").append(entry.getKey()).append("\": ");
-                List<?> list = (List<?>) entry.getValue();
-                builder.append("[\n");
-                for (Object o : list) {
-                    if (o instanceof Map) {
-                        String mapString = mapToPrettyJsonString((Map<String, Object>) o);
-                        String[] lines = mapString.split("\n");
-
-                        builder.append("        ").append(lines[0]).append("\n");
-                        String[] otherLines = Arrays.copyOfRange(lines, 1, lines.length);
-                        for (String line : otherLines) {
-                            builder.append("        ").append(line).append("\n");
-                        }
-                        builder.deleteCharAt(builder.length() - 1);
-                        builder.append(",\n");
-                    } 
-                    else if (o instanceof List) {
-                        throw new SerializerException("Double nested lists aren't supported for jsonMap conversion. Map key: " + entry.getKey(), null);
-                    }
-                    else if (o instanceof String || o.getClass().isEnum()) {
-                        builder.append("    ").append("    ");
-                        appendStringOrEnum(
-                            builder,
-                            o,
-                            true
-                        );
-                    }
-                    else {
-                        builder.append(entry.getValue()).append(",\n");
-                    }
-                }
-                builder.deleteCharAt(builder.length() - 2);
-                builder.append("    ],\n");	
+    private static Object readObject(JsonTokenizer tokenizer, int token, ClassCodec codec) {
+        expect(tokenizer, token, JsonTokenizer.OBJECT_START, codec.type);
+        GeneratedCodec generated = generatedCodecs? codec.generated() : null;
+        Object object = (generated != null)? generated.newInstance() : codec.newInstance();
+        readMembers(tokenizer, (name, valueToken) -> {
+            FieldCodec field = codec.byName.get(name);
+            if (field == null || field.setter == null) {
+                skipValue(tokenizer, valueToken);
+                return;
             }
-            else {
-                builder.append("    \"").append(entry.getKey()).append("\": ");
-                if (entry.getValue() instanceof String || entry.getValue().getClass().isEnum()) {
-                    appendStringOrEnum(
-                        builder,
-                        entry.getValue(),
-                        true
-                    );
-                }
-                else {
-                    builder.append(entry.getValue()).append(",\n");
-                }
+
+            try {
+                Object value = field.reader.read(tokenizer, valueToken);
+                if (value == null && field.type.isPrimitive()) return; // null leaves the default
+                if (generated != null && field.direct) generated.set(object, field.index, value);
+                else field.set(object, value);
+            } catch (Exception e) {
+                throw new SerializerException("Error trying to create a(n) '" + codec.type.getName() + "' object", e);
             }
+        });
+        return object;
+    }
 
+    // reads a value into the plain java types, for Object fields and untyped maps and lists
+    private static Object readAny(JsonTokenizer tokenizer, int token) {
+        switch (token) {
+            case JsonTokenizer.OBJECT_START:
+                Map<String, Object> map = new LinkedHashMap<>(); // linked to maintain order
+                readMembers(tokenizer, (key, valueToken) -> map.put(key, readAny(tokenizer, valueToken)));
+                return map;
+            case JsonTokenizer.ARRAY_START:
+                List<Object> list = new ArrayList<>();
+                readElements(tokenizer, elementToken -> list.add(readAny(tokenizer, elementToken)));
+                return list;
+            case JsonTokenizer.STRING: return tokenizer.string();
+            case JsonTokenizer.NUMBER: return tokenizer.number();
+            case JsonTokenizer.TRUE: return true;
+            case JsonTokenizer.FALSE: return false;
+            case JsonTokenizer.NULL: return null;
+            default: throw tokenizer.error("Expected a value");
         }
-
-        if (!map.isEmpty()) builder.deleteCharAt(builder.length() - 2);
-        else builder.deleteCharAt(builder.length() - 1);
-        builder.append("}");
-
-        return builder.toString();
     }
 
-    private static void appendStringOrEnum(StringBuilder builder, Object value, boolean newLine) {
-        String valueString = escapeCharacters(
-            value.toString()
-        );
-        builder.append("\"").append(valueString).append("\"");
-        if (newLine) builder.append(",\n");
+    // reads the members of an object whose '{' was just read, passing each name and the first token of its value
+    private static void readMembers(JsonTokenizer tokenizer, ObjIntConsumer<String> member) {
+        int token = tokenizer.next();
+        if (token == JsonTokenizer.OBJECT_END) return;
+
+        while (true) {
+            if (token != JsonTokenizer.STRING) throw tokenizer.error("Expected a field name");
+            String name = tokenizer.string();
+            if (tokenizer.next() != JsonTokenizer.COLON) throw tokenizer.error("Expected ':' after field '" + name + "'");
+            member.accept(name, tokenizer.next());
+
+            token = tokenizer.next();
+            if (token == JsonTokenizer.OBJECT_END) return;
+            if (token != JsonTokenizer.COMMA) throw tokenizer.error("Expected ',' or '}'");
+            token = tokenizer.next();
+        }
     }
-    
-    private static Map<String, Object> jsonStringToMap(String json) {
 
-        // "{"ham":{"cheese":1,"list":[1,2,3]}}"
-        // "ham":{"cheese":1,"list":[1,2,3]}
+    // reads the elements of a list whose '[' was just read, passing the first token of each
+    private static void readElements(JsonTokenizer tokenizer, IntConsumer element) {
+        int token = tokenizer.next();
+        if (token == JsonTokenizer.ARRAY_END) return;
 
-        Map<String, Object> map = new LinkedHashMap<>(); // linked to maintain order
+        while (true) {
+            element.accept(token);
 
-        int i = 1;
-        while (i < json.length()-1) {
+            token = tokenizer.next();
+            if (token == JsonTokenizer.ARRAY_END) return;
+            if (token != JsonTokenizer.COMMA) throw tokenizer.error("Expected ',' or ']'");
+            token = tokenizer.next();
+        }
+    }
 
-            // get key
-            String key = "";
-            if (isNonEscapedQuote(json, i)) {
-                int j = jumpToEndOfQuote(json, i+1);
-                
-                key = json.substring(i+1, j);
-                i = j+1;
-            }
-
-            // get value
-            String valueString = "";
-            if (json.charAt(i) == ':') {
-                int j = i+1;
-                if (json.charAt(j) == '{') {
-                    int openBrackets = 1;
-                    while (openBrackets > 0) {
-                        j++;
-                        if (isNonEscapedQuote(json, j)) {
-                            j = jumpToEndOfQuote(json, j);
-                        }
-                        if (json.charAt(j) == '{') openBrackets++;
-                        if (json.charAt(j) == '}') openBrackets--;
-                    }
-                }
-                else if (json.charAt(j) == '[') {
-                    int openBrackets = 1;
-                    while (openBrackets > 0) {
-                        j++;
-                        if (isNonEscapedQuote(json, j)) {
-                            j = jumpToEndOfQuote(json, j);
-                        }
-                        if (json.charAt(j) == '[') openBrackets++;
-                        if (json.charAt(j) == ']') openBrackets--;
-                    }
-                }
-                else if (isNonEscapedQuote(json, j)) {
-                    j++;
-                    while (!isNonEscapedQuote(json, j))  {
-                        j++;
-                    }
-                }
-                else {
-                    while (json.charAt(j) != ',' && json.charAt(j) != '}') j++;
-                    j--;
-                }
-                valueString = json.substring(i+1, j+1);
-                i = j+1;
+    // moves past a value nothing is going to use
+    private static void skipValue(JsonTokenizer tokenizer, int token) {
+        int depth = 0;
+        while (true) {
+            switch (token) {
+                case JsonTokenizer.OBJECT_START: case JsonTokenizer.ARRAY_START:
+                    depth++;
+                    break;
+                case JsonTokenizer.OBJECT_END: case JsonTokenizer.ARRAY_END:
+                    depth--;
+                    break;
+                case JsonTokenizer.END:
+                    throw tokenizer.error("Unexpected end of json");
+                default:
+                    break;
             }
-            Object value = getObjectFromString(valueString);
-
-            i++;
-            map.put(key, value);
+            if (depth <= 0) return;
+            token = tokenizer.next();
         }
+    }
 
-
-        return map;
+    private static void expect(JsonTokenizer tokenizer, int token, int expected, Class<?> type) {
+        if (token != expected) throw unexpected(tokenizer, token, type);
     }
 
-    public static Object getObjectFromString(String valueString) {
-        if (valueString.equals("null")) return null;
+    private static SerializerException unexpected(JsonTokenizer tokenizer, int token, Class<?> type) {
+        return tokenizer.error("Can't read " + JsonTokenizer.describe(token) + " into type " + type.getName());
+    }
 
-        Object value;
-        if (valueString.charAt(0) == '{') {
-            value = jsonStringToMap(valueString);
+    private static Type typeArgument(Type genericType, int index) {
+        if (genericType instanceof ParameterizedType parameterizedType) {
+            return parameterizedType.getActualTypeArguments()[index];
         }
-        else if (valueString.charAt(0) == '[') {
-            // remove outer brackets
-            valueString = valueString.substring(1, valueString.length()-1);
-            
-            // if not empty process
-            List<Object> list = new ArrayList<>();
-            if (!valueString.isEmpty()) {
+        return Object.class;
+    }
 
-                // split by commas
-                List<String> values = new ArrayList<>();
-                int openBrackets = 0;
-                int j = 0;
-                for (int i = 0; i < valueString.length(); i++) {
-    
-                    if (isNonEscapedQuote(valueString, i)) i = jumpToEndOfQuote(valueString, i);
-                    if (valueString.charAt(i) == '[' || valueString.charAt(i) == '{') openBrackets++;
-                    if (valueString.charAt(i) == ']' || valueString.charAt(i) == '}') openBrackets--;
-    
-                    if (valueString.charAt(i) == ',' && openBrackets == 0) {
-                        values.add(valueString.substring(j, i));
-                        j = i+1;
-                    }
-                }
-                values.add(valueString.substring(j));
-    
-                // convert each value
-                for (String val : values) {
-                    list.add(getObjectFromString(val));
-                }
-            }
-            value = list;
+    private static Object convertStringToKey(String key, Class<?> keyType) {
+        if (keyType == String.class || keyType == Object.class) {
+            return key;
+        }
+        else if (isNumericClass(keyType)) {
+            return parseNumber(key, keyType);
+        }
+        else if (isBoolean(keyType)) {
+            return Boolean.parseBoolean(key);
         }
-        else if (isNonEscapedQuote(valueString, 0)) {
-            value = valueString.substring(1, valueString.length()-1);
+        else if (keyType.isEnum()) {
+            return enumValue(keyType, key);
         }
-        else if ("true".equals(valueString) || "false".equals(valueString)) {
-            value = Boolean.parseBoolean(valueString);
+        else if (Temporal.class.isAssignableFrom(keyType)) {
+            return convertStringToDate(key, keyType);
         }
         else {
-            value = new BigDecimal(valueString);
+            throw new SerializerException("Can't use type " + keyType.getName() + " as a map key", null);
+        }
+    }
+
+    // Enum.valueOf needs the enum's own class, which a Class<?> can only be cast to unchecked
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object enumValue(Class<?> enumType, String name) {
+        return Enum.valueOf((Class<Enum>) enumType, name);
+    }
+
+    private static Object parseNumber(String number, Class<?> numberType) {
+        char[] chars = number.toCharArray();
+        if (chars.length == 0 || !NumberParser.isValid(chars, 0, chars.length)) {
+            throw new SerializerException("Failed to parse number '" + number + "'", null);
         }
+        return NumberParser.parse(chars, 0, chars.length, numberType);
+    }
+
+    private static boolean isWholeNumber(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
 
-        return value;
+    private static boolean isWholeNumberClass(Class<?> type) {
+        return type == int.class || type == Integer.class
+            || type == long.class || type == Long.class
+            || type == short.class || type == Short.class
+            || type == byte.class || type == Byte.class;
     }
 
     public static Object convertBigDecimalToType(BigDecimal number, Class<?> numberType) {
@@ -799,7 +798,11 @@ public class Serializer {
     /**
      * Removes \n\t and whitespace anywhere in the json other than in strings.
      * Cleans up spare quotes in strings.
+     *
+     * @deprecated fromJson reads the json with a tokenizer now and doesn't need the whitespace taken out first.
+     * Kept for callers of the old helpers and no longer used by the serializer.
      */
+    @Deprecated
     public static String removeWhitespaceFromJson(String json) {
         StringBuilder builder = new StringBuilder();
         boolean inString = false;
@@ -829,12 +832,21 @@ public class Serializer {
         return builder.toString();
     }
 
+    /**
+     * @deprecated only used by the old string scanning parser, see removeWhitespaceFromJson
+     */
+    @Deprecated
     public static boolean isNonEscapedQuote(String json, int index) {
         return json.charAt(index) == '\"' && (index == 0 || json.charAt(index-1) != '\\');
     }
 
     private static List<Character> whiteSpace = List.of(' ', '\n', '\t');
     private static List<Character> quoteIndicators = List.of(',', '}', ']', ':');
+
+    /**
+     * @deprecated only used by the old string scanning parser, see removeWhitespaceFromJson
+     */
+    @Deprecated
     public static boolean isEscapedQuoteOrShouldBe(String json, int index) {
         if (json.charAt(index) == '\"') {
             if (index > 0 && json.charAt(index-1) == '\\') {
@@ -853,6 +865,10 @@ public class Serializer {
         return false;
     }
 
+    /**
+     * @deprecated only used by the old string scanning parser, see removeWhitespaceFromJson
+     */
+    @Deprecated
     public static int jumpToEndOfQuote(String json, int index) {
         index++;
         while (!isNonEscapedQuote(json, index)) {
@@ -861,31 +877,1552 @@ public class Serializer {
         return index;
     }
 
-
     /**
      * Escape quotes in strings
+     *
+     * @deprecated json and writeJson escape strings as they write them. This escapes the way they do, every quote,
+     * backslash and control character, where it used to leave backslashes alone and skip quotes that already had one.
      */
+    @Deprecated
     public static String escapeCharacters(String json) {
+        String quoted = JsonWriter.quote(json);
+        return quoted.substring(1, quoted.length() - 1);
+    }
+
+    @FunctionalInterface
+    private static interface ValueReader {
+        Object read(JsonTokenizer tokenizer, int token);
+    }
 
-        // escape quotes
-        json = json
-            .replace("\n", "\\n")
-            .replace("\t", "\\t")
-            .replace("\\\"", "\"");
+    private static final ClassValue<ClassCodec> CODECS = new ClassValue<>() {
+        @Override
+        protected ClassCodec computeValue(Class<?> type) {
+            return new ClassCodec(type);
+        }
+    };
 
-        // make sure quotes are escaped
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < json.length(); i++) {
-            char c = json.charAt(i);
-            if (c == '\"' && !(i > 0 && json.charAt(i-1) == '\\')) {
-                builder.append("\\\"");
+    /**
+     * Everything the serializer needs to know about a class, worked out the first time the class is seen so
+     * reading and writing its objects does no reflection. Holds the no args constructor and a codec for each
+     * public instance field.
+     */
+    private static final class ClassCodec {
+        private final Class<?> type;
+        private final FieldCodec[] fields; // in declaration order
+        private final FieldCodec[] written; // fields without JsonIgnore
+        private final Map<String, FieldCodec> byName = new HashMap<>();
+        private final MethodHandle constructor; // null without a no args constructor
+        private volatile GeneratedCodec generated;
+        private volatile boolean generateTried = false;
+
+        public ClassCodec(Class<?> type) {
+            this.type = type;
+
+            List<FieldCodec> fields = new ArrayList<>();
+            List<FieldCodec> written = new ArrayList<>();
+            for (Field field : type.getFields()) {
+                if (Modifier.isStatic(field.getModifiers())) continue;
+
+                FieldCodec codec = new FieldCodec(field, fields.size());
+                fields.add(codec);
+                if (!codec.ignored) written.add(codec);
+                byName.put(codec.name, codec);
             }
-            else {
-                builder.append(c);
+            this.fields = fields.toArray(new FieldCodec[0]);
+            this.written = written.toArray(new FieldCodec[0]);
+
+            MethodHandle constructor = null;
+            try {
+                Constructor<?> noArgs = type.getDeclaredConstructor();
+                makeAccessible(noArgs);
+                constructor = MethodHandles.lookup().unreflectConstructor(noArgs).asType(MethodType.methodType(Object.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                // only an error if something tries to create one
             }
+            this.constructor = constructor;
         }
 
-        return builder.toString();
+        public Object newInstance() {
+            if (constructor == null) throw new SerializerException("Missing no args constructor for type " + type.getName(), null);
+            try {
+                return (Object) constructor.invokeExact();
+            } catch (Throwable e) {
+                throw new SerializerException("Failed to create a(n) '" + type.getName() + "' object", e);
+            }
+        }
+
+        // generated the first time it's asked for, null when the class can't have one
+        public GeneratedCodec generated() {
+            if (!generateTried) {
+                synchronized (this) {
+                    if (!generateTried) {
+                        generated = CodecGenerator.generate(this);
+                        generateTried = true;
+                    }
+                }
+            }
+            return generated;
+        }
+    }
+
+    private static final class FieldCodec {
+        private final String name;
+        private final String jsonName; // the name already quoted and escaped
+        private final boolean ignored;
+        private final Class<?> type;
+        private final Type genericType;
+        private final ValueReader reader;
+        private final MethodHandle getter; // (Object)Object
+        private final MethodHandle setter; // (Object,Object)void, null when the field can't be set
+        private final int index; // position in the class codec's fields
+        private final boolean direct; // a generated codec can set it
+
+        public FieldCodec(Field field, int index) {
+            this.index = index;
+            this.direct = CodecGenerator.canSet(field);
+            this.name = field.getName();
+            this.jsonName = JsonWriter.quote(name);
+            this.ignored = field.isAnnotationPresent(JsonIgnore.class);
+            this.type = field.getType();
+            this.genericType = field.getGenericType();
+            this.reader = readerFor(genericType);
+
+            makeAccessible(field);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try {
+                this.getter = lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+            } catch (IllegalAccessException e) {
+                throw new SerializerException("Couldn't access field '" + name + "' in class '" + field.getDeclaringClass().getName() + "'", e);
+            }
+            MethodHandle setter = null;
+            try {
+                setter = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class));
+            } catch (IllegalAccessException e) {
+                // final fields that couldn't be opened up are only written
+            }
+            this.setter = setter;
+        }
+
+        public Object get(Object object) {
+            try {
+                return (Object) getter.invokeExact(object);
+            } catch (Throwable e) {
+                throw new SerializerException("Couldn't access field '" + name + "' in class '" + object.getClass().getName() + "'", e);
+            }
+        }
+
+        public void set(Object object, Object value) {
+            if (setter == null) throw new SerializerException("Can't set field '" + name + "' in class '" + object.getClass().getName() + "'", null);
+            try {
+                setter.invokeExact(object, value);
+            } catch (Throwable e) {
+                throw new SerializerException("Tried to map bad value to field '" + name + "' in class '" + object.getClass().getName() + "'", e);
+            }
+        }
+    }
+
+    /**
+     * A class generated for one type by CodecGenerator
+     */
+    private static interface GeneratedCodec {
+        Object newInstance();
+
+        // writes every field that isn't ignored or null, returns true when none were written
+        boolean write(Object object, JsonWriter writer) throws IOException;
+
+        // sets the field at the index in the class codec's fields, only called for direct fields
+        void set(Object object, int field, Object value);
+    }
+
+    /**
+     * Writes the bytecode for a GeneratedCodec and defines it as a hidden class next to the serializer. The write
+     * method is one straight run of field reads and JsonWriter.member calls, the set method one tableswitch with a
+     * putfield per field, so the jit sees plain field access where the reflective path has method handles.
+     */
+    private static final class CodecGenerator {
+        private static final String CODEC = "jsonserializer/Serializer$GeneratedCodec";
+        private static final String WRITER = "jsonserializer/Serializer$JsonWriter";
+
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final Map<String, Integer> poolIndexes = new HashMap<>();
+        private int poolSize = 1;
+
+        // null when the class has to stay on the reflective path
+        public static GeneratedCodec generate(ClassCodec codec) {
+            try {
+                Constructor<?> constructor = codec.type.getConstructor();
+                if (!visible(codec.type) || Modifier.isAbstract(codec.type.getModifiers()) || !Modifier.isPublic(constructor.getModifiers())) return null;
+
+                byte[] bytes = new CodecGenerator().classFile(codec);
+                Class<?> generated = MethodHandles.lookup().defineHiddenClass(bytes, true, MethodHandles.Lookup.ClassOption.NESTMATE).lookupClass();
+                return (GeneratedCodec) generated.getConstructor().newInstance();
+            } catch (ReflectiveOperationException | IOException | LinkageError e) {
+                return null;
+            }
+        }
+
+        public static boolean canSet(Field field) {
+            Class<?> type = field.getType();
+            return !Modifier.isFinal(field.getModifiers()) && visible(type);
+        }
+
+        // the generated class is defined in the serializer's loader, so it can only name classes that loader sees
+        private static boolean visible(Class<?> type) {
+            while (type.isArray()) type = type.getComponentType();
+            if (type.isPrimitive()) return true;
+            if (!Modifier.isPublic(type.getModifiers())) return false;
+            try {
+                return Class.forName(type.getName(), false, Serializer.class.getClassLoader()) == type;
+            } catch (ClassNotFoundException e) {
+                return false;
+            }
+        }
+
+        private byte[] classFile(ClassCodec codec) throws IOException {
+            String owner = internalName(codec.type);
+            int thisClass = classRef("jsonserializer/Serializer$GeneratedCodec$" + codec.type.getSimpleName());
+            int superClass = classRef("java/lang/Object");
+            int codecInterface = classRef(CODEC);
+
+            byte[][] methods = {
+                method("<init>", "()V", 1, 1, constructor(), null),
+                method("newInstance", "()Ljava/lang/Object;", 2, 1, newInstance(owner), null),
+                method("write", "(Ljava/lang/Object;L" + WRITER + ";)Z", 5, 5, write(codec, owner), null),
+                set(codec, owner)
+            };
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(61); // java 17
+            out.writeShort(poolSize);
+            poolBytes.writeTo(out);
+            out.writeShort(0x0011); // public final
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(codecInterface);
+            out.writeShort(0); // fields
+            out.writeShort(methods.length);
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        }
+
+        private byte[] constructor() throws IOException {
+            Code code = new Code();
+            code.op(0x2a); // aload_0
+            code.op(0xb7).u2(methodRef("java/lang/Object", "<init>", "()V")); // invokespecial
+            code.op(0xb1); // return
+            return code.bytes();
+        }
+
+        private byte[] newInstance(String owner) throws IOException {
+            Code code = new Code();
+            code.op(0xbb).u2(classRef(owner)); // new
+            code.op(0x59); // dup
+            code.op(0xb7).u2(methodRef(owner, "<init>", "()V")); // invokespecial
+            code.op(0xb0); // areturn
+            return code.bytes();
+        }
+
+        // locals: this, object, writer, first, the object cast to its class
+        private byte[] write(ClassCodec codec, String owner) throws IOException {
+            Code code = new Code();
+            code.op(0x2b); // aload_1
+            code.op(0xc0).u2(classRef(owner)); // checkcast
+            code.op(0x3a).u1(4); // astore 4
+            code.op(0x04); // iconst_1
+            code.op(0x3e); // istore_3
+
+            for (FieldCodec field : codec.written) {
+                String descriptor = field.type.descriptorString();
+                code.op(0x2c); // aload_2
+                code.op(0x1d); // iload_3
+                code.op(0x13).u2(string(field.jsonName)); // ldc_w
+                code.op(0x19).u1(4); // aload 4
+                code.op(0xb4).u2(fieldRef(owner, field.name, descriptor)); // getfield
+
+                String argument;
+                switch (descriptor) {
+                    case "I": case "S": case "B": argument = "I"; break;
+                    case "J": case "F": case "D": case "Z": argument = descriptor; break;
+                    case "C":
+                        code.op(0xb8).u2(methodRef("java/lang/Character", "valueOf", "(C)Ljava/lang/Character;")); // invokestatic
+                        argument = "Ljava/lang/Object;";
+                        break;
+                    default: argument = "Ljava/lang/Object;";
+                }
+                code.op(0xb6).u2(methodRef(WRITER, "member", "(ZLjava/lang/String;" + argument + ")Z")); // invokevirtual
+                code.op(0x3e); // istore_3
+            }
+
+            code.op(0x1d); // iload_3
+            code.op(0xac); // ireturn
+            return code.bytes();
+        }
+
+        // locals: this, object, field index, value. Every branch target has that same frame
+        private byte[] set(ClassCodec codec, String owner) throws IOException {
+            String descriptor = "(Ljava/lang/Object;ILjava/lang/Object;)V";
+            Code code = new Code();
+            if (codec.fields.length == 0) {
+                code.op(0xb1); // return
+                return method("set", descriptor, 1, 4, code.bytes(), null);
+            }
+
+            code.op(0x1c); // iload_2
+            int switchAt = code.size();
+            code.op(0xaa); // tableswitch
+            while (code.size() % 4 != 0) code.u1(0);
+            int table = code.size();
+            code.u4(0).u4(0).u4(codec.fields.length - 1); // default, low, high
+            for (int i = 0; i < codec.fields.length; i++) code.u4(0);
+
+            List<Integer> targets = new ArrayList<>();
+            for (FieldCodec field : codec.fields) {
+                if (!field.direct) continue;
+
+                targets.add(code.size());
+                code.patch(table + 12 + 4 * field.index, code.size() - switchAt);
+                String fieldDescriptor = field.type.descriptorString();
+                code.op(0x2b); // aload_1
+                code.op(0xc0).u2(classRef(owner)); // checkcast
+                code.op(0x2d); // aload_3
+                if (field.type.isPrimitive()) {
+                    String box = boxFor(fieldDescriptor);
+                    code.op(0xc0).u2(classRef(box)); // checkcast
+                    code.op(0xb6).u2(methodRef(box, field.type.getName() + "Value", "()" + fieldDescriptor)); // invokevirtual
+                }
+                else {
+                    code.op(0xc0).u2(classRef(field.type.isArray()? fieldDescriptor : internalName(field.type))); // checkcast
+                }
+                code.op(0xb5).u2(fieldRef(owner, field.name, fieldDescriptor)); // putfield
+                code.op(0xb1); // return
+            }
+
+            // fields without a case and the default fall through to here
+            int fallThrough = code.size();
+            targets.add(fallThrough);
+            code.patch(table, fallThrough - switchAt);
+            for (FieldCodec field : codec.fields) {
+                if (!field.direct) code.patch(table + 12 + 4 * field.index, fallThrough - switchAt);
+            }
+            code.op(0xb1); // return
+
+            // StackMapTable of same frames, one per branch target
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            DataOutputStream framesOut = new DataOutputStream(frames);
+            framesOut.writeShort(targets.size());
+            int previous = -1;
+            for (int target : targets) {
+                int delta = target - previous - 1;
+                if (delta < 64) {
+                    framesOut.writeByte(delta); // same_frame
+                }
+                else {
+                    framesOut.writeByte(251); // same_frame_extended
+                    framesOut.writeShort(delta);
+                }
+                previous = target;
+            }
+            return method("set", descriptor, 3, 4, code.bytes(), frames.toByteArray());
+        }
+
+        private byte[] method(String name, String descriptor, int maxStack, int maxLocals, byte[] code, byte[] stackMap) throws IOException {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int codeName = utf8("Code");
+            int stackMapName = (stackMap != null)? utf8("StackMapTable") : 0;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(0x0001); // public
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+
+            out.writeShort(codeName);
+            int stackMapLength = (stackMap != null)? 6 + stackMap.length : 0;
+            out.writeInt(12 + code.length + stackMapLength);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // exception table
+            if (stackMap != null) {
+                out.writeShort(1);
+                out.writeShort(stackMapName);
+                out.writeInt(stackMap.length);
+                out.write(stackMap);
+            }
+            else {
+                out.writeShort(0);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static String internalName(Class<?> type) {
+            return type.getName().replace('.', '/');
+        }
+
+        private static String boxFor(String descriptor) {
+            switch (descriptor) {
+                case "I": return "java/lang/Integer";
+                case "J": return "java/lang/Long";
+                case "D": return "java/lang/Double";
+                case "F": return "java/lang/Float";
+                case "S": return "java/lang/Short";
+                case "B": return "java/lang/Byte";
+                case "C": return "java/lang/Character";
+                default: return "java/lang/Boolean";
+            }
+        }
+
+        // constant pool, each entry is written once and referred to by index
+
+        private int utf8(String value) throws IOException {
+            Integer index = poolIndexes.get("U" + value);
+            if (index != null) return index;
+            pool.writeByte(1);
+            pool.writeUTF(value);
+            return add("U" + value, 1);
+        }
+
+        private int classRef(String internalName) throws IOException {
+            return ref("C" + internalName, 7, utf8(internalName), -1);
+        }
+
+        private int string(String value) throws IOException {
+            return ref("S" + value, 8, utf8(value), -1);
+        }
+
+        private int fieldRef(String owner, String name, String descriptor) throws IOException {
+            return ref("F" + owner + "." + name + ":" + descriptor, 9, classRef(owner), nameAndType(name, descriptor));
+        }
+
+        private int methodRef(String owner, String name, String descriptor) throws IOException {
+            return ref("M" + owner + "." + name + descriptor, 10, classRef(owner), nameAndType(name, descriptor));
+        }
+
+        private int nameAndType(String name, String descriptor) throws IOException {
+            return ref("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+        }
+
+        // an entry of one or two indexes, second is -1 for one
+        private int ref(String key, int tag, int first, int second) throws IOException {
+            Integer index = poolIndexes.get(key);
+            if (index != null) return index;
+            pool.writeByte(tag);
+            pool.writeShort(first);
+            if (second != -1) pool.writeShort(second);
+            return add(key, 1);
+        }
+
+        private int add(String key, int slots) {
+            int index = poolSize;
+            poolIndexes.put(key, index);
+            poolSize += slots;
+            return index;
+        }
+
+
+        private static final class Code {
+            private byte[] bytes = new byte[64];
+            private int size = 0;
+
+            public Code op(int opcode) {
+                return u1(opcode);
+            }
+
+            public Code u1(int value) {
+                if (size == bytes.length) bytes = Arrays.copyOf(bytes, size * 2);
+                bytes[size++] = (byte) value;
+                return this;
+            }
+
+            public Code u2(int value) {
+                return u1(value >> 8).u1(value);
+            }
+
+            public Code u4(int value) {
+                return u2(value >> 16).u2(value);
+            }
+
+            // overwrites the four bytes at position
+            public void patch(int position, int value) {
+                bytes[position] = (byte) (value >> 24);
+                bytes[position + 1] = (byte) (value >> 16);
+                bytes[position + 2] = (byte) (value >> 8);
+                bytes[position + 3] = (byte) value;
+            }
+
+            public int size() {
+                return size;
+            }
+
+            public byte[] bytes() {
+                return Arrays.copyOf(bytes, size);
+            }
+        }
+    }
+
+    // lets public members of classes that aren't public be used, the same as setAccessible always did here
+    private static void makeAccessible(AccessibleObject member) {
+        try {
+            member.setAccessible(true);
+        } catch (RuntimeException e) {
+            // members in modules that aren't open stay as they are
+        }
+    }
+
+    /**
+     * Pull tokenizer over json text. Each call to next reads one token straight from the source, so a document is
+     * scanned once from start to end however deep it goes. There's one implementation over chars and one over
+     * UTF-8 bytes, which reads the bytes as they are instead of decoding them into chars first. Strings and numbers
+     * are read from the buffer in place, only strings with escapes are copied through a scratch builder.
+     *
+     * <p>Like the rest of the serializer it forgives quotes left unescaped inside strings. A quote only ends a
+     * string when the next thing after it is a separator or the end of the input.
+     */
+    public abstract static class JsonTokenizer {
+        public static final int END = 0;
+        public static final int OBJECT_START = 1;
+        public static final int OBJECT_END = 2;
+        public static final int ARRAY_START = 3;
+        public static final int ARRAY_END = 4;
+        public static final int COMMA = 5;
+        public static final int COLON = 6;
+        public static final int STRING = 7;
+        public static final int NUMBER = 8;
+        public static final int TRUE = 9;
+        public static final int FALSE = 10;
+        public static final int NULL = 11;
+
+        protected static final int BUFFER_SIZE = 8192;
+
+        protected int pos;
+        protected int limit;
+        protected long dropped = 0; // input refills have moved out of the buffer, for error positions
+        protected final StringBuilder scratch = new StringBuilder();
+        private String string; // value of the last STRING token
+
+        // text of the last NUMBER token, only good until the next call to next
+        protected char[] numberChars;
+        protected int numberStart;
+        protected int numberLength;
+        protected char[] digits = new char[32]; // holds a number that isn't in one piece in the buffer
+
+        public static JsonTokenizer of(char[] json) {
+            return new CharTokenizer(json, 0, json.length, null);
+        }
+
+        public static JsonTokenizer of(char[] json, int offset, int length) {
+            return new CharTokenizer(json, offset, length, null);
+        }
+
+        public static JsonTokenizer of(Reader reader) {
+            return new CharTokenizer(new char[BUFFER_SIZE], 0, 0, reader);
+        }
+
+        public static JsonTokenizer of(byte[] json) {
+            return new ByteTokenizer(json, 0, json.length, null);
+        }
+
+        public static JsonTokenizer of(byte[] json, int offset, int length) {
+            return new ByteTokenizer(json, offset, length, null);
+        }
+
+        public static JsonTokenizer of(InputStream in) {
+            return new ByteTokenizer(new byte[BUFFER_SIZE], 0, 0, in);
+        }
+
+        /**
+         * Reads the next token, END once the input runs out
+         */
+        public int next() {
+            int c = skipWhitespace();
+            switch (c) {
+                case -1: return END;
+                case '{': pos++; return OBJECT_START;
+                case '}': pos++; return OBJECT_END;
+                case '[': pos++; return ARRAY_START;
+                case ']': pos++; return ARRAY_END;
+                case ',': pos++; return COMMA;
+                case ':': pos++; return COLON;
+                case '"':
+                    pos++;
+                    string = readString();
+                    return STRING;
+                case 't':
+                    readLiteral("true");
+                    return TRUE;
+                case 'f':
+                    readLiteral("false");
+                    return FALSE;
+                case 'n':
+                    readLiteral("null");
+                    return NULL;
+                default:
+                    if (c != '-' && (c < '0' || c > '9')) throw error("Unexpected character '" + (char) c + "'");
+                    readNumber();
+                    if (!NumberParser.isValid(numberChars, numberStart, numberLength)) throw error("Invalid number");
+                    return NUMBER;
+            }
+        }
+
+        public String string() {
+            return string;
+        }
+
+        public BigDecimal number() {
+            return new BigDecimal(numberChars, numberStart, numberLength);
+        }
+
+        /**
+         * The last number read as the given number type, parsed straight from the text without a BigDecimal in
+         * between unless the type is one or the number is too big for the quick paths
+         */
+        public Object number(Class<?> numberType) {
+            return NumberParser.parse(numberChars, numberStart, numberLength, numberType);
+        }
+
+        public SerializerException error(String message) {
+            return new SerializerException(message + " at position " + (dropped + pos), null);
+        }
+
+        public static String describe(int token) {
+            switch (token) {
+                case END: return "the end of the json";
+                case OBJECT_START: return "an object";
+                case ARRAY_START: return "a list";
+                case STRING: return "a string";
+                case NUMBER: return "a number";
+                case TRUE: case FALSE: return "a boolean";
+                case NULL: return "null";
+                case OBJECT_END: return "'}'";
+                case ARRAY_END: return "']'";
+                case COMMA: return "','";
+                default: return "':'";
+            }
+        }
+
+        // the next character that isn't whitespace, without moving past it. -1 at the end of the input
+        protected abstract int skipWhitespace();
+
+        // called after the opening quote
+        protected abstract String readString();
+
+        // sets numberChars, numberStart and numberLength. Whether it's a valid number is checked after
+        protected abstract void readNumber();
+
+        protected abstract void readLiteral(String literal);
+
+        protected static boolean isWhitespace(int c) {
+            return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+        }
+
+        protected static boolean isSeparator(int c) {
+            return c == ',' || c == '}' || c == ']' || c == ':';
+        }
+
+        protected static boolean isNumberPart(int c) {
+            return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+        }
+
+        // what a backslash followed by c stands for. Quotes, slashes and anything else escaped stand for themselves
+        protected static char escaped(int c) {
+            switch (c) {
+                case 'n': return '\n';
+                case 't': return '\t';
+                case 'r': return '\r';
+                case 'b': return '\b';
+                case 'f': return '\f';
+                default: return (char) c;
+            }
+        }
+    }
+
+    private static final class CharTokenizer extends JsonTokenizer {
+        private final Reader reader; // null when the whole document is in buf
+        private char[] buf;
+
+        public CharTokenizer(char[] json, int offset, int length, Reader reader) {
+            this.reader = reader;
+            this.buf = json;
+            this.pos = offset;
+            this.limit = offset + length;
+            this.dropped = -offset;
+        }
+
+        @Override
+        protected int skipWhitespace() {
+            while (true) {
+                if (pos == limit && !fill(1)) return -1;
+                char c = buf[pos];
+                if (!isWhitespace(c)) return c;
+                pos++;
+            }
+        }
+
+        @Override
+        protected String readString() {
+            scratch.setLength(0);
+            boolean copied = false; // part of the value is already in scratch
+            int start = pos;
+            while (true) {
+                if (pos == limit) {
+                    scratch.append(buf, start, pos - start);
+                    copied = true;
+                    if (!fill(1)) throw error("Unterminated string");
+                    start = pos;
+                    continue;
+                }
+
+                char c = buf[pos];
+                if (c == '"') {
+                    int after = pos + 1;
+                    while (after < limit && isWhitespace(buf[after])) after++;
+                    if (after == limit && reader != null) {
+                        // the look ahead ran off the buffer, keep what's read so far and refill
+                        scratch.append(buf, start, pos - start);
+                        copied = true;
+                        int skipped = after - pos;
+                        while (fill(skipped + 1) && isWhitespace(buf[pos + skipped])) skipped++;
+                        start = pos;
+                        after = pos + skipped;
+                    }
+
+                    if (after >= limit || isSeparator(buf[after])) {
+                        String value = copied? scratch.append(buf, start, pos - start).toString() : new String(buf, start, pos - start);
+                        pos++;
+                        return value;
+                    }
+                    pos++; // a stray quote in the text
+                }
+                else if (c == '\\') {
+                    scratch.append(buf, start, pos - start);
+                    copied = true;
+                    pos++;
+                    scratch.append(readEscape());
+                    start = pos;
+                }
+                else {
+                    pos++;
+                }
+            }
+        }
+
+        // called after the backslash
+        private char readEscape() {
+            if (!fill(1)) throw error("Unterminated string");
+            char c = buf[pos++];
+            if (c != 'u') return escaped(c);
+
+            if (!fill(4)) throw error("Unterminated unicode escape");
+            int code = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(buf[pos + i], 16);
+                if (digit == -1) throw error("Invalid unicode escape");
+                code = (code << 4) | digit;
+            }
+            pos += 4;
+            return (char) code;
+        }
+
+        @Override
+        protected void readNumber() {
+            scratch.setLength(0);
+            boolean copied = false;
+            int start = pos;
+            while (true) {
+                if (pos == limit) {
+                    scratch.append(buf, start, pos - start);
+                    copied = true;
+                    boolean more = fill(1);
+                    start = pos;
+                    if (!more) break;
+                    continue;
+                }
+
+                if (isNumberPart(buf[pos])) pos++;
+                else break;
+            }
+
+            if (!copied) {
+                numberChars = buf;
+                numberStart = start;
+                numberLength = pos - start;
+                return;
+            }
+
+            scratch.append(buf, start, pos - start);
+            if (scratch.length() > digits.length) digits = new char[scratch.length()];
+            scratch.getChars(0, scratch.length(), digits, 0);
+            numberChars = digits;
+            numberStart = 0;
+            numberLength = scratch.length();
+        }
+
+        @Override
+        protected void readLiteral(String literal) {
+            if (!fill(literal.length())) throw error("Unexpected end of json");
+            for (int i = 0; i < literal.length(); i++) {
+                if (buf[pos + i] != literal.charAt(i)) throw error("Unexpected character '" + buf[pos + i] + "'");
+            }
+            pos += literal.length();
+        }
+
+        // makes at least n chars available from pos, moving what's left to the front of the buffer first. false
+        // when the input ends before that
+        private boolean fill(int n) {
+            if (limit - pos >= n) return true;
+            if (reader == null) return false;
+
+            int left = limit - pos;
+            char[] target = (n > buf.length)? new char[Math.max(n, buf.length * 2)] : buf;
+            System.arraycopy(buf, pos, target, 0, left);
+            buf = target;
+            dropped += pos;
+            pos = 0;
+            limit = left;
+
+            try {
+                while (limit < n) {
+                    int read = reader.read(buf, limit, buf.length - limit);
+                    if (read == -1) return false;
+                    limit += read;
+                }
+            } catch (IOException e) {
+                throw new SerializerException("Failed to read json", e);
+            }
+            return true;
+        }
+    }
+
+    private static final class ByteTokenizer extends JsonTokenizer {
+        private final InputStream in; // null when the whole document is in buf
+        private byte[] buf;
+
+        public ByteTokenizer(byte[] json, int offset, int length, InputStream in) {
+            this.in = in;
+            this.buf = json;
+            this.pos = offset;
+            this.limit = offset + length;
+            this.dropped = -offset;
+        }
+
+        @Override
+        protected int skipWhitespace() {
+            while (true) {
+                if (pos == limit && !fill(1)) return -1;
+                byte c = buf[pos];
+                if (!isWhitespace(c)) return c;
+                pos++;
+            }
+        }
+
+        // the bytes of a string stay together in the buffer until its end, so multi byte characters are never split
+        // by a refill and runs without escapes decode in one go. Pure ascii is copied straight into the string
+        @Override
+        protected String readString() {
+            scratch.setLength(0);
+            boolean copied = false; // part of the value is already in scratch
+            boolean ascii = true; // no byte of the current run is above 0x7f
+            int start = pos;
+            while (true) {
+                if (pos == limit) {
+                    int read = pos - start;
+                    pos = start;
+                    boolean more = fill(read + 1);
+                    start = pos;
+                    pos = start + read;
+                    if (!more) throw error("Unterminated string");
+                    continue;
+                }
+
+                byte c = buf[pos];
+                if (c == '"') {
+                    int after = pos + 1;
+                    while (after < limit && isWhitespace(buf[after])) after++;
+                    if (after == limit && in != null) {
+                        // the look ahead ran off the buffer, refill keeping the string
+                        int read = pos - start;
+                        int skipped = after - pos;
+                        pos = start;
+                        while (fill(read + skipped + 1) && isWhitespace(buf[pos + read + skipped])) skipped++;
+                        start = pos;
+                        pos = start + read;
+                        after = pos + skipped;
+                    }
+
+                    if (after >= limit || isSeparator(buf[after])) {
+                        String value = copied? append(start, pos, ascii).toString() : decode(start, pos, ascii);
+                        pos++;
+                        return value;
+                    }
+                    pos++; // a stray quote in the text
+                }
+                else if (c == '\\') {
+                    append(start, pos, ascii);
+                    copied = true;
+                    ascii = true;
+                    pos++;
+                    scratch.append(readEscape());
+                    start = pos;
+                }
+                else {
+                    if (c < 0) ascii = false;
+                    pos++;
+                }
+            }
+        }
+
+        private String decode(int start, int end, boolean ascii) {
+            return new String(buf, start, end - start, ascii? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+        }
+
+        private StringBuilder append(int start, int end, boolean ascii) {
+            if (!ascii) return scratch.append(decode(start, end, false));
+            for (int i = start; i < end; i++) {
+                scratch.append((char) buf[i]);
+            }
+            return scratch;
+        }
+
+        // called after the backslash
+        private char readEscape() {
+            if (!fill(1)) throw error("Unterminated string");
+            byte c = buf[pos++];
+            if (c != 'u') return escaped(c & 0xFF);
+
+            if (!fill(4)) throw error("Unterminated unicode escape");
+            int code = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(buf[pos + i], 16);
+                if (digit == -1) throw error("Invalid unicode escape");
+                code = (code << 4) | digit;
+            }
+            pos += 4;
+            return (char) code;
+        }
+
+        @Override
+        protected void readNumber() {
+            int length = 0;
+            while (pos < limit || fill(1)) {
+                byte c = buf[pos];
+                if (!isNumberPart(c)) break;
+                if (length == digits.length) digits = Arrays.copyOf(digits, length * 2);
+                digits[length++] = (char) c;
+                pos++;
+            }
+
+            numberChars = digits;
+            numberStart = 0;
+            numberLength = length;
+        }
+
+        @Override
+        protected void readLiteral(String literal) {
+            if (!fill(literal.length())) throw error("Unexpected end of json");
+            for (int i = 0; i < literal.length(); i++) {
+                if (buf[pos + i] != literal.charAt(i)) throw error("Unexpected character '" + (char) (buf[pos + i] & 0xFF) + "'");
+            }
+            pos += literal.length();
+        }
+
+        // makes at least n bytes available from pos, moving what's left to the front of the buffer first. false
+        // when the input ends before that
+        private boolean fill(int n) {
+            if (limit - pos >= n) return true;
+            if (in == null) return false;
+
+            int left = limit - pos;
+            byte[] target = (n > buf.length)? new byte[Math.max(n, buf.length * 2)] : buf;
+            System.arraycopy(buf, pos, target, 0, left);
+            buf = target;
+            dropped += pos;
+            pos = 0;
+            limit = left;
+
+            try {
+                while (limit < n) {
+                    int read = in.read(buf, limit, buf.length - limit);
+                    if (read == -1) return false;
+                    limit += read;
+                }
+            } catch (IOException e) {
+                throw new SerializerException("Failed to read json", e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Parses json numbers straight into the type they're read as. Whole numbers of up to 18 digits are read digit
+     * by digit into a long, doubles go through Clinger's fast path and then the Eisel-Lemire algorithm, which
+     * settle almost every double exactly with one or two 64 bit multiplications. What those can't settle falls
+     * back to the JDK's parser, and BigDecimal is only made for BigDecimal targets and whole numbers too big for
+     * a long, so the results match converting a BigDecimal.
+     */
+    private static final class NumberParser {
+        private static final long NOT_SIMPLE = Long.MIN_VALUE; // can't come out of 18 digits
+
+        private static final double[] SMALL_POWERS = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        // 128 bit mantissas of the powers of ten from 1e-348 to 1e347, rounded down, high then low half
+        private static final int MIN_EXPONENT = -348;
+        private static final int MAX_EXPONENT = 347;
+        private static final long[] POWERS = new long[(MAX_EXPONENT - MIN_EXPONENT + 1) * 2];
+
+        static {
+            BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+            for (int exponent = MIN_EXPONENT; exponent <= MAX_EXPONENT; exponent++) {
+                BigInteger power = BigInteger.TEN.pow(Math.abs(exponent));
+                int bits = power.bitLength();
+                BigInteger mantissa;
+                if (exponent >= 0) {
+                    mantissa = (bits > 128)? power.shiftRight(bits - 128) : power.shiftLeft(128 - bits);
+                }
+                else {
+                    mantissa = BigInteger.ONE.shiftLeft(bits + 127).divide(power);
+                }
+
+                int index = (exponent - MIN_EXPONENT) * 2;
+                POWERS[index] = mantissa.shiftRight(64).longValue();
+                POWERS[index + 1] = mantissa.and(mask).longValue();
+            }
+        }
+
+        public static Object parse(char[] chars, int start, int length, Class<?> numberType) {
+            if (numberType == int.class || numberType == Integer.class) {
+                long value = parseWhole(chars, start, length);
+                if (value != NOT_SIMPLE) return (int) value;
+            }
+            else if (numberType == long.class || numberType == Long.class) {
+                long value = parseWhole(chars, start, length);
+                if (value != NOT_SIMPLE) return value;
+            }
+            else if (numberType == double.class || numberType == Double.class) {
+                double value = parseDouble(chars, start, length);
+                if (Double.isNaN(value)) value = Double.parseDouble(new String(chars, start, length));
+                return value;
+            }
+            else if (numberType == float.class || numberType == Float.class) {
+                return Float.parseFloat(new String(chars, start, length));
+            }
+            else if (numberType == short.class || numberType == Short.class) {
+                long value = parseWhole(chars, start, length);
+                if (value != NOT_SIMPLE) return (short) value;
+            }
+            else if (numberType == byte.class || numberType == Byte.class) {
+                long value = parseWhole(chars, start, length);
+                if (value != NOT_SIMPLE) return (byte) value;
+            }
+            return convertBigDecimalToType(new BigDecimal(chars, start, length), numberType);
+        }
+
+        // whether BigDecimal would take the text: a sign, digits with at most one point, then an exponent
+        public static boolean isValid(char[] chars, int start, int length) {
+            int i = start;
+            int end = start + length;
+            if (i < end && (chars[i] == '-' || chars[i] == '+')) i++;
+
+            int digits = 0;
+            while (i < end && isDigit(chars[i])) {
+                i++;
+                digits++;
+            }
+            if (i < end && chars[i] == '.') {
+                i++;
+                while (i < end && isDigit(chars[i])) {
+                    i++;
+                    digits++;
+                }
+            }
+            if (digits == 0) return false;
+
+            if (i < end && (chars[i] == 'e' || chars[i] == 'E')) {
+                i++;
+                if (i < end && (chars[i] == '-' || chars[i] == '+')) i++;
+                int exponentStart = i;
+                while (i < end && isDigit(chars[i])) i++;
+                if (i == exponentStart) return false;
+                if (i - exponentStart > 9) {
+                    // let BigDecimal decide if the exponent fits
+                    try {
+                        new BigDecimal(chars, start, length);
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return i == end;
+        }
+
+        // an optional minus and up to 18 digits, NOT_SIMPLE for anything else
+        private static long parseWhole(char[] chars, int start, int length) {
+            int i = start;
+            int end = start + length;
+            boolean negative = chars[i] == '-';
+            if (negative) i++;
+            if (end - i == 0 || end - i > 18) return NOT_SIMPLE;
+
+            long value = 0;
+            for (; i < end; i++) {
+                char c = chars[i];
+                if (!isDigit(c)) return NOT_SIMPLE;
+                value = value * 10 + (c - '0');
+            }
+            return negative? -value : value;
+        }
+
+        // NaN when the number has more than 19 significant digits or the fast paths can't round it for sure
+        private static double parseDouble(char[] chars, int start, int length) {
+            int i = start;
+            int end = start + length;
+            boolean negative = chars[i] == '-';
+            if (negative || chars[i] == '+') i++;
+
+            // the significant digits as an unsigned long, and the power of ten they're scaled by
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            for (; i < end && isDigit(chars[i]); i++) {
+                if (mantissa == 0 && chars[i] == '0') continue;
+                if (++digits > 19) return Double.NaN;
+                mantissa = mantissa * 10 + (chars[i] - '0');
+            }
+            if (i < end && chars[i] == '.') {
+                for (i++; i < end && isDigit(chars[i]); i++) {
+                    exponent--;
+                    if (mantissa == 0 && chars[i] == '0') continue;
+                    if (++digits > 19) return Double.NaN;
+                    mantissa = mantissa * 10 + (chars[i] - '0');
+                }
+            }
+            if (i < end) {
+                i++; // the e
+                boolean negativeExponent = chars[i] == '-';
+                if (negativeExponent || chars[i] == '+') i++;
+                int written = 0;
+                for (; i < end; i++) {
+                    written = written * 10 + (chars[i] - '0');
+                    if (written > 100_000) return Double.NaN; // far outside the range of a double either way
+                }
+                exponent += negativeExponent? -written : written;
+            }
+
+            if (mantissa == 0) return negative? -0.0 : 0.0;
+
+            // Clinger's fast path, both the mantissa and the power of ten are exact doubles so one rounding is right
+            if (exponent >= -22 && exponent <= 22 && mantissa >= 0 && mantissa <= (1L << 53)) {
+                double value = (exponent < 0)? mantissa / SMALL_POWERS[-exponent] : mantissa * SMALL_POWERS[exponent];
+                return negative? -value : value;
+            }
+            return eiselLemire(mantissa, exponent, negative);
+        }
+
+        private static double eiselLemire(long mantissa, int exponent, boolean negative) {
+            if (exponent < MIN_EXPONENT || exponent > MAX_EXPONENT) return Double.NaN;
+            int index = (exponent - MIN_EXPONENT) * 2;
+
+            // normalize, and estimate the binary exponent from log2(10) ~ 217706 / 2^16
+            int leadingZeros = Long.numberOfLeadingZeros(mantissa);
+            mantissa <<= leadingZeros;
+            long binaryExponent = ((217706L * exponent) >> 16) + 64 + 1023 - leadingZeros;
+
+            long high = multiplyHigh(mantissa, POWERS[index]);
+            long low = mantissa * POWERS[index];
+            if ((high & 0x1FF) == 0x1FF && Long.compareUnsigned(low + mantissa, mantissa) < 0) {
+                // the bits that decide the rounding might be off, bring in the low half of the power
+                long lowHigh = multiplyHigh(mantissa, POWERS[index + 1]);
+                long lowLow = mantissa * POWERS[index + 1];
+                long mergedHigh = high;
+                long mergedLow = low + lowHigh;
+                if (Long.compareUnsigned(mergedLow, low) < 0) mergedHigh++;
+                if ((mergedHigh & 0x1FF) == 0x1FF && mergedLow + 1 == 0 && Long.compareUnsigned(lowLow + mantissa, mantissa) < 0) {
+                    return Double.NaN;
+                }
+                high = mergedHigh;
+                low = mergedLow;
+            }
+
+            // down to 54 bits, then round half to even to 53
+            long top = high >>> 63;
+            long significand = high >>> (top + 9);
+            binaryExponent -= 1 ^ top;
+            if (low == 0 && (high & 0x1FF) == 0 && (significand & 3) == 1) return Double.NaN; // exactly half way
+            significand += significand & 1;
+            significand >>>= 1;
+            if ((significand >>> 53) > 0) {
+                significand >>>= 1;
+                binaryExponent++;
+            }
+            if (binaryExponent <= 0 || binaryExponent >= 0x7FF) return Double.NaN; // subnormal or infinite
+
+            long bits = (binaryExponent << 52) | (significand & 0x000FFFFFFFFFFFFFL);
+            if (negative) bits |= Long.MIN_VALUE;
+            return Double.longBitsToDouble(bits);
+        }
+
+        // high half of the unsigned 128 bit product
+        private static long multiplyHigh(long x, long y) {
+            return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+    }
+
+    /**
+     * Writes an object graph as json in one walk. Objects are written from their public fields leaving out nulls
+     * and fields marked JsonIgnore, maps and collections are written as they are. Compact output keeps the spaced
+     * style the serializer has always used, pretty output indents each level by four spaces.
+     */
+    private static final class JsonWriter {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final Appendable out;
+        private final boolean pretty;
+        private int depth = 0;
+
+        public JsonWriter(Appendable out, boolean pretty) {
+            this.out = out;
+            this.pretty = pretty;
+        }
+
+        public void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.append("null");
+            }
+            else if (value instanceof String || value instanceof Character || value instanceof Enum || value instanceof Temporal) {
+                writeString(out, value.toString());
+            }
+            else if (value instanceof Number || value instanceof Boolean) {
+                out.append(value.toString());
+            }
+            else if (value instanceof Map<?, ?> map) {
+                writeMap(map);
+            }
+            else if (value instanceof Collection<?> collection) {
+                writeList(collection);
+            }
+            else {
+                writeObject(value);
+            }
+        }
+
+        private void writeObject(Object object) throws IOException {
+            ClassCodec codec = CODECS.get(object.getClass());
+            GeneratedCodec generated = generatedCodecs? codec.generated() : null;
+
+            boolean first = true;
+            if (generated != null) {
+                first = generated.write(object, this);
+            }
+            else {
+                for (FieldCodec field : codec.written) {
+                    first = member(first, field.jsonName, field.get(object));
+                }
+            }
+            end(first, '{', '}');
+        }
+
+        // writes one field of an object, leaving out nulls. Takes and returns whether nothing's been written to the
+        // object yet, generated codecs call these straight from their write methods
+        public boolean member(boolean first, String jsonName, Object value) throws IOException {
+            if (value == null) return first;
+            beginField(first, jsonName);
+            writeValue(value);
+            return false;
+        }
+
+        public boolean member(boolean first, String jsonName, int value) throws IOException {
+            beginField(first, jsonName);
+            out.append(Integer.toString(value));
+            return false;
+        }
+
+        public boolean member(boolean first, String jsonName, long value) throws IOException {
+            beginField(first, jsonName);
+            out.append(Long.toString(value));
+            return false;
+        }
+
+        public boolean member(boolean first, String jsonName, float value) throws IOException {
+            beginField(first, jsonName);
+            out.append(Float.toString(value));
+            return false;
+        }
+
+        public boolean member(boolean first, String jsonName, double value) throws IOException {
+            beginField(first, jsonName);
+            out.append(Double.toString(value));
+            return false;
+        }
+
+        public boolean member(boolean first, String jsonName, boolean value) throws IOException {
+            beginField(first, jsonName);
+            out.append(value? "true" : "false");
+            return false;
+        }
+
+        private void beginField(boolean first, String jsonName) throws IOException {
+            if (first) {
+                out.append('{');
+                depth++;
+            }
+            else {
+                out.append(',');
+            }
+            separate();
+            out.append(jsonName);
+            out.append(pretty? ": " : " : ");
+        }
+
+        private void writeMap(Map<?, ?> map) throws IOException {
+            boolean first = true;
+            for (Entry<?, ?> entry : map.entrySet()) {
+                if (first) out.append('{');
+                beginMember(first, String.valueOf(entry.getKey()));
+                writeValue(entry.getValue());
+                first = false;
+            }
+            end(first, '{', '}');
+        }
+
+        private void writeList(Collection<?> list) throws IOException {
+            boolean first = true;
+            for (Object value : list) {
+                if (first) {
+                    out.append('[');
+                    depth++;
+                }
+                else {
+                    out.append(',');
+                }
+                separate();
+                writeValue(value);
+                first = false;
+            }
+            end(first, '[', ']');
+        }
+
+        private void beginMember(boolean first, String name) throws IOException {
+            if (first) depth++;
+            else out.append(',');
+            separate();
+            writeString(out, name);
+            out.append(pretty? ": " : " : ");
+        }
+
+        // closes an object or list, empty is true when nothing was written into it
+        private void end(boolean empty, char open, char close) throws IOException {
+            if (empty) {
+                out.append(open).append(close);
+                return;
+            }
+            depth--;
+            separate();
+            out.append(close);
+        }
+
+        // the space or new line and indent before a member, element or closing bracket
+        private void separate() throws IOException {
+            if (!pretty) {
+                out.append(' ');
+                return;
+            }
+            out.append('\n');
+            for (int i = 0; i < depth; i++) {
+                out.append("    ");
+            }
+        }
+
+        // the name as a json string, for codecs to write without escaping it again
+        public static String quote(String value) {
+            StringBuilder builder = new StringBuilder();
+            try {
+                writeString(builder, value);
+            } catch (IOException e) {
+                throw new SerializerException("Failed to write json", e);
+            }
+            return builder.toString();
+        }
+
+        private static void writeString(Appendable out, String value) throws IOException {
+            if (out instanceof Utf8Output utf8) {
+                utf8.writeString(value);
+                return;
+            }
+
+            out.append('"');
+            int start = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= 0x20 && c != '"' && c != '\\') continue;
+
+                out.append(value, start, i);
+                switch (c) {
+                    case '"': out.append("\\\""); break;
+                    case '\\': out.append("\\\\"); break;
+                    case '\n': out.append("\\n"); break;
+                    case '\t': out.append("\\t"); break;
+                    case '\r': out.append("\\r"); break;
+                    case '\b': out.append("\\b"); break;
+                    case '\f': out.append("\\f"); break;
+                    default: out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                }
+                start = i + 1;
+            }
+            out.append(value, start, value.length());
+            out.append('"');
+        }
+    }
+
+    /**
+     * Encodes what's appended as UTF-8 into a byte buffer that's written to the stream when it fills, so json goes
+     * out as bytes without a Writer encoding it a second time. Strings are escaped and encoded in the same pass.
+     */
+    private static final class Utf8Output implements Appendable {
+        private final OutputStream out;
+        private final byte[] buf = new byte[8192];
+        private int count = 0;
+        private char highSurrogate = 0; // first half of a pair appended on its own
+
+        public Utf8Output(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            if (count + 4 > buf.length) drain();
+            if (c < 0x80 && highSurrogate == 0) buf[count++] = (byte) c;
+            else encode(c);
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence value) throws IOException {
+            return append(value, 0, value.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence value, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                if (count + 4 > buf.length) drain();
+                char c = value.charAt(i);
+                if (c < 0x80 && highSurrogate == 0) buf[count++] = (byte) c;
+                else encode(c);
+            }
+            return this;
+        }
+
+        // writes value as a quoted json string
+        public void writeString(String value) throws IOException {
+            append('"');
+            for (int i = 0; i < value.length(); i++) {
+                if (count + 6 > buf.length) drain();
+                char c = value.charAt(i);
+                if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                    buf[count++] = (byte) c;
+                    continue;
+                }
+
+                switch (c) {
+                    case '"': escape('"'); break;
+                    case '\\': escape('\\'); break;
+                    case '\n': escape('n'); break;
+                    case '\t': escape('t'); break;
+                    case '\r': escape('r'); break;
+                    case '\b': escape('b'); break;
+                    case '\f': escape('f'); break;
+                    default:
+                        if (c < 0x20) {
+                            escape('u');
+                            buf[count++] = '0';
+                            buf[count++] = '0';
+                            buf[count++] = (byte) JsonWriter.HEX[c >> 4];
+                            buf[count++] = (byte) JsonWriter.HEX[c & 0xF];
+                        }
+                        else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                            encode(c);
+                            encode(value.charAt(++i));
+                        }
+                        else if (Character.isSurrogate(c)) {
+                            buf[count++] = '?';
+                        }
+                        else {
+                            encode(c);
+                        }
+                }
+            }
+            append('"');
+        }
+
+        public void flush() throws IOException {
+            if (highSurrogate != 0) {
+                if (count == buf.length) drain();
+                buf[count++] = '?';
+                highSurrogate = 0;
+            }
+            drain();
+            out.flush();
+        }
+
+        private void escape(char c) {
+            buf[count++] = '\\';
+            buf[count++] = (byte) c;
+        }
+
+        // needs room for 4 bytes. A lone surrogate is written as '?' like String.getBytes does
+        private void encode(char c) {
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int code = Character.toCodePoint(high, c);
+                    buf[count++] = (byte) (0xF0 | (code >> 18));
+                    buf[count++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+                    buf[count++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (code & 0x3F));
+                    return;
+                }
+                buf[count++] = '?';
+            }
+
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            }
+            else if (Character.isLowSurrogate(c)) {
+                buf[count++] = '?';
+            }
+            else {
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        private void drain() throws IOException {
+            out.write(buf, 0, count);
+            count = 0;
+        }
     }
 
     /**
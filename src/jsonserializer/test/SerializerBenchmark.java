@@ -0,0 +1,97 @@
+package jsonserializer.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jsonserializer.Serializer;
+import jsonserializer.test.Test.Choice;
+import jsonserializer.test.Test.Completion;
+import jsonserializer.test.Test.Message;
+import jsonserializer.test.Test.Prompt;
+
+/**
+ * Compares the reflective codecs against the generated ones on the Test dtos, writing and reading a chat prompt
+ * and a completion. Runs JMH style warmup and measurement iterations and prints the average time per call.
+ */
+public class SerializerBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+    private static final int CALLS_PER_ITERATION = 50_000;
+
+    private static Object sink; // keeps the jit from dropping the calls
+
+
+    public static void main(String[] args) {
+        Prompt prompt = new Prompt();
+        prompt.model = "gpt-3.5-turbo-0125";
+        prompt.messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            prompt.messages.add(new Message("Message number " + i + " in the conversation so far", (i % 2 == 0)? "user" : "assistant"));
+        }
+
+        Completion completion = new Completion();
+        completion.id = "chatcmpl-B9xaDe7CByTTrCBT9nI3PYjaPKAGe";
+        completion.object = "chat.completion";
+        completion.created = 1741713689;
+        completion.model = "gpt-3.5-turbo-0125";
+        completion.choices = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Choice choice = new Choice();
+            choice.index = i;
+            choice.finish_reason = "stop";
+            choice.message = new Message("Use the useEffect hook to call the api once the component mounts.", "assistant");
+            completion.choices.add(choice);
+        }
+
+        String promptJson = Serializer.json(prompt, false);
+        String completionJson = Serializer.json(completion, false);
+
+        List<String> names = List.of("write prompt", "write completion", "read prompt", "read completion");
+        List<Runnable> calls = List.of(
+            () -> sink = Serializer.json(prompt, false),
+            () -> sink = Serializer.json(completion, false),
+            () -> sink = Serializer.fromJson(promptJson, Prompt.class),
+            () -> sink = Serializer.fromJson(completionJson, Completion.class)
+        );
+
+        double[] reflective = new double[calls.size()];
+        Serializer.useGeneratedCodecs(false);
+        for (int i = 0; i < calls.size(); i++) {
+            reflective[i] = measure(calls.get(i));
+        }
+
+        double[] generated = new double[calls.size()];
+        Serializer.useGeneratedCodecs(true);
+        for (int i = 0; i < calls.size(); i++) {
+            generated[i] = measure(calls.get(i));
+        }
+
+        System.out.printf("%-18s %12s %12s%n", "", "reflective", "generated");
+        for (int i = 0; i < calls.size(); i++) {
+            System.out.printf("%-18s %9.1f ns %9.1f ns%n", names.get(i), reflective[i], generated[i]);
+        }
+        if (sink == null) System.out.println();
+    }
+
+    private static double measure(Runnable call) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            run(call);
+        }
+
+        double total = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            total += run(call);
+        }
+        return total / MEASUREMENT_ITERATIONS;
+    }
+
+    private static double run(Runnable call) {
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS_PER_ITERATION; i++) {
+            call.run();
+        }
+        return (System.nanoTime() - start) / (double) CALLS_PER_ITERATION;
+    }
+
+}
@@ -1,53 +1,132 @@
 package webserver;
 
-import java.io.PrintWriter;
 import java.lang.annotation.Documented;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.EOFException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSessionContext;
 
 public class Server<S> {
-    public static Map<Integer, String> statusCodes = Map.of(
-        200, "OK",
-        201, "Created",
-        204, "No Content",
-        400, "Bad Request",
-        401, "Unauthorized",
-        403, "Forbidden",
-        404, "Not Found",
-        408, "Request Timeout",
-        500, "Internal Server Error",
-        505, "HTTP Version Not Supported"
+    public static Map<Integer, String> statusCodes = Map.ofEntries(
+        Map.entry(200, "OK"),
+        Map.entry(201, "Created"),
+        Map.entry(204, "No Content"),
+        Map.entry(206, "Partial Content"),
+        Map.entry(304, "Not Modified"),
+        Map.entry(400, "Bad Request"),
+        Map.entry(401, "Unauthorized"),
+        Map.entry(403, "Forbidden"),
+        Map.entry(404, "Not Found"),
+        Map.entry(405, "Method Not Allowed"),
+        Map.entry(408, "Request Timeout"),
+        Map.entry(415, "Unsupported Media Type"),
+        Map.entry(416, "Range Not Satisfiable"),
+        Map.entry(429, "Too Many Requests"),
+        Map.entry(500, "Internal Server Error"),
+        Map.entry(503, "Service Unavailable"),
+        Map.entry(505, "HTTP Version Not Supported")
     );
 
     public static Map<String, Integer> successCodes = Map.of(
@@ -65,21 +144,41 @@ public class Server<S> {
     private DeserializeLambda<String, Type, S, Object, Exception> deserializer;
     private SerializeLambda<Object, S, String, Exception> serializer;
     private S serializerObject; 
-    private Map<String, Method> getMethods;
-    private Map<String, Method> putMethods;
-    private Map<String, Method> postMethods;
-    private Map<String, Method> patchMethods;
-    private Map<String, Method> deleteMethods;
-    private Map<String, Method> optionsMethods;
-    private Map<InetAddress, Integer> clientRequestCounts = new ConcurrentHashMap<>(); // for rate limiting
+    private Router<EndpointInvoker> router = new Router<>();
+    private Converters converters;
+    private List<ResponseCache> caches = new ArrayList<>();
+    private boolean hasStreamingEndpoints = false;
+    private RateLimiter rateLimiter;
 
     private String path;
     private int timeout = 300000; // 5 mins
     private String contentType;
     private int maxRequestSize = 5000000; // 5 mb
     private int maxConnections = 20;
-    private boolean serverOn = true;
+    private volatile boolean serverOn = true; // cleared by stop
     private int maxRequestsPerMinute = 1000;
+    private ServerConfig config;
+    private AtomicInteger openConnections = new AtomicInteger();
+    private Queue<Runnable> connectionQueue; // work waiting for a thread, null with virtual threads
+    private Method virtualThreadExecutorFactory; // Executors.newVirtualThreadPerTaskExecutor when virtual threads are on
+    private Semaphore concurrencyLimit; // caps in flight connections when virtual threads are on
+    private AtomicInteger waitingForSlot = new AtomicInteger(); // virtual thread tasks queued on concurrencyLimit
+    private CoDel codel; // null unless the overload policy is CODEL
+    private Compression compression;
+    private SSLContext sslContext; // null unless tls is on
+    private StaticFiles staticFiles; // null unless directories are mapped
+    private ServerMetrics metrics;
+
+    // everything stop has to shut down
+    private final Object lifecycle = new Object();
+    private ExecutorService acceptExecutor;
+    private ScheduledExecutorService maintenance;
+    private ExecutorService connectionExecutor; // connection threads for BLOCKING, endpoint workers for NIO
+    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    private volatile List<NioLoop> loops; // NIO only
+    private final Set<BlockingConnection> blockingConnections = ConcurrentHashMap.newKeySet();
+    private final Set<EventStream> eventStreams = ConcurrentHashMap.newKeySet(); // open server-sent event responses
 
 
     protected Server (
@@ -92,68 +191,262 @@ public class Server<S> {
         int maxRequestSize,
         int maxConnections,
         int rateLimitRequestsPerMinute
+    ) {
+        this(
+            port,
+            deserializer,
+            serializer,
+            serializerObject,
+            new ServerConfig()
+                .timeoutMillis(timeoutMillis)
+                .contentType(contentType)
+                .maxRequestSize(maxRequestSize)
+                .maxConnections(maxConnections)
+                .rateLimitRequestsPerMinute(rateLimitRequestsPerMinute)
+        );
+    }
+
+    protected Server (
+        int port,
+        DeserializeLambda<String, Type, S, Object, Exception> deserializer, 
+        SerializeLambda<Object, S, String, Exception> serializer, 
+        S serializerObject,
+        ServerConfig config
     ) {
         this.deserializer = deserializer;
         this.serializer = serializer;
         this.serializerObject = serializerObject;
-        this.timeout = timeoutMillis;
-        this.contentType = contentType;
-        this.maxRequestSize = maxRequestSize;
-        this.maxConnections = maxConnections;
-        this.maxRequestsPerMinute = rateLimitRequestsPerMinute;
-
-
-        // parse endpoint methods
-        getMethods = new HashMap<>();
-        putMethods = new HashMap<>();
-        postMethods = new HashMap<>();
-        patchMethods = new HashMap<>();
-        deleteMethods = new HashMap<>();
-        optionsMethods = new HashMap<>();
+        this.config = config;
+        this.timeout = config.timeoutMillis;
+        this.contentType = config.contentType;
+        this.maxRequestSize = config.maxRequestSize;
+        this.maxConnections = config.maxConnections;
+        this.maxRequestsPerMinute = config.rateLimitRequestsPerMinute;
+        this.rateLimiter = (config.rateLimiter != null)? config.rateLimiter : new TokenBucketRateLimiter(this.maxRequestsPerMinute);
+        this.compression = new Compression(config.compressionLevel, this.maxConnections);
+        this.metrics = new ServerMetrics(openConnections::get, this::queueDepth);
+        this.sslContext = createSslContext(config);
+        this.converters = new Converters(config.converters);
+        if (!config.staticDirectories.isEmpty())
+            this.staticFiles = new StaticFiles(config.staticDirectories, config.staticCacheFileSize, config.staticCacheSize);
+
+
+        // get path
+        Endpoint endpointAnnotation = this.getClass().getAnnotation(Endpoint.class);
+        this.path = (endpointAnnotation != null)? endpointAnnotation.value() : "";
+
+        // parse endpoint methods into the router
         for (Method method : this.getClass().getMethods()) {
             Get getAnnotation = method.getAnnotation(Get.class);
-            if (getAnnotation != null) {
-                getMethods.put(getAnnotation.value(), method);
-                break;
-            }
+            if (getAnnotation != null) addRoute("GET", getAnnotation.value(), method);
             
             Put putAnnotation = method.getAnnotation(Put.class);
-            if (putAnnotation != null) {
-                putMethods.put(putAnnotation.value(), method);
-                break;
-            }
+            if (putAnnotation != null) addRoute("PUT", putAnnotation.value(), method);
             
             Post postAnnotation = method.getAnnotation(Post.class);
-            if (postAnnotation != null) {
-                postMethods.put(postAnnotation.value(), method);
-                break;
-            }
+            if (postAnnotation != null) addRoute("POST", postAnnotation.value(), method);
             
             Patch patchAnnotation = method.getAnnotation(Patch.class);
-            if (patchAnnotation != null) {
-                patchMethods.put(patchAnnotation.value(), method);
-                break;
-            }
+            if (patchAnnotation != null) addRoute("PATCH", patchAnnotation.value(), method);
             
             Delete deleteAnnotation = method.getAnnotation(Delete.class);
-            if (deleteAnnotation != null) {
-                deleteMethods.put(deleteAnnotation.value(), method);
-                break;
-            }
+            if (deleteAnnotation != null) addRoute("DELETE", deleteAnnotation.value(), method);
             
             Options optionsAnnotation = method.getAnnotation(Options.class);
-            if (optionsAnnotation != null) {
-                optionsMethods.put(optionsAnnotation.value(), method);
-                break;
+            if (optionsAnnotation != null) addRoute("OPTIONS", optionsAnnotation.value(), method);
+        }
+
+        // virtual threads are looked up reflectively so this class still compiles on java versions before 21
+        if (config.virtualThreads) {
+            try {
+                this.virtualThreadExecutorFactory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException e) {
+                throw new ServerException("Virtual threads require java 21 or newer", e);
             }
+            this.concurrencyLimit = new Semaphore(this.maxConnections);
         }
 
-        // get path
-        Endpoint endpointAnnotation = this.getClass().getAnnotation(Endpoint.class);
-        this.path = (endpointAnnotation != null)? endpointAnnotation.value() : "";
+        // rate limiter
+        this.maintenance = Executors.newScheduledThreadPool(1);
+        this.maintenance.scheduleAtFixedRate(() -> this.rateLimiter.evictIdle(), 30, 30, TimeUnit.SECONDS);
+        if (!caches.isEmpty()) {
+            this.maintenance.scheduleAtFixedRate(() -> caches.forEach(ResponseCache::evictExpired), 30, 30, TimeUnit.SECONDS);
+        }
+        int heartbeat = config.eventHeartbeatSeconds;
+        if (heartbeat > 0) {
+            this.maintenance.scheduleAtFixedRate(() -> eventStreams.forEach(EventStream::heartbeat), heartbeat, heartbeat, TimeUnit.SECONDS);
+        }
+
+        // client connection thread pool, or endpoint workers for nio
+        this.connectionExecutor = createConnectionExecutor();
+        if (config.overloadPolicy == OverloadPolicy.CODEL)
+            this.codel = new CoDel(config.codelTargetMillis, config.codelIntervalMillis);
+
+        this.acceptExecutor = Executors.newSingleThreadExecutor();
+        if (config.engine == Engine.NIO)
+            acceptExecutor.submit( () -> setUpNioServer(port) );
+        else
+            acceptExecutor.submit( () -> setUpServer(port) );
+    }
+
+
+    /**
+     * Stops the server. It stops accepting straight away and closes keep alive connections that are waiting for
+     * their next request. Requests already being handled get until the timeout to finish, and their responses
+     * tell the client the connection is closing. Anything still open after the timeout is closed, then every
+     * thread the server started is shut down. Returns false if connections had to be cut off.
+     */
+    public boolean stop(Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+
+        synchronized (lifecycle) {
+            if (!serverOn) return openConnections.get() == 0;
+            serverOn = false;
+
+            // unblocks the accept loop
+            try {
+                if (serverSocket != null) serverSocket.close();
+                if (serverChannel != null) serverChannel.close();
+            } catch (IOException e) {
+                log.warning(String.format("Failed to close server socket %s", e.toString()));
+            }
+        }
+        acceptExecutor.shutdown();
+        maintenance.shutdownNow();
+
+        // event streams are ended so their clients can reconnect elsewhere
+        for (EventStream stream : eventStreams) stream.end();
+
+        // idle connections close now, busy ones close after their current response
+        for (BlockingConnection connection : blockingConnections) connection.closeIfIdle();
+        List<NioLoop> nioLoops = this.loops;
+        if (nioLoops != null) {
+            for (NioLoop loop : nioLoops) loop.execute(loop::closeIdle);
+        }
+
+        boolean drained = awaitConnections(deadline);
+        if (!drained) {
+            log.warning(openConnections.get() + " connections still open after " + timeout + ", closing them");
+            for (BlockingConnection connection : blockingConnections) connection.close();
+            if (nioLoops != null) {
+                for (NioLoop loop : nioLoops) loop.execute(loop::closeAll);
+            }
+        }
+
+        connectionExecutor.shutdown();
+        try {
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            if (!connectionExecutor.awaitTermination(remaining, TimeUnit.NANOSECONDS)) {
+                connectionExecutor.shutdownNow();
+                drained = false;
+            }
+        } catch (InterruptedException e) {
+            connectionExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+
+        compression.close();
+        return drained;
+    }
+
+    private boolean awaitConnections(long deadline) {
+        while (openConnections.get() > 0) {
+            if (System.nanoTime() >= deadline) return false;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    private int queueDepth() {
+        int waiting = (connectionQueue != null)? connectionQueue.size() : 0;
+        if (concurrencyLimit != null) waiting += waitingForSlot.get();
+        return waiting;
+    }
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.submit( () -> setUpServer(port) );
+    // runs work on the connection executor if there's room in the admission queue, otherwise reject runs right
+    // away on this thread. with CODEL, work that sat in a standing queue past the target is rejected instead of
+    // run, since running it late only makes everything behind it late too
+    private void submitAdmitted(Runnable work, Runnable reject) {
+        long enqueued = System.nanoTime();
+
+        // virtual threads never queue in the executor, they queue on the concurrency limit instead
+        if (concurrencyLimit != null && waitingForSlot.incrementAndGet() > config.admissionQueueSize) {
+            waitingForSlot.decrementAndGet();
+            metrics.queueFull.increment();
+            reject.run();
+            return;
+        }
+
+        Runnable task = () -> {
+            if (concurrencyLimit != null) {
+                concurrencyLimit.acquireUninterruptibly();
+                waitingForSlot.decrementAndGet();
+            }
+            try {
+                long waited = System.nanoTime() - enqueued;
+                metrics.queueWait.record(waited);
+                if (codel != null && codel.shouldShed(waited, enqueued + waited)) {
+                    metrics.queueTimeShed.increment();
+                    reject.run();
+                    return;
+                }
+                work.run();
+            }
+            finally {
+                if (concurrencyLimit != null) concurrencyLimit.release();
+            }
+        };
+
+        try {
+            connectionExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the bounded queue is full, or the server is stopping
+            if (concurrencyLimit != null) waitingForSlot.decrementAndGet();
+            metrics.queueFull.increment();
+            reject.run();
+        }
+    }
+
+    private HttpResponse overloadedResponse() {
+        return new HttpResponse(503, "Service Unavailable")
+            .header("Retry-After", Integer.toString(config.retryAfterSeconds));
+    }
+
+    // answers a connection that couldn't be admitted, without reading its request
+    private void rejectConnection(Socket socket) {
+        try (socket) {
+            // answering over tls would mean running the handshake on the accept thread
+            if (sslContext != null) return;
+
+            ResponseBuffer response = new ResponseBuffer();
+            encodeResponse(overloadedResponse(), false, response);
+            response.writeTo(socket.getOutputStream());
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            log.warning(String.format("Failed to reject connection %s", e.toString()));
+        }
+    }
+
+    private void addRoute(String verb, String template, Method method) {
+        String fullPath = this.path + template;
+        EndpointInvoker invoker = new EndpointInvoker(method, Router.variableNames(fullPath), metrics.endpoint(verb + " " + fullPath));
+        // the cache key has no body in it, two posts to the same path would share one response
+        if (invoker.cache != null && !verb.equals("GET"))
+            throw new ServerException("@Cached can only be used on @Get endpoints, " + method.getName() + " is " + verb + " " + fullPath, null);
+        router.add(verb, fullPath, invoker);
+        if (invoker.cache != null) caches.add(invoker.cache);
+        if (invoker.streamsBody) hasStreamingEndpoints = true;
     }
 
 
@@ -191,453 +484,6179 @@ public class Server<S> {
          */
         
         
-        // rate limiter
-        ScheduledExecutorService rateLimiterResetter = Executors.newScheduledThreadPool(1);
-        rateLimiterResetter.scheduleAtFixedRate(() -> this.clientRequestCounts.clear(), 1, 1, TimeUnit.MINUTES);
-
-        // set up client connection thread pool
-        ExecutorService executor = new ThreadPoolExecutor(
-                0, // core pool size
-                this.maxConnections, // maximum pool size
-                60, // keep-alive time for idle threads
-                TimeUnit.SECONDS, // unit for keep-alive time
-                new LinkedBlockingQueue<>() // work queue
-        );
-
         try (
-            ServerSocket serverSocket = new ServerSocket(port)
+            ServerSocket serverSocket = (sslContext != null)? sslContext.getServerSocketFactory().createServerSocket(port) : new ServerSocket(port)
         ) {
+            synchronized (lifecycle) {
+                if (!serverOn) return;
+                this.serverSocket = serverSocket;
+            }
+
             while (serverOn) {
                 Socket socket = serverSocket.accept();
-                // handle the connection in a separate thread
-                executor.submit(() -> {
 
-                    BufferedReader in = null;
-                    PrintWriter out = null;
-                    try {
+                // handle the connection in a separate thread, or turn it away when the server is overloaded
+                submitAdmitted(() -> {
 
-                        // rate limit socket
-                        this.rateLimitSocket(socket, false);
+                    BlockingConnection connection = null;
+                    openConnections.incrementAndGet();
+                    metrics.connectionAccepted();
+                    try {
 
                         // set timeout and connect to client
                         socket.setSoTimeout(this.timeout);
-                        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                        out = new PrintWriter(socket.getOutputStream());
+                        connection = new BlockingConnection(socket);
+                        blockingConnections.add(connection);
 
                         // handle the connection (the connection loops inside until it is closed)
-                        handleConnection(socket, in, out);
+                        if (serverOn) connection.run();
                             
     
                     } catch (SocketTimeoutException e) {
-                        buildAndSendHttpResponse(408, "Request Timed Out", out);
+                        if (connection != null) connection.sendFinalResponse(new HttpResponse(408, "Request Timed Out"));
                         log.warning(String.format("Request timed out %s", e.toString()));
                     } catch (Exception e) {
-                        buildAndSendHttpResponse(500, handleErrorResponse(e).body, out);
+                        // closed by stop
+                        if (!serverOn && socket.isClosed()) return;
+
+                        if (connection != null) connection.sendFinalResponse(new HttpResponse(500, handleErrorResponse(e).body));
                         log.warning(String.format("Exception occured during request %s", e.toString()));
                     }
                     finally {
+                        if (connection != null) blockingConnections.remove(connection);
                         try {
-                            if (in != null) in.close();
-                            if (out != null) out.close();
                             socket.close();
 
                         } catch (IOException e) {
                             throw new ServerException("Failed to close connection", e);
                         }
+                        finally {
+                            openConnections.decrementAndGet();
+                        }
                     }
     
-                });
+                }, () -> rejectConnection(socket));
                 
             }
         }
         catch(IOException e) {
-            throw new ServerException("Failed to create server socket", e);
-        }
-        finally {
-            executor.shutdown();
+            // accept fails once stop closes the socket
+            if (serverOn) throw new ServerException("Failed to create server socket", e);
         }
     }
 
 
-    private void handleConnection(Socket socket, BufferedReader in, PrintWriter out) throws IOException, URISyntaxException {
+    private void setUpNioServer(int port) {
 
-        // keep the connection open until the client closes it or times out
-        while (!socket.isClosed()) {
+        // endpoint methods can block, so they run on workers instead of the io threads
+        ExecutorService workers = this.connectionExecutor;
 
+        // start the io threads, each multiplexing many connections on its own selector
+        List<NioLoop> loops = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, config.ioThreads); i++) {
+            NioLoop loop = new NioLoop(workers);
+            loops.add(loop);
+            Thread thread = new Thread(loop, "server-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        this.loops = loops;
 
-            // read the request line
-            Count currentRequestSize = new Count();
-            String requestLine = readLine(in, currentRequestSize);
-            if (requestLine == null || requestLine.isEmpty()) {
-                // client closed the connection
-                break;
+        try (
+            ServerSocketChannel serverChannel = ServerSocketChannel.open()
+        ) {
+            serverChannel.bind(new InetSocketAddress(port), config.acceptBacklog);
+            synchronized (lifecycle) {
+                if (!serverOn) return;
+                this.serverChannel = serverChannel;
             }
-            // else if () {
-            //     continue;
-            // }
-
-            // rate limit socket
-            rateLimitSocket(socket, true);
-            
-            String[] splits = requestLine.split(" ");
 
-            // check http type
-            if (splits[2].equals("HTTP/1.1")) {
-                String method = splits[0];
-                URI uri = new URI(splits[1]);
-                
-                // read the headers
-                Map<String, String> headers = new HashMap<>();
-                String line = readLine(in, currentRequestSize);
-                while (!line.isEmpty()) {
-                    int separator = line.indexOf(":");
-                    if (separator != -1) {
-                        headers.put(line.substring(0, separator), line.substring(separator + 1).trim());
-                    }
-                    line = readLine(in, currentRequestSize);
+            // accept on this thread and hand connections to the io threads round robin
+            int next = 0;
+            while (serverOn) {
+                SocketChannel channel = serverChannel.accept();
+                if (openConnections.get() >= config.maxOpenConnections) {
+                    log.warning("Max open connections reached, refusing connection from " + channel.getRemoteAddress());
+                    channel.close();
+                    continue;
                 }
 
-                // check for host header
-                if (headers.containsKey("Host")) {
-
-                    // read the body
-                    StringBuilder body = new StringBuilder();
-                    while (in.ready()) {
-                        body.append((char) in.read());
-                        if (body.length() + currentRequestSize.getCount() > this.maxRequestSize)
-                            throw new ServerException("Request exceeded maximum size of " + this.maxRequestSize, null);
-                    }
-
-                    // get the response from the endpoint methods
-                    String responseString = getResponseFromClass(method, uri, headers, body.toString());
-
-                    // send success response
-                    int status = successCodes.get(method);
-                    buildAndSendHttpResponse(status, responseString, out);
-                }
-                else {
-                    buildAndSendHttpResponse(400, "Bad Request: Missing 'Host' header", out);
-                }
-            }
-            else {
-                buildAndSendHttpResponse(505, "HTTP Version Not Supported", out);
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                openConnections.incrementAndGet();
+                metrics.connectionAccepted();
+                loops.get(next).register(channel);
+                next = (next + 1) % loops.size();
             }
         }
+        catch(IOException e) {
+            // accept fails once stop closes the channel
+            if (serverOn) throw new ServerException("Failed to create server socket", e);
+        }
     }
 
-    private void rateLimitSocket(Socket socket, boolean incrementCurrentConnection) throws IOException {
-        InetAddress clientAddress = socket.getInetAddress();
-        Integer numRequests = clientRequestCounts.get(clientAddress);
-        if (numRequests == null) numRequests = 0;
-        if (numRequests >= this.maxRequestsPerMinute) {
-            socket.close();
-            String message = String.format(
-                "client submitted %d requests in the last minute, which is the max %d configured (Potential DOS attack). Client Address %s (Closing connection now)",
-                numRequests,
-                this.maxRequestsPerMinute,
-                clientAddress.toString()
-            );
-            log.severe(message);
+
+    private ExecutorService createConnectionExecutor() {
+        if (virtualThreadExecutorFactory != null) {
+            try {
+                return (ExecutorService) virtualThreadExecutorFactory.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new ServerException("Failed to create virtual thread executor", e);
+            }
         }
-        else if (incrementCurrentConnection)
-            clientRequestCounts.put(clientAddress, numRequests + 1);
+
+        // core size has to match the max, since threads past the core are only added once the queue is full
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                this.maxConnections, // core pool size
+                this.maxConnections, // maximum pool size
+                60, // keep-alive time for idle threads
+                TimeUnit.SECONDS, // unit for keep-alive time
+                new ArrayBlockingQueue<>(Math.max(1, config.admissionQueueSize)) // admission queue, full means overloaded
+        );
+        executor.allowCoreThreadTimeOut(true);
+        this.connectionQueue = executor.getQueue();
+        return executor;
     }
 
 
-    private String readLine(BufferedReader in, Count currentRequestSize) throws IOException {
-        StringBuilder requestLineBuilder = new StringBuilder();
-        int ch;
-        int lastChar = -1;
-        while ((ch = in.read()) != -1) {
-            currentRequestSize.add(1);
-            if (lastChar == '\r' && ch == '\n') {
-                break;
-            }
-            requestLineBuilder.append((char) ch);
-            if (currentRequestSize.getCount() > this.maxRequestSize) {
-                throw new ServerException("Request exceeded maximum size of " + String.valueOf(this.maxRequestSize), null);
+    private class NioLoop implements Runnable {
+        private final Selector selector;
+        private final ExecutorService workers;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        public NioLoop(ExecutorService workers) {
+            this.workers = workers;
+            try {
+                this.selector = Selector.open();
+            } catch (IOException e) {
+                throw new ServerException("Failed to open selector", e);
             }
-            lastChar = ch;
         }
 
-        // Remove trailing '\r' from the line
-        if (requestLineBuilder.length() > 0 && requestLineBuilder.charAt(requestLineBuilder.length() - 1) == '\r') {
-            requestLineBuilder.setLength(requestLineBuilder.length() - 1);
+        public void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    if (!serverOn) {
+                        openConnections.decrementAndGet();
+                        channel.close();
+                        return;
+                    }
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(channel, key, this));
+                } catch (IOException e) {
+                    openConnections.decrementAndGet();
+                    log.warning(String.format("Failed to register connection %s", e.toString()));
+                }
+            });
         }
 
-        return requestLineBuilder.toString();
-    }
+        // runs the task on this loop's io thread
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
 
-    private void buildAndSendHttpResponse(int status, String responseString, PrintWriter out) {
-        // send status line
-        String statusLine = "HTTP/1.1 " + status + " ";
-        if (statusCodes.containsKey(status)) statusLine += statusCodes.get(status);
-        out.println(statusLine);
+        // closes connections between requests, for stop
+        public void closeIdle() {
+            for (SelectionKey key : selector.keys()) {
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection != null && connection.isIdle()) connection.close();
+            }
+        }
 
-        out.println("Date: " + ZonedDateTime.now().format(DateTimeFormatter.RFC_1123_DATE_TIME));
-        out.println("Content-Type: " + this.contentType);
+        public void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection != null) connection.close();
+            }
+        }
 
-        String contentLength = (responseString == null)? "2" : String.valueOf(responseString.getBytes().length + 2);
-        out.println("Content-Length: " + contentLength);
-        out.println("Connection: keep-alive");
-        out.println();
-        out.println(responseString);
-        out.flush();
-    }
+        @Override
+        public void run() {
+            long lastTimeoutCheck = System.currentTimeMillis();
 
-    public ErrorResponse handleErrorResponse(Exception e) {
-        StringBuilder body = new StringBuilder("{ \"message\" : \"Encountered exception processing request: ");
-        String message = e.getMessage();
-        String cause = e.getCause() == null? "" : e.getCause().getMessage();
+            // after stop, keep going until the last connection has closed
+            while (serverOn || !selector.keys().isEmpty()) {
+                try {
+                    selector.select(1000);
 
-        if (message != null) body.append(message);
-        if (cause != null) body.append(" ").append(cause);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
 
-        body.append(" \" }");
-        return new ErrorResponse(
-            500, 
-            body.toString()
-        );
-    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (connection == null) continue;
+                        try {
+                            if (key.isValid() && key.isWritable()) connection.onWritable();
+                            if (key.isValid() && key.isReadable()) connection.onReadable();
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
 
-    private String getResponseFromClass(String requestMethod, URI uri, Map<String, String> requestHeaders, String requestBody) {
-        
-        // /hot-dog?burnt=false&sauce=mustard
+                    // close connections that have been idle longer than the timeout
+                    long now = System.currentTimeMillis();
+                    if (now - lastTimeoutCheck >= 1000) {
+                        lastTimeoutCheck = now;
+                        for (SelectionKey key : selector.keys()) {
+                            NioConnection connection = (NioConnection) key.attachment();
+                            if (connection != null) connection.checkTimeout(now);
+                        }
+                    }
+                } catch (IOException e) {
+                    log.warning(String.format("Exception in io loop %s", e.toString()));
+                }
+            }
 
-        // get resource path
-        String resourceString = uri.getPath();
-        resourceString = resourceString.replace(this.path, "");
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.warning(String.format("Failed to close selector %s", e.toString()));
+            }
+        }
+    }
 
 
-        // call endpoint method if a matching endpoint if found
-        Method method = switch(requestMethod) {
-            case "GET"-> this.getMethods.get(resourceString);
-            case "PUT"-> this.putMethods.get(resourceString);
-            case "POST"-> this.postMethods.get(resourceString);
-            case "PATCH"-> this.patchMethods.get(resourceString);
-            case "DELETE"-> this.deleteMethods.get(resourceString);
-            case "OPTIONS"-> this.optionsMethods.get(resourceString);
-            default -> null;
-        };
-        if (method != null) {
-            // parse params
-            Map<String, String> params = new HashMap<>();
-            String reqString = uri.getQuery();
-            if (reqString != null && reqString.length() > 1) {
-                for (String param : reqString.split("&")) {
-                    String[] pair = param.split("=");
-                    params.put(pair[0], pair[1]);
-                }
-            }
+    private static final int MAX_PIPELINED_REQUESTS = 32; // per batch, the rest wait in the read buffer
 
-            // collect arguments for method
-            Object[] arguments = new Object[method.getParameters().length];
-            Parameter[] methodParams = method.getParameters();
-            int currentParam = 0;
-            for (int i = 0; i < arguments.length; i++) {
+    private class NioConnection {
+        private final SocketChannel channel;
+        private final Transport transport;
+        private final SelectionKey key;
+        private final NioLoop loop;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private final RequestParser parser;
+        private final ResponseBuffer responses = new ResponseBuffer(); // reused for every batch of responses
+        private final ArrayDeque<PendingWrite> writeQueue = new ArrayDeque<>();
+        private boolean processing = false;
+        private boolean closeAfterWrite = false;
+        private boolean closed = false;
+        private long lastActive = System.currentTimeMillis();
+        private BodyInputStream streamingBody; // request body still being read while its endpoint runs
+        private boolean bodyPaused = false; // the endpoint hasn't made room in the body stream yet
+        private boolean batchEnded = false; // the batch finished before its streamed body was fully read
+        private boolean readScheduled = false; // decrypted input is waiting and a read has been queued on the loop
+        private Http2Connection http2; // set once the connection has switched to HTTP/2
+        private NioEventStream events; // set once the connection is streaming server-sent events
 
-                Parameter param = methodParams[i];
+        public NioConnection(SocketChannel channel, SelectionKey key, NioLoop loop) {
+            this.channel = channel;
+            this.transport = (sslContext != null)? new TlsTransport(channel, createSslEngine()) : new PlainTransport(channel);
+            this.key = key;
+            this.loop = loop;
+            this.parser = new RequestParser(maxRequestSize, bodyStreamFactory(() -> loop.execute(this::resumeBody), null));
+        }
 
-                Body bodyAnnotation = param.getAnnotation(Body.class);
-                if (bodyAnnotation != null) {
-                    try {
-                        arguments[i] = this.deserializer.apply(requestBody.toString(), param.getParameterizedType(), this.serializerObject);
-                    } catch (Exception e) {
-                        throw new ServerException("Error deserializing body to type " + param.getParameterizedType().getTypeName(), e);
-                    }
-                    continue;
+        public void onReadable() throws IOException {
+            // a tls record can decrypt to more than fits, so keep going while the transport still holds input
+            int read;
+            do {
+                while (readBuffer.remaining() < transport.minReadSpace()) readBuffer = growBuffer(readBuffer, maxRequestSize);
+
+                read = transport.read(readBuffer);
+                if (read == -1) {
+                    close();
+                    return;
                 }
+                lastActive = System.currentTimeMillis();
+                if (events != null) readBuffer.clear(); // nothing more is read from an event stream's client
+                else if (processing) feedBody();
+                else tryDispatch();
+            } while (read > 0 && transport.hasBufferedInput() && wantsInput());
 
-                Param paramAnnotation = param.getAnnotation(Param.class);
-                if (paramAnnotation != null) {
-                    if (paramAnnotation.value().isEmpty())
-                        throw new ServerException("Param annotation is missing a value used to match to query params", null);
-                    Object res = params.get(paramAnnotation.value());
-                    currentParam++;
-                    Class<?> type = param.getType();
-                    res = parseBasicType(res, type);
+            // handshake messages the socket couldn't take yet
+            if (transport.hasPendingOutput()) updateInterest();
+        }
 
-                    arguments[i] = res;
-                    continue;
-                }
+        private boolean wantsInput() {
+            // an event stream keeps reading to notice the client going away
+            return !closed && (http2 != null || events != null || !processing || (streamingBody != null && !bodyPaused));
+        }
 
-                Header headerAnnotation = param.getAnnotation(Header.class);
-                if (headerAnnotation != null) {
-                    Object res = requestHeaders.get(headerAnnotation.value());
-                    arguments[i] = parseBasicType(res, param.getType());
-                    continue;
+        // parses every complete request in the read buffer and hands them to a worker as one batch
+        private void tryDispatch() {
+            if (processing || closed) return;
+
+            if (http2 != null) {
+                readBuffer.flip();
+                try {
+                    http2.receive(readBuffer);
+                } finally {
+                    readBuffer.compact();
                 }
+                return;
             }
 
+            // a client with prior knowledge starts with the HTTP/2 preface instead of a request
+            if (config.http2 && !parser.inProgress() && readBuffer.position() > 0) {
+                readBuffer.flip();
+                int preface = prefaceMatch(readBuffer);
+                readBuffer.compact();
+                if (preface == 0) return;
+                if (preface == 1) {
+                    startHttp2(null);
+                    return;
+                }
+            }
 
-            // call method and serialize result
+            List<HttpRequest> batch = new ArrayList<>();
+            HttpResponse parseError = null;
+            readBuffer.flip();
             try {
-                Object result = method.invoke(this, arguments);
-
-                return this.serializer.apply(result, serializerObject);
-            } 
-            catch (ReflectiveOperationException e) {
-                throw new ServerException("Matching endpoint method wasn't public or had some other failure", e);
-            } 
-            catch (IllegalArgumentException e) {
-                throw new ServerException("Couldn't convert provided arguments to method types", e);
+                HttpRequest request;
+                while (batch.size() < MAX_PIPELINED_REQUESTS && (request = parser.parse(readBuffer)) != null) {
+                    batch.add(request);
+                    if (parser.isStreamingBody()) {
+                        // the body is read while the endpoint runs, so nothing after it can be parsed yet
+                        streamingBody = request.bodyStream;
+                        break;
+                    }
+                }
+            } catch (ServerException e) {
+                log.warning(String.format("Exception occured during request %s", e.toString()));
+                parseError = new HttpResponse(500, handleErrorResponse(e).body);
+            } finally {
+                readBuffer.compact();
             }
-            catch (Exception e) {
-                throw new ServerException("Error deserializing result from endpoint", e);
+            if (batch.isEmpty() && parseError == null) return;
+
+            // Upgrade: h2c is only taken up when it's the only request, the client waits for the 101
+            if (config.http2 && sslContext == null && batch.size() == 1 && parseError == null && isH2cUpgrade(batch.get(0))) {
+                startHttp2(batch.get(0));
+                return;
             }
-        }
 
-        return null;
-    }
+            processing = true;
 
-    private Object parseBasicType(Object res, Class<?> type) {
-        if (res == null) return res;
-        
-        if ( type == Boolean.class || type == boolean.class) {
-            res = Boolean.parseBoolean(res.toString());
+            Batch work = new Batch(batch, channel.socket().getInetAddress(), parseError);
+            submitAdmitted(() -> runBatch(work, null), () -> loop.execute(() -> sendAndClose(overloadedResponse())));
+
+            if (streamingBody != null) feedBody();
+            else updateInterest();
         }
-        else if ( Number.class.isAssignableFrom(type) ) {
-            if (type == BigDecimal.class) {
-                res = new BigDecimal(res.toString());
+
+        // answers a batch's requests in order into the same buffer, on a worker. An async endpoint gives the worker
+        // back until its future completes, then the batch carries on from that request with the resumed response
+        private void runBatch(Batch batch, CompletableFuture<HttpResponse> resumed) {
+            boolean close = false;
+            boolean streamingEvents = false;
+            HttpResponse waitingOn = null; // an async response the batch stops at
+            try {
+                for (; batch.next < batch.requests.size(); batch.next++) {
+                    HttpRequest request = batch.requests.get(batch.next);
+                    if (resumed == null && isRateLimited(batch.clientAddress)) {
+                        encodeResponse(new HttpResponse(429, "Too Many Requests"), false, responses);
+                        close = true;
+                        break;
+                    }
+                    try {
+                        HttpResponse response;
+                        if (resumed != null) {
+                            response = awaitResponse(resumed);
+                            resumed = null;
+                        }
+                        else {
+                            response = handleRequest(request);
+                            if (response.pending != null) {
+                                waitingOn = response;
+                                break;
+                            }
+                        }
+
+                        // the rest of the connection belongs to an event stream, anything pipelined after it is dropped
+                        if (response.events != null) {
+                            encodeResponse(response, false, responses);
+                            writeFromWorker(responses.segments());
+                            NioEventStream stream = new NioEventStream(response.events);
+                            loop.execute(() -> {
+                                events = stream;
+                                updateInterest();
+                            });
+                            stream.open();
+                            streamingEvents = true;
+                            break;
+                        }
+
+                        boolean keepAlive = isKeepAlive(request) && serverOn;
+                        encodeResponse(response, keepAlive, responses);
+                        if (response.stream != null) writeStreamingBody(response, responses, this::writeFromWorker);
+                        if (response.file != null && response.file.fromDisk()) {
+                            writeFromWorker(responses.segments());
+                            responses.reset();
+                            writeFile(response.file);
+                        }
+                        if (!keepAlive) {
+                            close = true;
+                            break;
+                        }
+                    } catch (StreamingBodyException e) {
+                        log.warning(String.format("Exception occured while streaming response %s", e.toString()));
+                        responses.reset();
+                        close = true;
+                        break;
+                    } catch (Exception e) {
+                        log.warning(String.format("Exception occured during request %s", e.toString()));
+                        encodeResponse(new HttpResponse(500, handleErrorResponse(e).body), false, responses);
+                        close = true;
+                        break;
+                    } finally {
+                        // whatever the endpoint didn't read is skipped so the next request can be parsed
+                        if (waitingOn == null && request.bodyStream != null) request.bodyStream.discardRest();
+                    }
+                }
+                if (waitingOn == null && !close && batch.parseError != null) {
+                    encodeResponse(batch.parseError, false, responses);
+                    close = true;
+                }
+                // responses before an async one go out now rather than waiting on it
+                if (!responses.isEmpty()) writeFromWorker(responses.segments());
             }
-            else if (Integer.class.isAssignableFrom(type)) {
-                res = Integer.parseInt(res.toString());
+            catch (IOException e) {
+                log.warning(String.format("Failed to send response %s", e.toString()));
+                close = true;
+                waitingOn = null;
             }
-            else if (Long.class.isAssignableFrom(type)) {
-                res = Long.parseLong(res.toString());
+            finally {
+                responses.reset();
             }
-            else if (Double.class.isAssignableFrom(type)) {
-                res = Double.parseDouble(res.toString());
+
+            if (streamingEvents) return;
+            if (waitingOn != null) {
+                HttpResponse waiting = waitingOn;
+                // the rest of the batch is admitted like a new request, whatever thread completed the endpoint only
+                // hands it over. Turned away, the waiting request gets a 503 and the connection closes
+                waiting.completion.whenComplete((value, error) -> submitAdmitted(
+                    () -> runBatch(batch, waiting.start()),
+                    () -> loop.execute(() -> sendAndClose(overloadedResponse()))
+                ));
+                return;
             }
+            boolean finalClose = close;
+            loop.execute(() -> endBatch(finalClose));
         }
 
-        return res;
-    }
+        private void startHttp2(HttpRequest upgrade) {
+            http2 = new Http2Connection(this);
+            if (upgrade != null) queueWrite(new ByteBuffer[] { ByteBuffer.wrap(SWITCHING_TO_H2C) }, new CompletableFuture<>());
+            http2.start(upgrade);
+            updateInterest();
+            tryDispatch();
+        }
 
+        // called from any thread, frames are written in the order they're handed over
+        private CompletableFuture<Void> writeFrames(ByteBuffer[] frames) {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            loop.execute(() -> queueWrite(frames, written));
+            return written;
+        }
 
-    public String readInputStream(InputStream requestBody) throws IOException {
-        try (InputStreamReader isr = new InputStreamReader(requestBody, StandardCharsets.UTF_8);
-            BufferedReader br = new BufferedReader(isr)) {
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line);
+        private void closeAfterWrites() {
+            loop.execute(() -> {
+                if (closed) return;
+                closeAfterWrite = true;
+                if (writeQueue.isEmpty() && !transport.hasPendingOutput()) close();
+            });
+        }
+
+        // called on the io thread once every response of a batch has been written
+        private void endBatch(boolean close) {
+            if (closed) return;
+            if (close) {
+                close();
+                return;
             }
-            return sb.toString();
+            if (streamingBody != null) {
+                // wait until the rest of the body has been skipped
+                batchEnded = true;
+                return;
+            }
+
+            processing = false;
+            lastActive = System.currentTimeMillis();
+            updateInterest();
+            tryDispatch();
         }
-    }
 
+        // passes buffered bytes to the body stream of the request being processed
+        private void feedBody() {
+            if (streamingBody == null || closed) return;
 
+            readBuffer.flip();
+            try {
+                parser.parse(readBuffer);
+            } catch (ServerException e) {
+                streamingBody.fail(new IOException(e.getMessage(), e));
+                close();
+                return;
+            } finally {
+                readBuffer.compact();
+            }
 
-    // helper classes
-    public static class ServerException extends RuntimeException {
-        public ServerException(String message, Exception cause) {
-            super(message, cause);
+            if (!parser.isStreamingBody()) {
+                streamingBody = null;
+                bodyPaused = false;
+                if (batchEnded) {
+                    batchEnded = false;
+                    endBatch(false);
+                    return;
+                }
+            }
+            else {
+                bodyPaused = streamingBody.isWaitingForSpace();
+            }
+            updateInterest();
         }
-    }
 
-    
-    public static class ErrorResponse {
-        private final int statusCode;
-        private String body;
+        private void resumeBody() {
+            if (closed || streamingBody == null) return;
+            bodyPaused = false;
+            feedBody();
+        }
 
-        public ErrorResponse(int statusCode, String body) {
-            this.statusCode = statusCode;
-            this.body = body;
+        public boolean isIdle() {
+            if (http2 != null) return http2.isIdle() && readBuffer.position() == 0;
+            return !processing && readBuffer.position() == 0 && !parser.inProgress();
         }
-    }
 
+        private void updateInterest() {
+            if (closed) return;
+            int ops = 0;
+            if (wantsInput()) ops |= SelectionKey.OP_READ;
+            if (!writeQueue.isEmpty() || transport.hasPendingOutput()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
 
-    @FunctionalInterface
-    public static interface DeserializeLambda<J, T, S, R, E extends Exception> {
-        R apply(J json, T type, S serializer) throws E;
-    }
+            // input the transport already pulled off the socket won't make the selector fire again
+            if (wantsInput() && transport.hasBufferedInput() && !readScheduled) {
+                readScheduled = true;
+                loop.execute(() -> {
+                    readScheduled = false;
+                    try {
+                        onReadable();
+                    } catch (IOException | RuntimeException e) {
+                        close();
+                    }
+                });
+            }
+        }
 
+        private void sendAndClose(HttpResponse response) {
+            if (closed) return;
+            processing = true;
+            closeAfterWrite = true;
+            encodeResponse(response, false, responses);
+            queueWrite(responses.segments(), new CompletableFuture<>());
+        }
+
+        // called from a worker, hands the buffers to the io thread and waits until the socket has taken all of them
+        private void writeFromWorker(ByteBuffer[] buffers) throws IOException {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            loop.execute(() -> queueWrite(buffers, written));
+            awaitWrite(written);
+        }
+
+        // called from a worker. Plain connections hand the file straight to the socket with transferTo, so the bytes
+        // go from the page cache to the socket without being copied through the heap. Tls has to encrypt them first
+        private void writeFile(FileBody file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ)) {
+                if (transport instanceof PlainTransport) {
+                    CompletableFuture<Void> written = new CompletableFuture<>();
+                    loop.execute(() -> queueWrite(new PendingWrite(channel, file.offset, file.length, written)));
+                    awaitWrite(written);
+                }
+                else {
+                    readFile(channel, file, this::writeFromWorker);
+                }
+            }
+        }
+
+        private void awaitWrite(CompletableFuture<Void> written) throws IOException {
+            try {
+                written.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (java.util.concurrent.TimeoutException e) {
+                loop.execute(this::close);
+                throw new SocketTimeoutException("Timed out writing response");
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to write response", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted writing response", e);
+            }
+        }
+
+        private void queueWrite(ByteBuffer[] buffers, CompletableFuture<Void> written) {
+            queueWrite(new PendingWrite(buffers, written));
+        }
+
+        private void queueWrite(PendingWrite write) {
+            if (closed) {
+                write.written.completeExceptionally(new IOException("Connection closed"));
+                return;
+            }
+            writeQueue.add(write);
+            try {
+                onWritable();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // gathering writes of everything queued, until the socket is full
+        public void onWritable() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                PendingWrite write = writeQueue.peek();
+                if (write.file != null) {
+                    if (!transferFile(write)) {
+                        updateInterest();
+                        return;
+                    }
+                    writeQueue.poll();
+                    write.written.complete(null);
+                    continue;
+                }
+                transport.write(write.buffers, write.index, write.buffers.length - write.index);
+                while (write.index < write.buffers.length && !write.buffers[write.index].hasRemaining()) write.index++;
+                if (write.index < write.buffers.length || transport.hasPendingOutput()) {
+                    // socket is full, wait until it's writable again
+                    updateInterest();
+                    return;
+                }
+                writeQueue.poll();
+                write.written.complete(null);
+            }
+            if (transport.hasPendingOutput()) {
+                transport.write(new ByteBuffer[0], 0, 0);
+                if (transport.hasPendingOutput()) {
+                    updateInterest();
+                    return;
+                }
+            }
+            lastActive = System.currentTimeMillis();
+
+            if (closeAfterWrite) close();
+            else updateInterest();
+        }
+
+        // sends as much of the file as the socket takes, true once it's all gone
+        private boolean transferFile(PendingWrite write) throws IOException {
+            while (write.remaining > 0) {
+                long sent = write.file.transferTo(write.position, write.remaining, channel);
+                if (sent == 0) {
+                    if (write.position >= write.file.size()) throw new EOFException("File shrank while it was being sent");
+                    return false;
+                }
+                write.position += sent;
+                write.remaining -= sent;
+            }
+            return true;
+        }
+
+        public void checkTimeout(long now) {
+            if (processing || closed || now - lastActive < timeout) return;
+
+            if (http2 != null) {
+                if (http2.isIdle()) http2.shutdown();
+                return;
+            }
+
+            if (readBuffer.position() > 0 || parser.inProgress()) {
+                log.warning("Request timed out " + channel.socket().getInetAddress());
+                sendAndClose(new HttpResponse(408, "Request Timed Out"));
+            }
+            else close();
+        }
+
+        public void close() {
+            if (closed) return;
+            closed = true;
+            openConnections.decrementAndGet();
+            key.cancel();
+            transport.close();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warning(String.format("Failed to close connection %s", e.toString()));
+            }
+
+            // release any worker waiting on this connection
+            IOException closedException = new IOException("Connection closed");
+            for (PendingWrite write : writeQueue) write.written.completeExceptionally(closedException);
+            writeQueue.clear();
+            if (streamingBody != null) streamingBody.fail(closedException);
+            if (http2 != null) http2.closed();
+            if (events != null) events.closed();
+        }
+
+        // events go to the io thread as chunks without waiting, the backlog is what the socket hasn't taken yet
+        private class NioEventStream extends EventStream {
+            private final AtomicLong backlog = new AtomicLong();
+
+            public NioEventStream(EventPublisher publisher) {
+                super(publisher, eventStreams, config.maxEventBacklog);
+            }
+
+            @Override
+            protected boolean write(byte[] event) {
+                if (backlog.addAndGet(event.length) > maxBacklog) {
+                    evict();
+                    return true;
+                }
+                writeFrames(ChunkedOutputStream.chunk(event)).whenComplete((written, error) -> {
+                    if (error != null) closed();
+                    else backlog.addAndGet(-event.length);
+                });
+                return true;
+            }
+
+            @Override
+            protected void finish() {
+                writeFrames(new ByteBuffer[] { ByteBuffer.wrap(ChunkedOutputStream.LAST_CHUNK) });
+                closeAfterWrites();
+            }
+
+            @Override
+            protected void abort() {
+                loop.execute(NioConnection.this::close);
+            }
+        }
+    }
+
+    // pipelined requests a worker answers in order, kept across async endpoints
+    private static class Batch {
+        private final List<HttpRequest> requests;
+        private final InetAddress clientAddress;
+        private final HttpResponse parseError; // sent after the requests, then the connection closes
+        private int next = 0;
+
+        public Batch(List<HttpRequest> requests, InetAddress clientAddress, HttpResponse parseError) {
+            this.requests = requests;
+            this.clientAddress = clientAddress;
+            this.parseError = parseError;
+        }
+    }
+
+    private static class PendingWrite {
+        private final ByteBuffer[] buffers;
+        private final CompletableFuture<Void> written;
+        private int index = 0;
+        private final FileChannel file; // sent with transferTo instead of the buffers when set
+        private long position;
+        private long remaining;
+
+        public PendingWrite(ByteBuffer[] buffers, CompletableFuture<Void> written) {
+            this.buffers = buffers;
+            this.written = written;
+            this.file = null;
+        }
+
+        public PendingWrite(FileChannel file, long position, long count, CompletableFuture<Void> written) {
+            this.buffers = new ByteBuffer[0];
+            this.written = written;
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+    }
+
+    // moves bytes between a nio connection and its socket
+    private interface Transport {
+        int read(ByteBuffer dst) throws IOException; // -1 at end of stream
+        void write(ByteBuffer[] srcs, int offset, int length) throws IOException; // writes as much as the socket takes
+        boolean hasPendingOutput(); // bytes taken by write that haven't reached the socket yet
+        boolean hasBufferedInput(); // bytes read off the socket that read hasn't handed out yet
+        int minReadSpace();
+        void close();
+    }
+
+    private static class PlainTransport implements Transport {
+        private final SocketChannel channel;
+
+        public PlainTransport(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            channel.write(srcs, offset, length);
+        }
+
+        public boolean hasPendingOutput() {
+            return false;
+        }
+
+        public boolean hasBufferedInput() {
+            return false;
+        }
+
+        public int minReadSpace() {
+            return 1;
+        }
+
+        public void close() {}
+    }
+
+    /**
+     * Tls on a non-blocking channel. Reads unwrap whatever records have arrived into the caller's buffer, and writes
+     * wrap the caller's buffers into records and send them straight away, keeping anything the socket won't take in
+     * netOut for the next write. Handshake messages are consumed and produced along the way, so the handshake runs
+     * on the io thread without ever waiting on the socket. Delegated tasks are run inline, they're short cpu work.
+     */
+    private static class TlsTransport implements Transport {
+        private static final ByteBuffer[] NOTHING = { ByteBuffer.allocate(0) };
+
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private ByteBuffer netIn; // encrypted bytes from the socket, in write mode
+        private ByteBuffer netOut; // encrypted bytes for the socket, in read mode
+
+        public TlsTransport(SocketChannel channel, SSLEngine engine) {
+            this.channel = channel;
+            this.engine = engine;
+            int packetSize = engine.getSession().getPacketBufferSize();
+            this.netIn = ByteBuffer.allocate(packetSize);
+            this.netOut = ByteBuffer.allocate(packetSize).flip();
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            int produced = 0;
+            while (true) {
+                netIn.flip();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, dst);
+                } finally {
+                    netIn.compact();
+                }
+                produced += result.bytesProduced();
+                handshake(result.getHandshakeStatus());
+
+                switch (result.getStatus()) {
+                    case CLOSED:
+                        return (produced > 0)? produced : -1;
+                    case BUFFER_OVERFLOW:
+                        return produced; // the caller makes room and reads again
+                    case OK:
+                        if (result.bytesConsumed() > 0) continue;
+                        break;
+                    case BUFFER_UNDERFLOW:
+                        break;
+                }
+
+                // only part of a record is here, get more from the socket
+                if (!netIn.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(netIn.capacity() + engine.getSession().getPacketBufferSize());
+                    netIn.flip();
+                    netIn = bigger.put(netIn);
+                }
+                int read = channel.read(netIn);
+                if (read == -1) return (produced > 0)? produced : -1;
+                if (read == 0) return produced;
+            }
+        }
+
+        public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            handshake(engine.getHandshakeStatus());
+            while (flush() && hasRemaining(srcs, offset, length)) {
+                SSLEngineResult result = wrap(srcs, offset, length);
+                handshake(result.getHandshakeStatus());
+                if (result.bytesConsumed() == 0) return; // the handshake is waiting on the peer
+            }
+        }
+
+        public boolean hasPendingOutput() {
+            return netOut.hasRemaining();
+        }
+
+        public boolean hasBufferedInput() {
+            return netIn.position() > 0;
+        }
+
+        public int minReadSpace() {
+            return engine.getSession().getApplicationBufferSize();
+        }
+
+        // sends close_notify if the socket will take it, the connection is closing either way
+        public void close() {
+            try {
+                engine.closeOutbound();
+                wrap(NOTHING, 0, NOTHING.length);
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+
+        // runs the handshake as far as it goes without hearing from the peer
+        private void handshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+            while (true) {
+                switch (status) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) task.run();
+                        break;
+                    case NEED_WRAP:
+                        wrap(NOTHING, 0, NOTHING.length);
+                        break;
+                    default:
+                        return;
+                }
+                status = engine.getHandshakeStatus();
+            }
+        }
+
+        private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            while (true) {
+                netOut.compact();
+                SSLEngineResult result;
+                try {
+                    result = engine.wrap(srcs, offset, length, netOut);
+                } finally {
+                    netOut.flip();
+                }
+
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    // earlier records are still waiting on the socket
+                    ByteBuffer bigger = ByteBuffer.allocate(netOut.remaining() + engine.getSession().getPacketBufferSize());
+                    netOut = bigger.put(netOut).flip();
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED && hasRemaining(srcs, offset, length))
+                    throw new IOException("Tls session is closed");
+
+                flush();
+                return result;
+            }
+        }
+
+        private boolean flush() throws IOException {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) return false;
+            }
+            return true;
+        }
+
+        private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                if (buffers[i].hasRemaining()) return true;
+            }
+            return false;
+        }
+    }
+
+    private SSLEngine createSslEngine() {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    // builds the tls context from the configured key store, or returns null when the server is plain http
+    private static SSLContext createSslContext(ServerConfig config) {
+        SSLContext context = config.sslContext;
+        if (context == null) {
+            if (config.keyStorePath == null) return null;
+
+            char[] password = (config.keyStorePassword != null)? config.keyStorePassword.toCharArray() : null;
+            try (InputStream in = Files.newInputStream(Path.of(config.keyStorePath))) {
+                KeyStore keyStore = KeyStore.getInstance(config.keyStoreType);
+                keyStore.load(in, password);
+                KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keyManagers.init(keyStore, password);
+                context = SSLContext.getInstance("TLS");
+                context.init(keyManagers.getKeyManagers(), null, null);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new ServerException("Failed to load key store " + config.keyStorePath, e);
+            }
+        }
+
+        // returning clients resume their session instead of doing a full handshake
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.tlsSessionCacheSize);
+        sessions.setSessionTimeout(config.tlsSessionTimeoutSeconds);
+        return context;
+    }
+
+
+    private static final byte[] HTTP2_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SWITCHING_TO_H2C = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final String HTTP2_VERSION = "HTTP/2";
+
+    // a connection error when the stream id is 0, otherwise only that stream is reset
+    private static class Http2Exception extends ServerException {
+        private static final long serialVersionUID = 1L;
+
+        private final int streamId;
+        private final int errorCode;
+
+        public Http2Exception(int streamId, int errorCode, String message) {
+            super(message, null);
+            this.streamId = streamId;
+            this.errorCode = errorCode;
+        }
+    }
+
+    private static class Http2Stream {
+        private final int id;
+        private String method;
+        private String path;
+        private Map<String, String> headers;
+        private byte[] body = HttpResponse.EMPTY;
+        private int bodyLength = 0;
+        private boolean tooLarge = false; // answered already, the rest of the body is dropped
+        private boolean remoteClosed = false; // the client has sent the whole request
+        private boolean localClosed = false; // the whole response has been sent
+        private boolean reset = false;
+        private long sendWindow;
+        private long receiveWindow;
+        private int unacknowledged = 0; // bytes received that the client hasn't been given a window update for
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>(); // response data waiting on flow control
+        private long pendingBytes = 0;
+        private boolean endPending = false; // end the stream once pending has been sent
+
+        public Http2Stream(int id, long sendWindow, long receiveWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+            this.receiveWindow = receiveWindow;
+        }
+
+        public void append(byte[] bytes, int offset, int length) {
+            if (bodyLength + length > body.length) body = Arrays.copyOf(body, Math.max(bodyLength + length, body.length * 2));
+            System.arraycopy(bytes, offset, body, bodyLength, length);
+            bodyLength += length;
+        }
+
+        public byte[] body() {
+            return (bodyLength == body.length)? body : Arrays.copyOf(body, bodyLength);
+        }
+    }
+
+
+    /**
+     * HTTP/2 over cleartext (h2c) on a NIO connection, started by prior knowledge or by an Upgrade: h2c request.
+     * Frames are parsed on the io thread and every stream's request goes to the endpoint workers on its own, so one
+     * slow endpoint doesn't hold up the other streams, and responses go out in whatever order they finish. Request
+     * bodies are buffered like they are for HTTP/1.1, with the window handed back to the client as they arrive.
+     * Response data is held per stream until the client's flow control windows let it through. Everything is
+     * guarded by this object's monitor, and frames are passed to the io thread while holding it so the order the
+     * header blocks were compressed in is the order they're sent in.
+     */
+    private class Http2Connection {
+        private static final int DATA = 0x0;
+        private static final int HEADERS = 0x1;
+        private static final int PRIORITY = 0x2;
+        private static final int RST_STREAM = 0x3;
+        private static final int SETTINGS = 0x4;
+        private static final int PUSH_PROMISE = 0x5;
+        private static final int PING = 0x6;
+        private static final int GOAWAY = 0x7;
+        private static final int WINDOW_UPDATE = 0x8;
+        private static final int CONTINUATION = 0x9;
+
+        private static final int END_STREAM = 0x1;
+        private static final int ACK = 0x1;
+        private static final int END_HEADERS = 0x4;
+        private static final int PADDED = 0x8;
+        private static final int PRIORITY_FLAG = 0x20;
+
+        private static final int NO_ERROR = 0x0;
+        private static final int PROTOCOL_ERROR = 0x1;
+        private static final int INTERNAL_ERROR = 0x2;
+        private static final int FLOW_CONTROL_ERROR = 0x3;
+        private static final int STREAM_CLOSED = 0x5;
+        private static final int FRAME_SIZE_ERROR = 0x6;
+        private static final int REFUSED_STREAM = 0x7;
+        private static final int CANCEL = 0x8;
+        private static final int COMPRESSION_ERROR = 0x9;
+
+        private static final int DEFAULT_WINDOW = 65535;
+        private static final int RECEIVE_WINDOW = 1 << 20; // per stream and for the connection
+        private static final int MAX_FRAME_SIZE = 16384; // the default, we never ask for bigger frames
+        private static final int HEADER_TABLE_SIZE = 4096;
+
+        private final NioConnection connection;
+        private final Hpack.Decoder decoder = new Hpack.Decoder(HEADER_TABLE_SIZE);
+        private final Hpack.Encoder encoder = new Hpack.Encoder(HEADER_TABLE_SIZE);
+        private final Map<Integer, Http2Stream> streams = new HashMap<>();
+        private final List<ByteBuffer> outbox = new ArrayList<>(); // frames built while holding the lock
+        private final List<Http2Stream> credited = new ArrayList<>(); // streams owed a window update
+        private boolean prefaceReceived = false;
+        private int lastStreamId = 0;
+        private long sendWindow = DEFAULT_WINDOW;
+        private long receiveWindow = DEFAULT_WINDOW;
+        private int unacknowledged = 0;
+        private int peerInitialWindow = DEFAULT_WINDOW;
+        private int peerMaxFrameSize = MAX_FRAME_SIZE;
+        private int headerStream = 0; // stream whose header block is continuing in CONTINUATION frames
+        private int headerFlags;
+        private ByteArrayOutputStream headerBlock;
+        private boolean goAwaySent = false;
+        private boolean goAwayReceived = false;
+        private boolean closeRequested = false; // close once the frames in the outbox have been handed over
+        private boolean closed = false;
+
+        public Http2Connection(NioConnection connection) {
+            this.connection = connection;
+        }
+
+        // sends our settings, and answers the request that asked to upgrade as stream 1
+        public synchronized void start(HttpRequest upgrade) {
+            ByteBuffer settings = ByteBuffer.allocate(12);
+            settings.putShort((short) 0x3).putInt(config.http2MaxConcurrentStreams);
+            settings.putShort((short) 0x4).putInt(RECEIVE_WINDOW);
+            frame(SETTINGS, 0, 0, settings.flip());
+            frame(WINDOW_UPDATE, 0, 0, ByteBuffer.allocate(4).putInt(RECEIVE_WINDOW - DEFAULT_WINDOW).flip());
+            receiveWindow = RECEIVE_WINDOW;
+
+            if (upgrade != null) {
+                // the settings came base64 encoded in a header, and the 101 counts as acknowledging them
+                String encoded = getHeader(upgrade.headers, "HTTP2-Settings");
+                try {
+                    applySettings(Base64.getUrlDecoder().decode(encoded.trim()));
+                } catch (IllegalArgumentException | Http2Exception e) {
+                    log.warning(String.format("HTTP/2 connection error %s", e.getMessage()));
+                    goAway(PROTOCOL_ERROR, "Malformed HTTP2-Settings header");
+                    flushOutbox();
+                    return;
+                }
+
+                Http2Stream stream = new Http2Stream(1, peerInitialWindow, RECEIVE_WINDOW);
+                stream.remoteClosed = true;
+                streams.put(1, stream);
+                lastStreamId = 1;
+                dispatch(stream, upgrade);
+            }
+            flushOutbox();
+        }
+
+        // consumes every complete frame in the buffer, leaving a partial one for next time
+        public synchronized void receive(ByteBuffer in) {
+            try {
+                if (!prefaceReceived) {
+                    int matched = prefaceMatch(in);
+                    if (matched == -1) throw new Http2Exception(0, PROTOCOL_ERROR, "Invalid connection preface");
+                    if (matched == 0) return;
+                    in.position(in.position() + HTTP2_PREFACE.length);
+                    prefaceReceived = true;
+                }
+
+                while (!closed && in.remaining() >= 9) {
+                    int start = in.position();
+                    int length = ((in.get(start) & 0xff) << 16) | ((in.get(start + 1) & 0xff) << 8) | (in.get(start + 2) & 0xff);
+                    if (length > MAX_FRAME_SIZE) throw new Http2Exception(0, FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+                    if (in.remaining() < 9 + length) break;
+
+                    int type = in.get(start + 3) & 0xff;
+                    int flags = in.get(start + 4) & 0xff;
+                    int streamId = in.getInt(start + 5) & 0x7fffffff;
+                    byte[] payload = new byte[length];
+                    in.position(start + 9);
+                    in.get(payload);
+
+                    try {
+                        onFrame(type, flags, streamId, payload);
+                    } catch (Http2Exception e) {
+                        if (e.streamId == 0) throw e;
+                        resetStream(e.streamId, e.errorCode);
+                    }
+                }
+                sendWindowUpdates();
+            } catch (Http2Exception e) {
+                log.warning(String.format("HTTP/2 connection error %s", e.getMessage()));
+                goAway(e.errorCode, e.getMessage());
+            }
+            flushOutbox();
+        }
+
+        public synchronized boolean isIdle() {
+            return streams.isEmpty() && headerStream == 0;
+        }
+
+        // tells the client no new streams will be accepted, the connection closes once the open ones finish
+        public synchronized void shutdown() {
+            goAway(NO_ERROR, null);
+            closeIfDone();
+            flushOutbox();
+        }
+
+        // the connection has closed, so release any worker waiting to send
+        public synchronized void closed() {
+            closed = true;
+            notifyAll();
+        }
+
+        private void onFrame(int type, int flags, int streamId, byte[] payload) {
+            if (headerStream != 0 && type != CONTINUATION)
+                throw new Http2Exception(0, PROTOCOL_ERROR, "Expected CONTINUATION for stream " + headerStream);
+
+            switch (type) {
+                case DATA:
+                    onData(flags, streamId, payload);
+                    break;
+                case HEADERS:
+                    onHeaders(flags, streamId, payload);
+                    break;
+                case CONTINUATION:
+                    if (streamId == 0 || streamId != headerStream)
+                        throw new Http2Exception(0, PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                    appendHeaderBlock(payload, 0, payload.length);
+                    if ((flags & END_HEADERS) != 0) endHeaders();
+                    break;
+                case PRIORITY:
+                    if (streamId == 0) throw new Http2Exception(0, PROTOCOL_ERROR, "PRIORITY on stream 0");
+                    if (payload.length != 5) throw new Http2Exception(streamId, FRAME_SIZE_ERROR, "PRIORITY of " + payload.length + " bytes");
+                    break;
+                case RST_STREAM:
+                    if (streamId == 0 || streamId > lastStreamId)
+                        throw new Http2Exception(0, PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+                    if (payload.length != 4) throw new Http2Exception(0, FRAME_SIZE_ERROR, "RST_STREAM of " + payload.length + " bytes");
+                    Http2Stream reset = streams.remove(streamId);
+                    if (reset != null) {
+                        reset.reset = true;
+                        notifyAll();
+                        closeIfDone();
+                    }
+                    break;
+                case SETTINGS:
+                    if (streamId != 0) throw new Http2Exception(0, PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+                    if ((flags & ACK) != 0) {
+                        if (payload.length != 0) throw new Http2Exception(0, FRAME_SIZE_ERROR, "SETTINGS ack with a payload");
+                        break;
+                    }
+                    applySettings(payload);
+                    frame(SETTINGS, ACK, 0, null);
+                    break;
+                case PUSH_PROMISE:
+                    throw new Http2Exception(0, PROTOCOL_ERROR, "Clients can't push");
+                case PING:
+                    if (streamId != 0) throw new Http2Exception(0, PROTOCOL_ERROR, "PING on stream " + streamId);
+                    if (payload.length != 8) throw new Http2Exception(0, FRAME_SIZE_ERROR, "PING of " + payload.length + " bytes");
+                    if ((flags & ACK) == 0) frame(PING, ACK, 0, ByteBuffer.wrap(payload));
+                    break;
+                case GOAWAY:
+                    if (streamId != 0) throw new Http2Exception(0, PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+                    goAwayReceived = true;
+                    closeIfDone();
+                    break;
+                case WINDOW_UPDATE:
+                    onWindowUpdate(streamId, payload);
+                    break;
+                default:
+                    // unknown frame types are ignored
+            }
+        }
+
+        private void onData(int flags, int streamId, byte[] payload) {
+            if (streamId == 0) throw new Http2Exception(0, PROTOCOL_ERROR, "DATA on stream 0");
+
+            // flow control counts the whole frame, padding included
+            receiveWindow -= payload.length;
+            if (receiveWindow < 0) throw new Http2Exception(0, FLOW_CONTROL_ERROR, "Connection window exceeded");
+            unacknowledged += payload.length;
+
+            Http2Stream stream = streams.get(streamId);
+            if (stream == null) {
+                if (streamId > lastStreamId) throw new Http2Exception(0, PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+                return; // a stream we've reset, the client may not have seen it yet
+            }
+            if (stream.remoteClosed) throw new Http2Exception(streamId, STREAM_CLOSED, "DATA on closed stream " + streamId);
+            stream.receiveWindow -= payload.length;
+            if (stream.receiveWindow < 0) throw new Http2Exception(streamId, FLOW_CONTROL_ERROR, "Stream window exceeded");
+
+            int offset = 0;
+            int end = payload.length;
+            if ((flags & PADDED) != 0) {
+                if (payload.length == 0) throw new Http2Exception(0, PROTOCOL_ERROR, "Missing pad length");
+                offset = 1;
+                end -= payload[0] & 0xff;
+                if (end < offset) throw new Http2Exception(0, PROTOCOL_ERROR, "Padding longer than the frame");
+            }
+
+            if (!stream.tooLarge && stream.bodyLength + end - offset > maxRequestSize) {
+                // answered the same way as an HTTP/1.1 request that's too big
+                stream.tooLarge = true;
+                ServerException e = new ServerException("Request exceeded maximum size of " + maxRequestSize, null);
+                respond(stream, new HttpResponse(500, handleErrorResponse(e).body));
+            }
+            if (!stream.tooLarge) stream.append(payload, offset, end - offset);
+
+            if ((flags & END_STREAM) != 0) {
+                stream.remoteClosed = true;
+                if (stream.tooLarge) removeIfDone(stream);
+                else dispatch(stream, request(stream));
+            }
+            else {
+                stream.unacknowledged += payload.length;
+                if (stream.unacknowledged == payload.length) credited.add(stream);
+            }
+        }
+
+        private void onHeaders(int flags, int streamId, byte[] payload) {
+            if (streamId == 0) throw new Http2Exception(0, PROTOCOL_ERROR, "HEADERS on stream 0");
+
+            int offset = 0;
+            int end = payload.length;
+            if ((flags & PADDED) != 0) {
+                if (payload.length == 0) throw new Http2Exception(0, PROTOCOL_ERROR, "Missing pad length");
+                offset = 1;
+                end -= payload[0] & 0xff;
+            }
+            if ((flags & PRIORITY_FLAG) != 0) offset += 5;
+            if (end < offset) throw new Http2Exception(0, PROTOCOL_ERROR, "Padding longer than the frame");
+
+            headerStream = streamId;
+            headerFlags = flags;
+            headerBlock = new ByteArrayOutputStream(end - offset);
+            appendHeaderBlock(payload, offset, end - offset);
+            if ((flags & END_HEADERS) != 0) endHeaders();
+        }
+
+        private void appendHeaderBlock(byte[] bytes, int offset, int length) {
+            if (headerBlock.size() + length > maxRequestSize)
+                throw new Http2Exception(0, PROTOCOL_ERROR, "Header block exceeded maximum size of " + maxRequestSize);
+            headerBlock.write(bytes, offset, length);
+        }
+
+        private void endHeaders() {
+            int streamId = headerStream;
+            boolean endStream = (headerFlags & END_STREAM) != 0;
+            headerStream = 0;
+
+            // always decoded, even for a stream that's refused, to keep the tables in step with the client's
+            List<String> fields = decoder.decode(headerBlock.toByteArray());
+            headerBlock = null;
+
+            Http2Stream stream = streams.get(streamId);
+            if (stream != null) {
+                // trailers, which endpoints don't see
+                if (stream.remoteClosed) throw new Http2Exception(streamId, STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+                if (!endStream) throw new Http2Exception(streamId, PROTOCOL_ERROR, "Trailers without END_STREAM");
+                stream.remoteClosed = true;
+                if (stream.tooLarge) removeIfDone(stream);
+                else dispatch(stream, request(stream));
+                return;
+            }
+
+            if (streamId % 2 == 0) throw new Http2Exception(0, PROTOCOL_ERROR, "HEADERS opening even stream " + streamId);
+            if (streamId <= lastStreamId) return; // trailers for a stream we've reset
+            lastStreamId = streamId;
+            if (goAwaySent) return;
+            if (!serverOn || streams.size() >= config.http2MaxConcurrentStreams)
+                throw new Http2Exception(streamId, REFUSED_STREAM, "Refused stream " + streamId);
+
+            stream = new Http2Stream(streamId, peerInitialWindow, RECEIVE_WINDOW);
+            readRequestHeaders(stream, fields);
+            streams.put(streamId, stream);
+            if (endStream) {
+                stream.remoteClosed = true;
+                dispatch(stream, request(stream));
+            }
+        }
+
+        private void readRequestHeaders(Http2Stream stream, List<String> fields) {
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            String authority = null;
+            for (int i = 0; i < fields.size(); i += 2) {
+                String name = fields.get(i);
+                String value = fields.get(i + 1);
+                if (name.startsWith(":")) {
+                    if (!headers.isEmpty()) throw new Http2Exception(stream.id, PROTOCOL_ERROR, "Pseudo header after a regular header");
+                    switch (name) {
+                        case ":method": stream.method = value; break;
+                        case ":path": stream.path = value; break;
+                        case ":authority": authority = value; break;
+                        case ":scheme": break;
+                        default: throw new Http2Exception(stream.id, PROTOCOL_ERROR, "Unknown pseudo header " + name);
+                    }
+                    continue;
+                }
+
+                // repeated headers are joined the way HTTP/1.1 would have sent them
+                String previous = headers.get(name);
+                if (previous == null) headers.put(name, value);
+                else headers.put(name, previous + (name.equals("cookie")? "; " : ", ") + value);
+            }
+            if (stream.method == null || stream.path == null || stream.path.isEmpty())
+                throw new Http2Exception(stream.id, PROTOCOL_ERROR, "Missing :method or :path");
+            if (authority != null && !headers.containsKey("Host")) headers.put("Host", authority);
+            stream.headers = headers;
+        }
+
+        private HttpRequest request(Http2Stream stream) {
+            return new HttpRequest(stream.method, stream.path, HTTP2_VERSION, stream.headers, stream.body());
+        }
+
+        private void onWindowUpdate(int streamId, byte[] payload) {
+            if (payload.length != 4) throw new Http2Exception(0, FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + payload.length + " bytes");
+            int increment = ByteBuffer.wrap(payload).getInt() & 0x7fffffff;
+            if (increment == 0) throw new Http2Exception(streamId, PROTOCOL_ERROR, "Window increment of 0");
+
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > Integer.MAX_VALUE) throw new Http2Exception(0, FLOW_CONTROL_ERROR, "Connection window overflow");
+                flushStreams();
+                return;
+            }
+            Http2Stream stream = streams.get(streamId);
+            if (stream == null) return; // already closed on our side
+            stream.sendWindow += increment;
+            if (stream.sendWindow > Integer.MAX_VALUE) throw new Http2Exception(streamId, FLOW_CONTROL_ERROR, "Stream window overflow");
+            flushStream(stream);
+            notifyAll();
+        }
+
+        private void applySettings(byte[] payload) {
+            if (payload.length % 6 != 0) throw new Http2Exception(0, FRAME_SIZE_ERROR, "SETTINGS of " + payload.length + " bytes");
+            ByteBuffer settings = ByteBuffer.wrap(payload);
+            while (settings.hasRemaining()) {
+                int id = settings.getShort() & 0xffff;
+                long value = settings.getInt() & 0xffffffffL;
+                switch (id) {
+                    case 0x1:
+                        encoder.setPeerTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                        break;
+                    case 0x2:
+                        if (value > 1) throw new Http2Exception(0, PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH of " + value);
+                        break;
+                    case 0x4:
+                        if (value > Integer.MAX_VALUE) throw new Http2Exception(0, FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE of " + value);
+                        // applies to the windows of streams already open too
+                        long delta = value - peerInitialWindow;
+                        peerInitialWindow = (int) value;
+                        for (Http2Stream stream : streams.values()) stream.sendWindow += delta;
+                        flushStreams();
+                        break;
+                    case 0x5:
+                        if (value < MAX_FRAME_SIZE || value > 0xffffff) throw new Http2Exception(0, PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE of " + value);
+                        peerMaxFrameSize = (int) value;
+                        break;
+                    default:
+                        // max concurrent streams and header list size only limit what we'd push or send, unknown ones are ignored
+                }
+            }
+        }
+
+        // gives the client back the window for request bytes we've taken in
+        private void sendWindowUpdates() {
+            if (unacknowledged > 0) {
+                frame(WINDOW_UPDATE, 0, 0, ByteBuffer.allocate(4).putInt(unacknowledged).flip());
+                receiveWindow += unacknowledged;
+                unacknowledged = 0;
+            }
+            for (Http2Stream stream : credited) {
+                if (!stream.remoteClosed && !stream.reset && stream.unacknowledged > 0) {
+                    frame(WINDOW_UPDATE, 0, stream.id, ByteBuffer.allocate(4).putInt(stream.unacknowledged).flip());
+                    stream.receiveWindow += stream.unacknowledged;
+                }
+                stream.unacknowledged = 0;
+            }
+            credited.clear();
+        }
+
+        private void dispatch(Http2Stream stream, HttpRequest request) {
+            InetAddress clientAddress = connection.channel.socket().getInetAddress();
+            submitAdmitted(() -> {
+                HttpResponse response;
+                if (isRateLimited(clientAddress)) {
+                    response = new HttpResponse(429, "Too Many Requests");
+                }
+                else {
+                    try {
+                        response = handleRequest(request);
+                    } catch (Exception e) {
+                        response = errorResponse(e);
+                    }
+                }
+
+                // an async endpoint gives the worker back, the response is sent from another once it's ready
+                if (response.pending != null) {
+                    HttpResponse waiting = response;
+                    // finishing is admitted like a new request, so the completing thread never serializes or writes
+                    waiting.completion.whenComplete((value, error) -> submitAdmitted(() -> {
+                        try {
+                            send(stream, awaitResponse(waiting.start()));
+                        } catch (RuntimeException e) {
+                            send(stream, errorResponse(e));
+                        }
+                    }, () -> respond(stream, overloadedResponse())));
+                    return;
+                }
+                send(stream, response);
+            }, () -> respond(stream, overloadedResponse()));
+        }
+
+        private HttpResponse errorResponse(Exception e) {
+            log.warning(String.format("Exception occured during request %s", e.toString()));
+            return new HttpResponse(500, handleErrorResponse(e).body);
+        }
+
+        private void send(Http2Stream stream, HttpResponse response) {
+            try {
+                respond(stream, response);
+            } catch (StreamingBodyException e) {
+                log.warning(String.format("Exception occured while streaming response %s", e.toString()));
+                synchronized (this) {
+                    resetStream(stream.id, INTERNAL_ERROR);
+                    flushOutbox();
+                }
+            }
+        }
+
+        // sends a response, on a worker unless it's one the server made up itself
+        private void respond(Http2Stream stream, HttpResponse response) {
+            if (response.events != null) {
+                synchronized (this) {
+                    if (stream.reset || closed) return;
+                    sendHeaders(stream, response, false);
+                    flushOutbox();
+                }
+                new Http2EventStream(stream, response.events).open();
+                return;
+            }
+            if (response.file != null && response.file.fromDisk()) {
+                synchronized (this) {
+                    if (stream.reset || closed) return;
+                    sendHeaders(stream, response, false);
+                    flushOutbox();
+                }
+                Http2OutputStream out = new Http2OutputStream(stream);
+                try (FileChannel channel = FileChannel.open(response.file.path, StandardOpenOption.READ)) {
+                    readFile(channel, response.file, buffers -> {
+                        for (ByteBuffer buffer : buffers) out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    });
+                    out.close();
+                } catch (IOException | RuntimeException e) {
+                    throw new StreamingBodyException(e);
+                }
+                return;
+            }
+            if (response.stream == null) {
+                synchronized (this) {
+                    if (stream.reset || closed) return;
+                    ByteBuffer body = (response.file != null && response.file.mapped != null)?
+                        response.file.mapped.duplicate() :
+                        ByteBuffer.wrap(response.body);
+                    boolean empty = response.bodyLength() == 0;
+                    sendHeaders(stream, response, empty);
+                    if (!empty) sendData(stream, body, true);
+                    flushOutbox();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                if (stream.reset || closed) return;
+                sendHeaders(stream, response, false);
+                flushOutbox();
+            }
+            Http2OutputStream out = new Http2OutputStream(stream);
+            try {
+                response.stream.writeTo(out);
+                out.close();
+            } catch (IOException | RuntimeException e) {
+                throw new StreamingBodyException(e);
+            } finally {
+                if (response.endpointMetrics != null) response.endpointMetrics.bytesOut.add(out.written);
+            }
+        }
+
+        private void sendHeaders(Http2Stream stream, HttpResponse response, boolean endStream) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+            encoder.encode(":status", Integer.toString(response.status), block);
+            encoder.encode("date", httpDate(), block);
+            encoder.encode("content-type", (response.contentType != null)? response.contentType : contentType, block);
+            if (response.stream == null && response.events == null && response.status != 204 && response.status != 304)
+                encoder.encode("content-length", Long.toString(response.contentLength()), block);
+            if (response.etag != null) encoder.encode("etag", response.etag, block);
+            if (response.headers != null) {
+                for (int i = 0; i < response.headers.size(); i += 2) {
+                    String name = response.headers.get(i).toLowerCase(Locale.ROOT);
+                    if (isConnectionHeader(name)) continue;
+                    encoder.encode(name, response.headers.get(i + 1), block);
+                }
+            }
+
+            // split over CONTINUATION frames if the block is bigger than a frame
+            byte[] bytes = block.toByteArray();
+            int offset = 0;
+            do {
+                int length = Math.min(peerMaxFrameSize, bytes.length - offset);
+                int flags = (offset + length == bytes.length)? END_HEADERS : 0;
+                if (offset == 0 && endStream) flags |= END_STREAM;
+                frame((offset == 0)? HEADERS : CONTINUATION, flags, stream.id, ByteBuffer.wrap(bytes, offset, length));
+                offset += length;
+            } while (offset < bytes.length);
+
+            if (endStream) {
+                stream.localClosed = true;
+                removeIfDone(stream);
+            }
+        }
+
+        private void sendData(Http2Stream stream, ByteBuffer data, boolean endStream) {
+            stream.pending.add(data);
+            stream.pendingBytes += data.remaining();
+            if (endStream) stream.endPending = true;
+            flushStream(stream);
+        }
+
+        // sends as much of a stream's pending data as the windows allow
+        private void flushStream(Http2Stream stream) {
+            while (!stream.reset && !stream.localClosed) {
+                ByteBuffer next = stream.pending.peek();
+                if (next != null && !next.hasRemaining()) {
+                    stream.pending.poll();
+                    continue;
+                }
+                if (next == null) {
+                    if (stream.endPending) endStream(stream, null);
+                    return;
+                }
+
+                int allowed = (int) Math.min(Math.min(sendWindow, stream.sendWindow), peerMaxFrameSize);
+                if (allowed <= 0) return;
+                int size = Math.min(allowed, next.remaining());
+                ByteBuffer slice = next.slice();
+                slice.limit(size);
+                next.position(next.position() + size);
+                if (!next.hasRemaining()) stream.pending.poll();
+                stream.pendingBytes -= size;
+                sendWindow -= size;
+                stream.sendWindow -= size;
+
+                if (stream.pending.isEmpty() && stream.endPending) endStream(stream, slice);
+                else frame(DATA, 0, stream.id, slice);
+            }
+        }
+
+        private void flushStreams() {
+            for (Http2Stream stream : new ArrayList<>(streams.values())) {
+                if (!stream.pending.isEmpty() || stream.endPending) flushStream(stream);
+            }
+            notifyAll();
+        }
+
+        private void endStream(Http2Stream stream, ByteBuffer lastData) {
+            frame(DATA, END_STREAM, stream.id, lastData);
+            stream.localClosed = true;
+            removeIfDone(stream);
+        }
+
+        private void resetStream(int streamId, int errorCode) {
+            frame(RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(errorCode).flip());
+            Http2Stream stream = streams.remove(streamId);
+            if (stream != null) {
+                stream.reset = true;
+                stream.pending.clear();
+                notifyAll();
+            }
+            closeIfDone();
+        }
+
+        private void removeIfDone(Http2Stream stream) {
+            if (!stream.localClosed || !stream.remoteClosed) return;
+            streams.remove(stream.id);
+            closeIfDone();
+        }
+
+        // once stopping, or told to go away, the connection closes after its last stream
+        private void closeIfDone() {
+            if (!streams.isEmpty() || headerStream != 0) return;
+            if (!serverOn) goAway(NO_ERROR, null);
+            if (goAwaySent || goAwayReceived) closeRequested = true;
+        }
+
+        private void goAway(int errorCode, String debug) {
+            if (!goAwaySent) {
+                byte[] debugBytes = (debug != null)? debug.getBytes(StandardCharsets.UTF_8) : HttpResponse.EMPTY;
+                ByteBuffer payload = ByteBuffer.allocate(8 + debugBytes.length).putInt(lastStreamId).putInt(errorCode).put(debugBytes);
+                frame(GOAWAY, 0, 0, payload.flip());
+                goAwaySent = true;
+            }
+            if (errorCode != NO_ERROR) {
+                closed = true;
+                closeRequested = true;
+                notifyAll();
+            }
+        }
+
+        private void frame(int type, int flags, int streamId, ByteBuffer payload) {
+            int length = (payload != null)? payload.remaining() : 0;
+            ByteBuffer header = ByteBuffer.allocate(9);
+            header.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+            header.put((byte) type).put((byte) flags).putInt(streamId);
+            outbox.add(header.flip());
+            if (length > 0) outbox.add(payload);
+        }
+
+        // hands the frames built so far to the io thread, the future completes once the socket has them
+        private CompletableFuture<Void> flushOutbox() {
+            CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+            if (!outbox.isEmpty()) {
+                written = connection.writeFrames(outbox.toArray(new ByteBuffer[0]));
+                outbox.clear();
+            }
+            if (closeRequested) connection.closeAfterWrites();
+            return written;
+        }
+
+        // called from a worker writing a streamed body, waits until the stream's earlier data has gone out
+        private void writeData(Http2Stream stream, byte[] bytes, boolean endStream) throws IOException {
+            CompletableFuture<Void> written;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + timeout;
+                while (stream.pendingBytes > 0 && !stream.reset && !closed) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) throw new SocketTimeoutException("Timed out waiting for the client's flow control window");
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted writing response", e);
+                    }
+                }
+                if (stream.reset || closed) throw new IOException("Stream " + stream.id + " was closed");
+                sendData(stream, ByteBuffer.wrap(bytes), endStream);
+                written = flushOutbox();
+            }
+
+            try {
+                written.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (java.util.concurrent.TimeoutException e) {
+                throw new SocketTimeoutException("Timed out writing response");
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to write response", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted writing response", e);
+            }
+        }
+
+        // events go straight into the stream's pending data, the backlog is whatever flow control is holding back
+        private class Http2EventStream extends EventStream {
+            private final Http2Stream stream;
+
+            public Http2EventStream(Http2Stream stream, EventPublisher publisher) {
+                super(publisher, eventStreams, config.maxEventBacklog);
+                this.stream = stream;
+            }
+
+            @Override
+            protected boolean write(byte[] event) {
+                synchronized (Http2Connection.this) {
+                    if (stream.reset || closed) return false;
+                    if (stream.pendingBytes + event.length > maxBacklog) {
+                        evict();
+                        return true;
+                    }
+                    sendData(stream, ByteBuffer.wrap(event), false);
+                    flushOutbox();
+                    return true;
+                }
+            }
+
+            @Override
+            protected void finish() {
+                synchronized (Http2Connection.this) {
+                    if (stream.reset || closed) return;
+                    sendData(stream, ByteBuffer.allocate(0), true);
+                    flushOutbox();
+                }
+            }
+
+            @Override
+            protected void abort() {
+                synchronized (Http2Connection.this) {
+                    if (stream.reset || closed) return;
+                    resetStream(stream.id, CANCEL);
+                    flushOutbox();
+                }
+            }
+        }
+
+        // a streamed body, sent as a DATA frame whenever a frame's worth is buffered or it's flushed
+        private class Http2OutputStream extends OutputStream {
+            private final Http2Stream stream;
+            private final byte[] buffer = new byte[MAX_FRAME_SIZE];
+            private int count = 0;
+            private long written = 0;
+            private boolean ended = false;
+
+            public Http2OutputStream(Http2Stream stream) {
+                this.stream = stream;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buffer.length) flush();
+                buffer[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    if (count == buffer.length) flush();
+                    int copied = Math.min(length, buffer.length - count);
+                    System.arraycopy(bytes, offset, buffer, count, copied);
+                    count += copied;
+                    offset += copied;
+                    length -= copied;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (count == 0 || ended) return;
+                writeData(stream, Arrays.copyOf(buffer, count), false);
+                written += count;
+                count = 0;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (ended) return;
+                writeData(stream, Arrays.copyOf(buffer, count), true);
+                written += count;
+                count = 0;
+                ended = true;
+            }
+        }
+    }
+
+    // 1 when the buffer starts with the HTTP/2 preface, 0 when it might once more has arrived, -1 when it doesn't
+    private static int prefaceMatch(ByteBuffer buffer) {
+        int available = Math.min(buffer.remaining(), HTTP2_PREFACE.length);
+        for (int i = 0; i < available; i++) {
+            if (buffer.get(buffer.position() + i) != HTTP2_PREFACE[i]) return -1;
+        }
+        return (available == HTTP2_PREFACE.length)? 1 : 0;
+    }
+
+    private static boolean isConnectionHeader(String name) {
+        switch (name) {
+            case "connection":
+            case "keep-alive":
+            case "transfer-encoding":
+            case "upgrade":
+            case "proxy-connection":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isH2cUpgrade(HttpRequest request) {
+        String upgrade = getHeader(request.headers, "Upgrade");
+        if (upgrade == null || getHeader(request.headers, "HTTP2-Settings") == null) return false;
+        if (request.body.length > 0 || request.bodyStream != null) return false; // the body would have to be read as HTTP/1.1 first
+
+        for (String protocol : upgrade.split(",")) {
+            if (protocol.trim().equalsIgnoreCase("h2c")) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * HPACK header compression for HTTP/2 (RFC 7541). Both ends of a connection keep a table of recently sent
+     * headers, so a header repeated across requests goes over the wire as a one byte index after the first time.
+     * Strings are huffman coded when that makes them shorter.
+     */
+    private static final class Hpack {
+        private static final int COMPRESSION_ERROR = 0x9; // the HTTP/2 error code for a bad header block
+
+        private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+            {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+            {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+        };
+        private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>(); // "name\nvalue" to index
+        private static final Map<String, Integer> STATIC_NAMES = new HashMap<>(); // name to its first index
+
+        // code lengths from RFC 7541 appendix B, symbol 256 is end of string. The code is canonical, so the codes
+        // themselves are rebuilt from the lengths
+        private static final int[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+        };
+        private static final int[] HUFFMAN_CODES = new int[HUFFMAN_LENGTHS.length];
+        private static final int[] HUFFMAN_TREE; // two slots per node, a child node or a leaf as -(symbol + 1)
+
+        static {
+            for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+                STATIC_FIELDS.put(STATIC_TABLE[i][0] + "\n" + STATIC_TABLE[i][1], i + 1);
+                STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            }
+
+            // canonical order is by length then symbol, each code is one more than the last shifted to its length
+            Integer[] symbols = new Integer[HUFFMAN_LENGTHS.length];
+            for (int i = 0; i < symbols.length; i++) symbols[i] = i;
+            Arrays.sort(symbols, (a, b) -> (HUFFMAN_LENGTHS[a] != HUFFMAN_LENGTHS[b])? HUFFMAN_LENGTHS[a] - HUFFMAN_LENGTHS[b] : a - b);
+            int code = 0;
+            for (int i = 0; i < symbols.length; i++) {
+                if (i > 0) code = (code + 1) << (HUFFMAN_LENGTHS[symbols[i]] - HUFFMAN_LENGTHS[symbols[i - 1]]);
+                HUFFMAN_CODES[symbols[i]] = code;
+            }
+
+            int[] tree = new int[2 * 2 * HUFFMAN_LENGTHS.length];
+            int nodes = 1;
+            for (int symbol = 0; symbol < HUFFMAN_LENGTHS.length; symbol++) {
+                int node = 0;
+                for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                    int slot = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                    if (tree[slot] == 0) tree[slot] = nodes++;
+                    node = tree[slot];
+                }
+                tree[2 * node + (HUFFMAN_CODES[symbol] & 1)] = -(symbol + 1);
+            }
+            HUFFMAN_TREE = tree;
+        }
+
+
+        // the header table one side of the connection keeps, newest entry last
+        private static final class DynamicTable {
+            private final ArrayList<String[]> entries = new ArrayList<>();
+            private int size = 0; // as counted by the rfc, 32 bytes of overhead per entry
+            private int maxSize;
+
+            public DynamicTable(int maxSize) {
+                this.maxSize = maxSize;
+            }
+
+            // index 0 is the newest entry
+            public String[] get(int index) {
+                return entries.get(entries.size() - 1 - index);
+            }
+
+            public int length() {
+                return entries.size();
+            }
+
+            public void add(String name, String value) {
+                int entrySize = entrySize(name, value);
+                evict(maxSize - entrySize);
+                if (entrySize > maxSize) return;
+                entries.add(new String[] {name, value});
+                size += entrySize;
+            }
+
+            public void setMaxSize(int maxSize) {
+                this.maxSize = maxSize;
+                evict(maxSize);
+            }
+
+            private void evict(int target) {
+                int evicted = 0;
+                while (size > target && evicted < entries.size()) {
+                    String[] oldest = entries.get(evicted++);
+                    size -= entrySize(oldest[0], oldest[1]);
+                }
+                entries.subList(0, evicted).clear();
+            }
+
+            private static int entrySize(String name, String value) {
+                return 32 + name.length() + value.length();
+            }
+        }
+
+
+        public static final class Decoder {
+            private final DynamicTable table;
+            private final int maxTableSize; // what we told the peer in SETTINGS_HEADER_TABLE_SIZE
+            private byte[] block;
+            private int position;
+
+            public Decoder(int maxTableSize) {
+                this.table = new DynamicTable(maxTableSize);
+                this.maxTableSize = maxTableSize;
+            }
+
+            // decodes a whole header block into name, value pairs
+            public List<String> decode(byte[] block) {
+                this.block = block;
+                this.position = 0;
+                List<String> fields = new ArrayList<>();
+                while (position < block.length) {
+                    int first = block[position] & 0xff;
+                    if ((first & 0x80) != 0) {
+                        String[] field = field(readInt(7));
+                        fields.add(field[0]);
+                        fields.add(field[1]);
+                    }
+                    else if ((first & 0x40) != 0) {
+                        int index = readInt(6);
+                        String name = (index == 0)? readString() : field(index)[0];
+                        String value = readString();
+                        table.add(name, value);
+                        fields.add(name);
+                        fields.add(value);
+                    }
+                    else if ((first & 0x20) != 0) {
+                        int size = readInt(5);
+                        if (size > maxTableSize) throw compressionError("Table size update over the limit");
+                        table.setMaxSize(size);
+                    }
+                    else {
+                        // literal without indexing, or never indexed
+                        int index = readInt(4);
+                        String name = (index == 0)? readString() : field(index)[0];
+                        fields.add(name);
+                        fields.add(readString());
+                    }
+                }
+                this.block = null;
+                return fields;
+            }
+
+            private String[] field(int index) {
+                if (index > 0 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+                int dynamicIndex = index - STATIC_TABLE.length - 1;
+                if (index <= 0 || dynamicIndex >= table.length()) throw compressionError("Header index " + index + " out of range");
+                return table.get(dynamicIndex);
+            }
+
+            private int readInt(int prefixBits) {
+                int max = (1 << prefixBits) - 1;
+                int value = block[position++] & max;
+                if (value < max) return value;
+
+                long total = value;
+                int shift = 0;
+                int next;
+                do {
+                    if (position >= block.length || shift > 28) throw compressionError("Malformed integer");
+                    next = block[position++] & 0xff;
+                    total += (long) (next & 0x7f) << shift;
+                    shift += 7;
+                } while ((next & 0x80) != 0);
+                if (total > Integer.MAX_VALUE) throw compressionError("Integer too large");
+                return (int) total;
+            }
+
+            private String readString() {
+                if (position >= block.length) throw compressionError("Truncated header block");
+                boolean huffman = (block[position] & 0x80) != 0;
+                int length = readInt(7);
+                if (length > block.length - position) throw compressionError("Truncated header block");
+                int start = position;
+                position += length;
+                return huffman? huffmanDecode(block, start, length) : new String(block, start, length, StandardCharsets.ISO_8859_1);
+            }
+
+            private static String huffmanDecode(byte[] bytes, int offset, int length) {
+                StringBuilder out = new StringBuilder(length * 8 / 5);
+                int node = 0;
+                int bitsSinceSymbol = 0;
+                boolean allOnes = true; // padding has to be a prefix of the end of string code, which is all ones
+                for (int i = offset; i < offset + length; i++) {
+                    int b = bytes[i] & 0xff;
+                    for (int bit = 7; bit >= 0; bit--) {
+                        int value = (b >>> bit) & 1;
+                        int next = HUFFMAN_TREE[2 * node + value];
+                        bitsSinceSymbol++;
+                        allOnes &= value == 1;
+                        if (next < 0) {
+                            int symbol = -next - 1;
+                            if (symbol == 256) throw compressionError("End of string symbol in huffman string");
+                            out.append((char) symbol);
+                            node = 0;
+                            bitsSinceSymbol = 0;
+                            allOnes = true;
+                        }
+                        else {
+                            node = next;
+                        }
+                    }
+                }
+                if (bitsSinceSymbol > 7 || !allOnes) throw compressionError("Invalid huffman padding");
+                return out.toString();
+            }
+        }
+
+
+        public static final class Encoder {
+            private final DynamicTable table;
+            private final int maxTableSize; // the most we'll use, even if the peer allows more
+            private int sizeUpdate = -1; // table size change the peer hasn't been told about yet
+
+            public Encoder(int maxTableSize) {
+                this.table = new DynamicTable(maxTableSize);
+                this.maxTableSize = maxTableSize;
+            }
+
+            // the peer's SETTINGS_HEADER_TABLE_SIZE
+            public void setPeerTableSize(int peerTableSize) {
+                int size = Math.min(peerTableSize, maxTableSize);
+                if (size == table.maxSize) return;
+                table.setMaxSize(size);
+                sizeUpdate = size;
+            }
+
+            public void encode(String name, String value, ByteArrayOutputStream out) {
+                if (sizeUpdate >= 0) {
+                    writeInt(out, 0x20, 5, sizeUpdate);
+                    sizeUpdate = -1;
+                }
+
+                Integer index = STATIC_FIELDS.get(name + "\n" + value);
+                int nameIndex = 0;
+                if (index != null) {
+                    writeInt(out, 0x80, 7, index);
+                    return;
+                }
+                for (int i = 0; i < table.length(); i++) {
+                    String[] entry = table.get(i);
+                    if (!entry[0].equals(name)) continue;
+                    if (entry[1].equals(value)) {
+                        writeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + i);
+                        return;
+                    }
+                    if (nameIndex == 0) nameIndex = STATIC_TABLE.length + 1 + i;
+                }
+                Integer staticName = STATIC_NAMES.get(name);
+                if (staticName != null) nameIndex = staticName;
+
+                // values that change with every response would only push useful entries out of the table
+                if (isIndexable(name)) {
+                    writeInt(out, 0x40, 6, nameIndex);
+                    table.add(name, value);
+                }
+                else {
+                    writeInt(out, 0x00, 4, nameIndex);
+                }
+                if (nameIndex == 0) writeString(out, name);
+                writeString(out, value);
+            }
+
+            private static boolean isIndexable(String name) {
+                switch (name) {
+                    case "content-length":
+                    case "etag":
+                    case "set-cookie":
+                    case "last-modified":
+                        return false;
+                    default:
+                        return true;
+                }
+            }
+
+            private static void writeInt(ByteArrayOutputStream out, int prefix, int prefixBits, int value) {
+                int max = (1 << prefixBits) - 1;
+                if (value < max) {
+                    out.write(prefix | value);
+                    return;
+                }
+                out.write(prefix | max);
+                value -= max;
+                while (value >= 0x80) {
+                    out.write((value & 0x7f) | 0x80);
+                    value >>>= 7;
+                }
+                out.write(value);
+            }
+
+            private static void writeString(ByteArrayOutputStream out, String value) {
+                long bits = 0;
+                for (int i = 0; i < value.length(); i++) bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xff];
+                int huffmanLength = (int) ((bits + 7) / 8);
+                if (huffmanLength >= value.length()) {
+                    writeInt(out, 0x00, 7, value.length());
+                    byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+                    out.write(bytes, 0, bytes.length);
+                    return;
+                }
+
+                writeInt(out, 0x80, 7, huffmanLength);
+                long buffer = 0;
+                int buffered = 0;
+                for (int i = 0; i < value.length(); i++) {
+                    int symbol = value.charAt(i) & 0xff;
+                    buffer = (buffer << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+                    buffered += HUFFMAN_LENGTHS[symbol];
+                    while (buffered >= 8) {
+                        buffered -= 8;
+                        out.write((int) (buffer >>> buffered));
+                    }
+                }
+                // pad with the start of the end of string code
+                if (buffered > 0) out.write((int) ((buffer << (8 - buffered)) | (0xff >>> buffered)));
+            }
+        }
+
+        private static Http2Exception compressionError(String message) {
+            return new Http2Exception(0, COMPRESSION_ERROR, message);
+        }
+    }
+
+    // doubles the buffer (kept in write mode) when a single line or chunk header doesn't fit
+    private static ByteBuffer growBuffer(ByteBuffer buffer, int maxRequestSize) {
+        if (buffer.capacity() > maxRequestSize)
+            throw new ServerException("Request exceeded maximum size of " + maxRequestSize, null);
+
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+
+    private class BlockingConnection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final ResponseBuffer responses = new ResponseBuffer();
+        private final RequestParser parser;
+        private ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private boolean broken = false; // a streamed response failed part way, so nothing else can be sent
+        private volatile boolean idle = false; // waiting for the next request, so stop can close it
+
+        public BlockingConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+            this.parser = new RequestParser(maxRequestSize, bodyStreamFactory(null, this::pumpBody));
+        }
+
+        public void run() throws IOException {
+
+            // keep the connection open until the client closes it or times out
+            while (!socket.isClosed()) {
+
+                // parse whatever has been read so far
+                buffer.flip();
+                HttpRequest request = parser.parse(buffer);
+                buffer.compact();
+
+                if (request == null) {
+                    // every pipelined request that was buffered has been answered, so send the batch before blocking on a read
+                    if (!responses.isEmpty()) responses.writeTo(out);
+
+                    // need more bytes
+                    idle = buffer.position() == 0 && !parser.inProgress();
+                    if (idle && !serverOn) break;
+                    boolean read = readMore();
+                    idle = false;
+                    if (!read) {
+                        // client closed the connection
+                        break;
+                    }
+                    continue;
+                }
+
+                // rate limit socket
+                if (isRateLimited(socket.getInetAddress())) {
+                    encodeResponse(new HttpResponse(429, "Too Many Requests"), false, responses);
+                    responses.writeTo(out);
+                    break;
+                }
+
+                // this engine holds the thread for the connection anyway, so it waits on async endpoints
+                HttpResponse response = handleRequest(request);
+                if (response.pending != null) response = awaitResponse(response);
+
+                // and writes event streams from it until they end, the connection closes after
+                if (response.events != null) {
+                    encodeResponse(response, false, responses);
+                    responses.writeTo(out);
+                    BlockingEventStream stream = new BlockingEventStream(response.events);
+                    stream.open();
+                    stream.pump();
+                    break;
+                }
+                boolean keepAlive = isKeepAlive(request) && serverOn;
+                encodeResponse(response, keepAlive, responses);
+                if (response.stream != null) {
+                    try {
+                        writeStreamingBody(response, responses, this::write);
+                    } catch (StreamingBodyException e) {
+                        broken = true;
+                        throw e;
+                    }
+                }
+                // the socket is a stream here, so the file is copied through a buffer
+                if (response.file != null && response.file.fromDisk()) {
+                    responses.writeTo(out);
+                    broken = true;
+                    try (FileChannel channel = FileChannel.open(response.file.path, StandardOpenOption.READ)) {
+                        readFile(channel, response.file, this::write);
+                    }
+                    broken = false;
+                }
+
+                // skip whatever the endpoint didn't read of a streamed body
+                if (request.bodyStream != null) {
+                    request.bodyStream.discardRest();
+                    while (parser.isStreamingBody()) pumpBody();
+                }
+
+                if (!keepAlive) {
+                    responses.writeTo(out);
+                    break;
+                }
+                if (responses.size() > ResponseBuffer.FLUSH_THRESHOLD) responses.writeTo(out);
+            }
+        }
+
+        private boolean readMore() throws IOException {
+            if (!buffer.hasRemaining()) buffer = growBuffer(buffer, maxRequestSize);
+            int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read == -1) return false;
+            buffer.position(buffer.position() + read);
+            return true;
+        }
+
+        // called by a streamed body when the endpoint has read everything buffered so far
+        private void pumpBody() throws IOException {
+            buffer.flip();
+            try {
+                parser.parse(buffer);
+            } catch (ServerException e) {
+                throw new IOException(e.getMessage(), e);
+            } finally {
+                buffer.compact();
+            }
+            if (parser.isStreamingBody() && !readMore())
+                throw new EOFException("Connection closed before the request body was complete");
+        }
+
+        private void write(ByteBuffer[] buffers) throws IOException {
+            for (ByteBuffer segment : buffers) {
+                out.write(segment.array(), segment.arrayOffset() + segment.position(), segment.remaining());
+            }
+            out.flush();
+        }
+
+        public void closeIfIdle() {
+            if (idle) close();
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.warning(String.format("Failed to close connection %s", e.toString()));
+            }
+        }
+
+        // sends anything still buffered followed by a response for a failed connection
+        public void sendFinalResponse(HttpResponse response) {
+            if (broken) return;
+            try {
+                encodeResponse(response, false, responses);
+                responses.writeTo(out);
+            } catch (IOException e) {
+                log.warning(String.format("Failed to send response %s", e.toString()));
+            }
+        }
+
+        // events are queued for the connection's thread, which writes them as chunks
+        private class BlockingEventStream extends EventStream {
+            private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+            private final AtomicLong backlog = new AtomicLong();
+            private volatile boolean aborted = false;
+
+            public BlockingEventStream(EventPublisher publisher) {
+                super(publisher, eventStreams, config.maxEventBacklog);
+            }
+
+            @Override
+            protected boolean write(byte[] event) {
+                if (backlog.addAndGet(event.length) > maxBacklog) {
+                    evict();
+                    return true;
+                }
+                queue.add(event);
+                return true;
+            }
+
+            @Override
+            protected void finish() {
+                queue.add(END_OF_STREAM);
+            }
+
+            @Override
+            protected void abort() {
+                aborted = true;
+                queue.add(END_OF_STREAM);
+            }
+
+            // writes events until the stream ends, the client goes away or the thread is interrupted by stop
+            public void pump() throws IOException {
+                try {
+                    byte[] event;
+                    while ((event = queue.take()) != END_OF_STREAM && !aborted) {
+                        BlockingConnection.this.write(ChunkedOutputStream.chunk(event));
+                        backlog.addAndGet(-event.length);
+                    }
+                    if (!aborted) BlockingConnection.this.write(new ByteBuffer[] { ByteBuffer.wrap(ChunkedOutputStream.LAST_CHUNK) });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    broken = true;
+                    closed();
+                }
+            }
+        }
+    }
+
+    private static final byte[] END_OF_STREAM = new byte[0]; // queued to stop a blocking event stream
+
+    // creates the body stream for requests whose endpoint reads the body as a stream, null for buffered bodies
+    private BiFunction<String, String, BodyInputStream> bodyStreamFactory(Runnable onSpace, BodyPump pump) {
+        if (!hasStreamingEndpoints) return null;
+        return (method, target) -> {
+            int queryStart = target.indexOf('?');
+            Router.Match<EndpointInvoker> match = router.find((queryStart == -1)? target : target.substring(0, queryStart));
+            EndpointInvoker endpoint = (match == null)? null : match.handler(method);
+            if (endpoint == null || !endpoint.streamsBody) return null;
+            return new BodyInputStream(BODY_STREAM_CAPACITY, timeout, onSpace, pump);
+        };
+    }
+
+    // writes the buffered head, then the body as chunks through the sink
+    private void writeStreamingBody(HttpResponse response, ResponseBuffer responses, ByteSink sink) throws IOException {
+        sink.write(responses.segments());
+        responses.reset();
+
+        ChunkedOutputStream out = new ChunkedOutputStream(sink);
+        try (out) {
+            response.stream.writeTo(out);
+        } catch (IOException | RuntimeException e) {
+            // the head is already sent, so the connection can only be closed
+            throw new StreamingBodyException(e);
+        } finally {
+            if (response.endpointMetrics != null) response.endpointMetrics.bytesOut.add(out.written);
+        }
+    }
+
+    // reads a file's range through one buffer, for connections that can't take it with transferTo. The sink has to be
+    // done with the buffer when it returns
+    private static void readFile(FileChannel channel, FileBody file, ByteSink sink) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(file.length, 65536));
+        long position = file.offset;
+        long end = file.offset + file.length;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read == -1) throw new EOFException("File shrank while it was being sent");
+            position += read;
+            sink.write(new ByteBuffer[] { buffer.flip() });
+        }
+    }
+
+    private static boolean isKeepAlive(HttpRequest request) {
+        String connection = request.headers.get("Connection");
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+
+    private HttpResponse handleRequest(HttpRequest request) {
+        long start = System.nanoTime();
+        metrics.parse.record(request.parseNanos);
+
+        HttpResponse response;
+        try {
+            response = route(request);
+        } catch (EndpointFailure e) {
+            // already counted against the endpoint
+            throw (RuntimeException) e.getCause();
+        } catch (RuntimeException e) {
+            metrics.unmatched.record(500, request.body.length, 0, System.nanoTime() - start);
+            throw e;
+        }
+
+        // an async endpoint is counted once its future completes
+        if (response.pending != null) {
+            response.pending = response.pending.handle((resolved, error) -> {
+                if (error == null) return recordResponse(request, resolved, start);
+
+                Throwable cause = completionCause(error);
+                if (cause instanceof EndpointFailure) throw (RuntimeException) cause.getCause();
+                metrics.unmatched.record(500, request.body.length, 0, System.nanoTime() - start);
+                throw new CompletionException(cause);
+            });
+            return response;
+        }
+        return recordResponse(request, response, start);
+    }
+
+    private HttpResponse recordResponse(HttpRequest request, HttpResponse response, long start) {
+        EndpointMetrics endpointMetrics = (response.endpointMetrics != null)? response.endpointMetrics : metrics.unmatched;
+        long bytesIn = (request.bodyStream != null)? request.bodyStream.received() : request.body.length;
+        endpointMetrics.record(response.status, bytesIn, response.bodyLength(), System.nanoTime() - start);
+        return response;
+    }
+
+    // waits for an async endpoint and builds its response on this thread, for callers that keep their thread anyway
+    private static HttpResponse awaitResponse(HttpResponse response) {
+        response.completion.handle((value, error) -> null).join();
+        return awaitResponse(response.start());
+    }
+
+    private static HttpResponse awaitResponse(CompletableFuture<HttpResponse> pending) {
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            Throwable cause = completionCause(e);
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new ServerException("Async endpoint failed", (Exception) cause);
+        }
+    }
+
+    private static Throwable completionCause(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    private HttpResponse route(HttpRequest request) {
+
+        // check http type
+        if (!"HTTP/1.1".equals(request.version) && !HTTP2_VERSION.equals(request.version))
+            return new HttpResponse(505, "HTTP Version Not Supported");
+
+        // check for host header
+        if (!request.headers.containsKey("Host"))
+            return new HttpResponse(400, "Bad Request: Missing 'Host' header");
+
+        // built in metrics page, whatever query string comes with it
+        if (config.metricsPath != null && "GET".equals(request.method) && isMetricsPath(request.target)) {
+            HttpResponse response = new HttpResponse(200, metrics.prometheus());
+            response.contentType = "text/plain; version=0.0.4";
+            response.endpointMetrics = metrics.endpoint("GET " + config.metricsPath);
+            return compressResponse(request, response);
+        }
+
+        // files under a mapped directory, anything that isn't a file there falls through to the endpoints
+        if (staticFiles != null && ("GET".equals(request.method) || "HEAD".equals(request.method))) {
+            HttpResponse response = staticResponse(request);
+            if (response != null) return response;
+        }
+
+        // get the response from the endpoint methods
+        HttpResponse response = getResponseFromClass(request);
+        return compressResponse(request, response);
+    }
+
+    // answers conditional and range requests for a static file, null when there's no file at the path
+    private HttpResponse staticResponse(HttpRequest request) {
+        int queryStart = request.target.indexOf('?');
+        String path = (queryStart == -1)? request.target : request.target.substring(0, queryStart);
+        StaticFile file = staticFiles.find(path);
+        if (file == null) return null;
+
+        HttpResponse response = staticResponse(request, file);
+        response.endpointMetrics = metrics.endpoint(request.method + " " + file.mount + "/*");
+        response.contentType = file.contentType;
+        response.header("Last-Modified", file.lastModified);
+        response.header("Accept-Ranges", "bytes");
+        return response;
+    }
+
+    private HttpResponse staticResponse(HttpRequest request, StaticFile file) {
+        boolean head = "HEAD".equals(request.method);
+
+        Instant since = parseHttpDate(getHeader(request.headers, "If-Modified-Since"));
+        if (since != null && file.modifiedSeconds <= since.getEpochSecond()) return new HttpResponse(304, HttpResponse.EMPTY);
+
+        // a range is only honoured if the client's copy is still the current one
+        String range = getHeader(request.headers, "Range");
+        String ifRange = getHeader(request.headers, "If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(file.lastModified))) {
+            long[] bounds = parseRange(range, file.size);
+            if (bounds == null) {
+                // not a single byte range, so the whole file is sent
+                return new HttpResponse(200, file.body(0, file.size, head));
+            }
+            if (bounds.length == 0) {
+                return new HttpResponse(416, HttpResponse.EMPTY).header("Content-Range", "bytes */" + file.size);
+            }
+            long length = bounds[1] - bounds[0] + 1;
+            return new HttpResponse(206, file.body(bounds[0], length, head))
+                .header("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + file.size);
+        }
+        return new HttpResponse(200, file.body(0, file.size, head));
+    }
+
+    // first and last byte of a single "bytes=" range, an empty array when it's past the end, null to ignore it
+    private static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) return null;
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) return null;
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // the last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || size == 0) return new long[0];
+                return new long[] { Math.max(0, size - suffix), size - 1 };
+            }
+            long start = Long.parseLong(first);
+            if (start >= size) return new long[0];
+            long end = size - 1;
+            if (!last.isEmpty()) {
+                long requested = Long.parseLong(last);
+                if (requested < start) return null;
+                end = Math.min(requested, end);
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Instant parseHttpDate(String value) {
+        if (value == null) return null;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    // compresses bodies over the threshold with the best encoding the client accepts
+    private HttpResponse compressResponse(HttpRequest request, HttpResponse response) {
+        if (response.pending != null) {
+            response.pending = response.pending.thenApply(resolved -> compressResponse(request, resolved));
+            return response;
+        }
+        // events have to reach the client as they're published, and files go out as they are on disk
+        if (response.events != null || response.file != null) return response;
+        int threshold = config.compressionThreshold;
+
+        // a 304 repeats the tag of the representation the client would have been sent
+        if (response.status == 304 && response.cached != null) {
+            if (threshold < 0 || response.cached.body.length < threshold) return response;
+            ContentEncoding encoding = ContentEncoding.negotiate(getHeader(request.headers, "Accept-Encoding"));
+            if (encoding != null) response.etag = CachedResponse.encodedTag(response.etag, encoding);
+            return response.header("Vary", "Accept-Encoding");
+        }
+
+        if (threshold < 0 || response.body.length == 0 && response.stream == null) return response;
+        if (response.stream == null && response.body.length < threshold) return response;
+
+        ContentEncoding encoding = ContentEncoding.negotiate(getHeader(request.headers, "Accept-Encoding"));
+        if (encoding == null) return response.header("Vary", "Accept-Encoding");
+
+        HttpResponse compressed;
+        if (response.stream != null) {
+            StreamingBody body = response.stream;
+            compressed = new HttpResponse(response.status, (StreamingBody) out -> {
+                CompressingOutputStream compressing = compression.outputStream(encoding, out);
+                try {
+                    body.writeTo(compressing);
+                    compressing.finish();
+                } finally {
+                    compressing.release();
+                }
+            });
+        }
+        else if (response.cached != null) {
+            compressed = new HttpResponse(response.status, response.cached.compressed(encoding, compression));
+        }
+        else {
+            compressed = new HttpResponse(response.status, compression.compress(encoding, response.body));
+        }
+
+        if (response.headers != null) compressed.headers = response.headers;
+        compressed.contentType = response.contentType;
+        compressed.endpointMetrics = response.endpointMetrics;
+        // each encoding is its own representation, so it gets its own tag
+        if (response.etag != null) compressed.etag = CachedResponse.encodedTag(response.etag, encoding);
+        return compressed
+            .header("Content-Encoding", encoding.token)
+            .header("Vary", "Accept-Encoding");
+    }
+
+    // header names are matched ignoring case, checking the usual spelling first
+    private static String getHeader(Map<String, String> headers, String name) {
+        String value = headers.get(name);
+        if (value != null) return value;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) return header.getValue();
+        }
+        return null;
+    }
+
+    private boolean isRateLimited(InetAddress clientAddress) {
+        if (rateLimiter.tryAcquire(clientAddress)) return false;
+        metrics.rateLimited.increment();
+
+        String message = String.format(
+            "client went over the configured rate limit of %d requests per minute (Potential DOS attack). Client Address %s (Closing connection now)",
+            this.maxRequestsPerMinute,
+            clientAddress.toString()
+        );
+        log.severe(message);
+        return true;
+    }
+
+
+    private static final int BODY_STREAM_CAPACITY = 65536;
+
+    // encodes the status line, headers and body with CRLF line endings straight into the buffer
+    private void encodeResponse(HttpResponse response, boolean keepAlive, ResponseBuffer out) {
+        out.ascii("HTTP/1.1 ");
+        out.number(response.status);
+        out.ascii(" ");
+        String reason = statusCodes.get(response.status);
+        if (reason != null) out.ascii(reason);
+        out.crlf();
+
+        out.header("Date", httpDate());
+        out.header("Content-Type", (response.contentType != null)? response.contentType : this.contentType);
+        if (response.stream != null || response.events != null) {
+            out.header("Transfer-Encoding", "chunked");
+        }
+        else if (response.status != 204 && response.status != 304) {
+            out.ascii("Content-Length: ");
+            out.number(response.contentLength());
+            out.crlf();
+        }
+        if (response.etag != null) out.header("ETag", response.etag);
+        if (response.headers != null) {
+            for (int i = 0; i < response.headers.size(); i += 2) {
+                out.header(response.headers.get(i), response.headers.get(i + 1));
+            }
+        }
+        out.header("Connection", keepAlive? "keep-alive" : "close");
+        out.crlf();
+
+        out.body(response.body);
+        // cached files go out with the head, others are sent from disk after it
+        if (response.file != null && response.file.mapped != null) out.body(response.file.mapped);
+    }
+
+    private static volatile CachedDate cachedDate = new CachedDate(0, "");
+
+    // the Date header only changes once a second, so it's formatted once a second
+    private static String httpDate() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate date = cachedDate;
+        if (date.second != second) {
+            date = new CachedDate(second, ZonedDateTime.now(ZoneOffset.UTC).format(DateTimeFormatter.RFC_1123_DATE_TIME));
+            cachedDate = date;
+        }
+        return date.value;
+    }
+
+    public ErrorResponse handleErrorResponse(Exception e) {
+        StringBuilder body = new StringBuilder("{ \"message\" : \"Encountered exception processing request: ");
+        String message = e.getMessage();
+        String cause = e.getCause() == null? "" : e.getCause().getMessage();
+
+        if (message != null) body.append(message);
+        if (cause != null) body.append(" ").append(cause);
+
+        body.append(" \" }");
+        return new ErrorResponse(
+            500, 
+            body.toString()
+        );
+    }
+
+    private boolean isMetricsPath(String target) {
+        String path = config.metricsPath;
+        return target.startsWith(path) && (target.length() == path.length() || target.charAt(path.length()) == '?');
+    }
+
+    private HttpResponse getResponseFromClass(HttpRequest request) {
+        
+        // /hot-dog?burnt=false&sauce=mustard
+
+        // split the target into path and query
+        String target = request.target;
+        int queryStart = target.indexOf('?');
+        String resourceString = (queryStart == -1)? target : target.substring(0, queryStart);
+
+        // find the endpoint method for the path and verb
+        Router.Match<EndpointInvoker> match = router.find(resourceString);
+        if (match == null)
+            return new HttpResponse(404, "Not Found");
+        EndpointInvoker endpoint = match.handler(request.method);
+        if (endpoint == null)
+            return new HttpResponse(405, "Method Not Allowed");
+
+        // only finds where the params are, they're decoded when an argument asks for one
+        QueryParams params = new QueryParams(target, queryStart);
+
+        // cached endpoints skip the method and serializer on a hit
+        ResponseCache cache = endpoint.cache;
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = cache.key(request.method, resourceString, params, request.headers);
+            CachedResponse cached = cache.get(cacheKey);
+            if (cached != null) {
+                endpoint.metrics.cacheHits.increment();
+                return cachedResponse(request, cached, endpoint);
+            }
+        }
+
+        // undo any content encoding on the body
+        byte[] body = request.body;
+        InputStream bodyStream = request.bodyStream;
+        String contentEncoding = getHeader(request.headers, "Content-Encoding");
+        if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) {
+            ContentEncoding encoding = ContentEncoding.of(contentEncoding);
+            if (encoding == null)
+                return new HttpResponse(415, "Unsupported Media Type: Content-Encoding " + contentEncoding);
+            try {
+                if (bodyStream != null) bodyStream = compression.inputStream(encoding, bodyStream);
+                else body = compression.decompress(encoding, body, this.maxRequestSize);
+            } catch (IOException | DataFormatException e) {
+                return new HttpResponse(400, "Bad Request: Malformed " + encoding.token + " body");
+            }
+        }
+
+        // call method and serialize result
+        EndpointCall call = new EndpointCall(params, request.headers, body, bodyStream, match.variables);
+        long dispatchStart = System.nanoTime();
+        Object result;
+        try {
+            result = endpoint.invoke(call);
+        } catch (RuntimeException e) {
+            endpoint.metrics.record(500, body.length, 0, System.nanoTime() - dispatchStart);
+            throw new EndpointFailure(e);
+        }
+
+        // an async endpoint's response is built once its future completes, on the worker the connection hands it
+        // to with HttpResponse.start rather than the thread that completed it
+        if (result instanceof CompletionStage) {
+            int bodyLength = body.length;
+            String finalCacheKey = cacheKey;
+            CompletableFuture<Object> completion = new CompletableFuture<>();
+            ((CompletionStage<?>) result).whenComplete((value, error) -> {
+                if (error != null) completion.completeExceptionally(error);
+                else completion.complete(value);
+            });
+            CompletableFuture<Object> started = new CompletableFuture<>();
+            HttpResponse response = new HttpResponse(completion.orTimeout(timeout, TimeUnit.MILLISECONDS), started, started
+                .handle((value, error) -> {
+                    if (error == null) return resultResponse(request, endpoint, value, finalCacheKey, bodyLength, dispatchStart);
+
+                    endpoint.metrics.record(500, bodyLength, 0, System.nanoTime() - dispatchStart);
+                    Throwable cause = completionCause(error);
+                    if (cause instanceof RuntimeException) throw new EndpointFailure((RuntimeException) cause);
+                    if (cause instanceof TimeoutException) throw new EndpointFailure(new ServerException("Async endpoint didn't complete within " + timeout + "ms", null));
+                    throw new EndpointFailure(new ServerException("Async endpoint failed", (cause instanceof Exception)? (Exception) cause : null));
+                }));
+            response.endpointMetrics = endpoint.metrics;
+            return response;
+        }
+        return resultResponse(request, endpoint, result, cacheKey, body.length, dispatchStart);
+    }
+
+    // turns what an endpoint returned into its response
+    private HttpResponse resultResponse(HttpRequest request, EndpointInvoker endpoint, Object result, String cacheKey, int bodyLength, long dispatchStart) {
+        ResponseCache cache = endpoint.cache;
+        long serializeStart = System.nanoTime();
+        endpoint.metrics.dispatch.record(serializeStart - dispatchStart);
+        int status = successCodes.get(request.method);
+
+        // streamed results are written as chunks after the head
+        HttpResponse response;
+        if (result instanceof StreamingBody) {
+            response = new HttpResponse(status, (StreamingBody) result);
+        }
+        else if (result instanceof Iterator) {
+            response = new HttpResponse(status, iteratorBody((Iterator<?>) result));
+        }
+        else if (result instanceof EventPublisher) {
+            response = new HttpResponse(status, (EventPublisher) result);
+            response.contentType = "text/event-stream";
+            response.header("Cache-Control", "no-cache");
+        }
+        else {
+            String responseString;
+            try {
+                responseString = this.serializer.apply(result, serializerObject);
+            } 
+            catch (Exception e) {
+                endpoint.metrics.record(500, bodyLength, 0, System.nanoTime() - dispatchStart);
+                throw new EndpointFailure(new ServerException("Error serializing result from endpoint", e));
+            }
+            endpoint.metrics.serialize.record(System.nanoTime() - serializeStart);
+
+            if (cache != null) {
+                CachedResponse cached = cache.put(cacheKey, status, responseString.getBytes(StandardCharsets.UTF_8));
+                return cachedResponse(request, cached, endpoint);
+            }
+
+            // send success response
+            response = new HttpResponse(status, responseString);
+        }
+        response.endpointMetrics = endpoint.metrics;
+        return response;
+    }
+
+    // a 304 when the client already has this version, otherwise the cached body
+    private HttpResponse cachedResponse(HttpRequest request, CachedResponse cached, EndpointInvoker endpoint) {
+        HttpResponse response = cached.matches(getHeader(request.headers, "If-None-Match"))?
+            new HttpResponse(304, HttpResponse.EMPTY) :
+            new HttpResponse(cached.status, cached.body);
+        response.etag = cached.etag;
+        response.cached = cached;
+        response.endpointMetrics = endpoint.metrics;
+        return response;
+    }
+
+    // serializes each element as it's written, one per line
+    private StreamingBody iteratorBody(Iterator<?> iterator) {
+        return out -> {
+            while (iterator.hasNext()) {
+                String element;
+                try {
+                    element = this.serializer.apply(iterator.next(), serializerObject);
+                } catch (Exception e) {
+                    throw new IOException("Error serializing element from endpoint", e);
+                }
+                out.write(element.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+        };
+    }
+
+    // decodes %XX escapes as utf 8, returning the same string when there's nothing to decode
+    private static String percentDecode(String value) {
+        if (value.indexOf('%') == -1) return value;
+        return percentDecode(value, 0, value.length(), false);
+    }
+
+    // decodes part of a string, with + as a space in query strings
+    private static String percentDecode(String value, int start, int end, boolean plusIsSpace) {
+        byte[] bytes = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c == '%' && i + 2 < end) {
+                int high = Character.digit(value.charAt(i + 1), 16);
+                int low = Character.digit(value.charAt(i + 2), 16);
+                if (high != -1 && low != -1) {
+                    bytes[length++] = (byte) ((high << 4) + low);
+                    i += 2;
+                    continue;
+                }
+            }
+            if (c == '+' && plusIsSpace) {
+                bytes[length++] = ' ';
+            }
+            else if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            }
+            else {
+                // a character outside the BMP is a surrogate pair, encoded together as one code point
+                int codePoint = c;
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    codePoint = Character.toCodePoint(c, value.charAt(++i));
+                }
+                byte[] encoded = Character.toString(codePoint).getBytes(StandardCharsets.UTF_8);
+                if (length + encoded.length > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length + (end - start) * 3);
+                System.arraycopy(encoded, 0, bytes, length, encoded.length);
+                length += encoded.length;
+            }
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The query string of a request target, tokenized in one pass into the offsets of each name and value without
+     * copying anything. Names and values are only decoded when an endpoint argument asks for them, and names that
+     * need no decoding are compared in place. A name with no = has an empty value, empty pieces like && are skipped,
+     * and a name given more than once keeps every value in order.
+     */
+    private static class QueryParams {
+        private static final int[] NONE = new int[0];
+
+        private final String target;
+        private int[] offsets = NONE; // name start, name end, value start, value end for each param
+        private int count = 0;
+
+        public QueryParams(String target, int queryStart) {
+            this.target = target;
+            if (queryStart == -1) return;
+
+            int end = target.length();
+            int start = queryStart + 1;
+            while (start < end) {
+                int ampersand = target.indexOf('&', start);
+                if (ampersand == -1) ampersand = end;
+                if (ampersand > start) {
+                    int equals = target.indexOf('=', start);
+                    if (equals == -1 || equals > ampersand) equals = ampersand;
+                    add(start, equals, Math.min(equals + 1, ampersand), ampersand);
+                }
+                start = ampersand + 1;
+            }
+        }
+
+        private void add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            if (offsets.length == count * 4) offsets = Arrays.copyOf(offsets, Math.max(16, offsets.length * 2));
+            offsets[count * 4] = nameStart;
+            offsets[count * 4 + 1] = nameEnd;
+            offsets[count * 4 + 2] = valueStart;
+            offsets[count * 4 + 3] = valueEnd;
+            count++;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        // the first value given for the name, null if there's none
+        public String get(String name) {
+            for (int i = 0; i < count; i++) {
+                if (nameEquals(i, name)) return decode(offsets[i * 4 + 2], offsets[i * 4 + 3]);
+            }
+            return null;
+        }
+
+        // every value given for the name, in the order they came
+        public List<String> getAll(String name) {
+            List<String> values = new ArrayList<>(2);
+            for (int i = 0; i < count; i++) {
+                if (nameEquals(i, name)) values.add(decode(offsets[i * 4 + 2], offsets[i * 4 + 3]));
+            }
+            return values;
+        }
+
+        // decoded name=value pairs in sorted order, the same for any order the params came in
+        public List<String> sortedPairs() {
+            List<String> pairs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                pairs.add(decode(offsets[i * 4], offsets[i * 4 + 1]) + "=" + decode(offsets[i * 4 + 2], offsets[i * 4 + 3]));
+            }
+            Collections.sort(pairs);
+            return pairs;
+        }
+
+        private boolean nameEquals(int index, String name) {
+            int start = offsets[index * 4];
+            int end = offsets[index * 4 + 1];
+            if (needsDecoding(start, end)) return decode(start, end).equals(name);
+            return end - start == name.length() && target.regionMatches(start, name, 0, name.length());
+        }
+
+        private String decode(int start, int end) {
+            if (start == end) return "";
+            return needsDecoding(start, end)? percentDecode(target, start, end, true) : target.substring(start, end);
+        }
+
+        private boolean needsDecoding(int start, int end) {
+            for (int i = start; i < end; i++) {
+                char c = target.charAt(i);
+                if (c == '%' || c == '+') return true;
+            }
+            return false;
+        }
+    }
+
+    private static class EndpointCall {
+        private final QueryParams params;
+        private final Map<String, String> headers;
+        private final byte[] body;
+        private final InputStream bodyStream; // null unless the endpoint streams its body
+        private final String[] pathVariables;
+
+        public EndpointCall(QueryParams params, Map<String, String> headers, byte[] body, InputStream bodyStream, String[] pathVariables) {
+            this.params = params;
+            this.headers = headers;
+            this.body = body;
+            this.bodyStream = bodyStream;
+            this.pathVariables = pathVariables;
+        }
+    }
+
+    @FunctionalInterface
+    private static interface ArgumentExtractor {
+        Object extract(EndpointCall call) throws Exception;
+    }
+
+    /**
+     * An endpoint method resolved once when the server is created. The parameter annotations are read up front
+     * into one extractor per argument, and the method is bound to this server as a spreading MethodHandle,
+     * so a request only runs the extractors and a single invokeExact.
+     */
+    private class EndpointInvoker {
+        private final Method method;
+        private final MethodHandle handle; // (Object[])Object
+        private final ArgumentExtractor[] extractors;
+        private final boolean[] primitive;
+        private boolean streamsBody = false; // has an InputStream or ReadableByteChannel @Body
+        private final EndpointMetrics metrics;
+        private final ResponseCache cache; // null unless the method is @Cached
+
+        public EndpointInvoker(Method method, List<String> pathVariableNames, EndpointMetrics metrics) {
+            this.method = method;
+            this.metrics = metrics;
+            Cached cached = method.getAnnotation(Cached.class);
+            this.cache = (cached != null)? new ResponseCache(cached) : null;
+
+            Parameter[] methodParams = method.getParameters();
+            this.extractors = new ArgumentExtractor[methodParams.length];
+            this.primitive = new boolean[methodParams.length];
+            for (int i = 0; i < methodParams.length; i++) {
+                extractors[i] = createExtractor(methodParams[i], pathVariableNames);
+                primitive[i] = methodParams[i].getType().isPrimitive();
+            }
+
+            try {
+                // subclasses may be non public or in another package
+                method.setAccessible(true);
+                this.handle = MethodHandles.lookup().unreflect(method)
+                    .bindTo(Server.this)
+                    .asSpreader(Object[].class, methodParams.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+            } catch (IllegalAccessException | RuntimeException e) {
+                throw new ServerException("Matching endpoint method wasn't public or had some other failure " + method.getName(), e);
+            }
+        }
+
+        private ArgumentExtractor createExtractor(Parameter param, List<String> pathVariableNames) {
+            Class<?> type = param.getType();
+
+            if (param.getAnnotation(Body.class) != null) {
+                if (type == InputStream.class) {
+                    streamsBody = true;
+                    return call -> call.bodyStream;
+                }
+                if (type == ReadableByteChannel.class) {
+                    streamsBody = true;
+                    return call -> Channels.newChannel(call.bodyStream);
+                }
+
+                Type bodyType = param.getParameterizedType();
+                return call -> {
+                    try {
+                        return deserializer.apply(new String(call.body, StandardCharsets.UTF_8), bodyType, serializerObject);
+                    } catch (Exception e) {
+                        throw new ServerException("Error deserializing body to type " + bodyType.getTypeName(), e);
+                    }
+                };
+            }
+
+            // the converter for the parameter's type is found now rather than on every request
+            Param paramAnnotation = param.getAnnotation(Param.class);
+            if (paramAnnotation != null) {
+                if (paramAnnotation.value().isEmpty())
+                    throw new ServerException("Param annotation is missing a value used to match to query params", null);
+                String name = paramAnnotation.value();
+                // a list takes every value of a repeated param, ?id=1&id=2
+                Converter<?> element = listElementConverter(param);
+                if (element != null) return call -> convertAll(call.params.getAll(name), element);
+                Converter<?> converter = converter(param);
+                return call -> convert(call.params.get(name), converter);
+            }
+
+            Header headerAnnotation = param.getAnnotation(Header.class);
+            if (headerAnnotation != null) {
+                String name = headerAnnotation.value();
+                // a list takes the comma separated values of the header
+                Converter<?> element = listElementConverter(param);
+                if (element != null) return call -> convertAll(splitList(call.headers.get(name)), element);
+                Converter<?> converter = converter(param);
+                return call -> convert(call.headers.get(name), converter);
+            }
+
+            PathVariable pathVariableAnnotation = param.getAnnotation(PathVariable.class);
+            if (pathVariableAnnotation != null) {
+                int index = pathVariableNames.indexOf(pathVariableAnnotation.value());
+                if (index == -1)
+                    throw new ServerException("PathVariable '" + pathVariableAnnotation.value() + "' isn't in the path of " + method.getName(), null);
+                Converter<?> element = listElementConverter(param);
+                if (element != null) return call -> convertAll(splitList(call.pathVariables[index]), element);
+                Converter<?> converter = converter(param);
+                return call -> convert(call.pathVariables[index], converter);
+            }
+
+            return call -> null;
+        }
+
+        private Converter<?> converter(Parameter param) {
+            Converter<?> converter = converters.find(param.getType());
+            if (converter == null)
+                throw new ServerException("No converter for " + param.getType().getName() + " parameter '" + param.getName() + "' of " + method.getName() + ", register one with ServerConfig.converter", null);
+            return converter;
+        }
+
+        // the converter for the elements of a List parameter, null if it isn't one
+        private Converter<?> listElementConverter(Parameter param) {
+            if (param.getType() != List.class) return null;
+            Type type = param.getParameterizedType();
+            Type element = (type instanceof ParameterizedType)? ((ParameterizedType) type).getActualTypeArguments()[0] : String.class;
+            if (element instanceof ParameterizedType) element = ((ParameterizedType) element).getRawType();
+            Converter<?> converter = (element instanceof Class)? converters.find((Class<?>) element) : null;
+            if (converter == null)
+                throw new ServerException("No converter for the elements of List parameter '" + param.getName() + "' of " + method.getName() + ", register one with ServerConfig.converter", null);
+            return converter;
+        }
+
+        public Object invoke(EndpointCall call) {
+            Object[] arguments = new Object[extractors.length];
+            for (int i = 0; i < extractors.length; i++) {
+                Object argument;
+                try {
+                    argument = extractors[i].extract(call);
+                } catch (ServerException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new ServerException("Couldn't convert provided arguments to method types", e);
+                }
+                if (argument == null && primitive[i])
+                    throw new ServerException("Couldn't convert provided arguments to method types, missing value for primitive argument " + i, null);
+                arguments[i] = argument;
+            }
+
+            try {
+                return (Object) handle.invokeExact(arguments);
+            } catch (RuntimeException e) {
+                throw new ServerException("Endpoint method " + method.getName() + " threw an exception", e);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new ServerException("Endpoint method " + method.getName() + " threw an exception", (Exception) e);
+            }
+        }
+    }
+
+    private static Object convert(String value, Converter<?> converter) throws Exception {
+        return (value == null)? null : converter.convert(value);
+    }
+
+    private static List<Object> convertAll(List<String> values, Converter<?> converter) throws Exception {
+        List<Object> converted = new ArrayList<>(values.size());
+        for (String value : values) {
+            Object element = converter.convert(value);
+            if (element != null) converted.add(element);
+        }
+        return converted;
+    }
+
+    private static List<String> splitList(String value) {
+        if (value == null) return new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (String part : value.split(",")) {
+            String trimmed = part.trim();
+            if (!trimmed.isEmpty()) values.add(trimmed);
+        }
+        return values;
+    }
+
+
+    /**
+     * Turns the text of a query param, header or path variable into an argument of a given type. Add one with
+     * ServerConfig.converter for a type the server doesn't know.
+     */
+    @FunctionalInterface
+    public static interface Converter<T> {
+        T convert(String value) throws Exception;
+    }
+
+    /**
+     * The converters endpoint arguments are bound with, looked up once per parameter when the routes are built.
+     * Registered converters come first, then the built in ones for strings, primitives and their boxes, big numbers,
+     * UUIDs and java.time types, then enums by name (ignoring case if there's no exact match). Any other class with a
+     * static valueOf(String), static fromString(String) or a String constructor is converted with that.
+     */
+    private static class Converters {
+        private static final Map<Class<?>, Converter<?>> BUILT_IN = new HashMap<>();
+        static {
+            BUILT_IN.put(String.class, value -> value);
+            BUILT_IN.put(Object.class, value -> value);
+            BUILT_IN.put(CharSequence.class, value -> value);
+            Converter<Boolean> bool = Boolean::parseBoolean;
+            BUILT_IN.put(boolean.class, bool);
+            BUILT_IN.put(Boolean.class, bool);
+            Converter<Integer> integer = Integer::parseInt;
+            BUILT_IN.put(int.class, integer);
+            BUILT_IN.put(Integer.class, integer);
+            Converter<Long> longValue = Long::parseLong;
+            BUILT_IN.put(long.class, longValue);
+            BUILT_IN.put(Long.class, longValue);
+            Converter<Short> shortValue = Short::parseShort;
+            BUILT_IN.put(short.class, shortValue);
+            BUILT_IN.put(Short.class, shortValue);
+            Converter<Byte> byteValue = Byte::parseByte;
+            BUILT_IN.put(byte.class, byteValue);
+            BUILT_IN.put(Byte.class, byteValue);
+            Converter<Double> doubleValue = Double::parseDouble;
+            BUILT_IN.put(double.class, doubleValue);
+            BUILT_IN.put(Double.class, doubleValue);
+            Converter<Float> floatValue = Float::parseFloat;
+            BUILT_IN.put(float.class, floatValue);
+            BUILT_IN.put(Float.class, floatValue);
+            Converter<Character> character = value -> {
+                if (value.length() != 1) throw new IllegalArgumentException("Expected a single character but got '" + value + "'");
+                return value.charAt(0);
+            };
+            BUILT_IN.put(char.class, character);
+            BUILT_IN.put(Character.class, character);
+            BUILT_IN.put(BigDecimal.class, BigDecimal::new);
+            BUILT_IN.put(BigInteger.class, BigInteger::new);
+            BUILT_IN.put(UUID.class, UUID::fromString);
+            BUILT_IN.put(LocalDate.class, LocalDate::parse);
+            BUILT_IN.put(LocalDateTime.class, LocalDateTime::parse);
+            BUILT_IN.put(LocalTime.class, LocalTime::parse);
+            BUILT_IN.put(OffsetDateTime.class, OffsetDateTime::parse);
+            BUILT_IN.put(ZonedDateTime.class, ZonedDateTime::parse);
+            BUILT_IN.put(Instant.class, Instant::parse);
+            BUILT_IN.put(Duration.class, Duration::parse);
+            BUILT_IN.put(java.util.Date.class, value -> java.util.Date.from(Instant.parse(value)));
+        }
+
+        private final Map<Class<?>, Converter<?>> registered;
+
+        public Converters(Map<Class<?>, Converter<?>> registered) {
+            this.registered = registered;
+        }
+
+        // null if nothing can convert to the type
+        public Converter<?> find(Class<?> type) {
+            Converter<?> converter = registered.get(type);
+            if (converter == null) converter = BUILT_IN.get(type);
+            if (converter == null && type.isEnum()) converter = enumConverter(type);
+            if (converter == null) converter = factoryConverter(type);
+            if (converter == null || type.isAssignableFrom(String.class)) return converter;
+
+            // ?count= is no value rather than a bad number
+            Converter<?> nonEmpty = converter;
+            return value -> value.isEmpty()? null : nonEmpty.convert(value);
+        }
+
+        private static Converter<?> enumConverter(Class<?> type) {
+            Map<String, Object> constants = new HashMap<>();
+            Map<String, Object> ignoringCase = new HashMap<>();
+            for (Object constant : type.getEnumConstants()) {
+                String name = ((Enum<?>) constant).name();
+                constants.put(name, constant);
+                ignoringCase.put(name.toLowerCase(Locale.ROOT), constant);
+            }
+            return value -> {
+                Object constant = constants.get(value);
+                if (constant == null) constant = ignoringCase.get(value.toLowerCase(Locale.ROOT));
+                if (constant == null) throw new IllegalArgumentException("'" + value + "' isn't one of " + constants.keySet());
+                return constant;
+            };
+        }
+
+        private static Converter<?> factoryConverter(Class<?> type) {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodType fromString = MethodType.methodType(type, String.class);
+            MethodHandle factory = null;
+            for (String name : new String[] { "valueOf", "fromString" }) {
+                try {
+                    factory = lookup.findStatic(type, name, fromString);
+                    break;
+                } catch (NoSuchMethodException | IllegalAccessException e) {
+                    // try the next way of making one
+                }
+            }
+            if (factory == null) {
+                try {
+                    factory = lookup.findConstructor(type, MethodType.methodType(void.class, String.class));
+                } catch (NoSuchMethodException | IllegalAccessException e) {
+                    return null;
+                }
+            }
+
+            MethodHandle handle = factory.asType(MethodType.methodType(Object.class, String.class));
+            return value -> {
+                try {
+                    return (Object) handle.invokeExact(value);
+                } catch (Exception | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new ServerException("Failed converting '" + value + "' to " + type.getName(), null);
+                }
+            };
+        }
+    }
+
+
+    public String readInputStream(InputStream requestBody) throws IOException {
+        try (InputStreamReader isr = new InputStreamReader(requestBody, StandardCharsets.UTF_8);
+            BufferedReader br = new BufferedReader(isr)) {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null) {
+                sb.append(line);
+            }
+            return sb.toString();
+        }
+    }
+
+
+
+    // helper classes
+    public static class ServerException extends RuntimeException {
+        public ServerException(String message, Exception cause) {
+            super(message, cause);
+        }
+    }
+
+    // carries an endpoint's exception past handleRequest once it's been counted
+    private static class EndpointFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public EndpointFailure(RuntimeException cause) {
+            super(cause);
+        }
+    }
+
+    // thrown when a streamed response fails after its head was sent
+    private static class StreamingBodyException extends ServerException {
+        private static final long serialVersionUID = 1L;
+
+        public StreamingBodyException(Exception cause) {
+            super("Failed writing streamed response body", cause);
+        }
+    }
+
+
+    /**
+     * Return this from an endpoint method to write the response body as it's produced instead of building it up
+     * front. It's sent with chunked transfer encoding, so anything flushed goes out as a chunk.
+     */
+    @FunctionalInterface
+    public static interface StreamingBody {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Return one from an endpoint method to answer with a stream of Server-Sent Events. Every connection the
+     * endpoint returns it to is subscribed, and each published event is encoded once and handed to all of them.
+     * Subscribers don't hold a thread on the NIO engine (HTTP/1.1 and HTTP/2), only a queue of what their socket
+     * hasn't taken yet, and one that falls further behind than ServerConfig.maxEventBacklog is disconnected. Idle
+     * streams are sent a comment every ServerConfig.eventHeartbeatSeconds so proxies keep them open and dead clients
+     * are noticed. Closing the publisher ends every stream.
+     */
+    public static class EventPublisher {
+        private final Set<EventStream> subscribers = ConcurrentHashMap.newKeySet();
+        private volatile boolean closed = false;
+
+        public void publish(String data) {
+            publish(null, null, data);
+        }
+
+        public void publish(String event, String data) {
+            publish(null, event, data);
+        }
+
+        public void publish(String id, String event, String data) {
+            if (closed) throw new ServerException("Event publisher is closed", null);
+            byte[] encoded = encode(id, event, data);
+            for (EventStream subscriber : subscribers) subscriber.send(encoded);
+        }
+
+        public int subscribers() {
+            return subscribers.size();
+        }
+
+        public void close() {
+            closed = true;
+            for (EventStream subscriber : subscribers) subscriber.end();
+        }
+
+        private void subscribe(EventStream subscriber) {
+            subscribers.add(subscriber);
+            if (closed) subscriber.end();
+        }
+
+        private void unsubscribe(EventStream subscriber) {
+            subscribers.remove(subscriber);
+        }
+
+        private static byte[] encode(String id, String event, String data) {
+            StringBuilder out = new StringBuilder(data.length() + 32);
+            if (id != null) field(out, "id", id);
+            if (event != null) field(out, "event", event);
+            // each line is its own data field, the client joins them back together with newlines
+            for (String line : data.split("\r\n|\r|\n", -1)) out.append("data: ").append(line).append('\n');
+            return out.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static void field(StringBuilder out, String name, String value) {
+            if (value.indexOf('\n') != -1 || value.indexOf('\r') != -1)
+                throw new ServerException("Event " + name + " can't contain a line break", null);
+            out.append(name).append(": ").append(value).append('\n');
+        }
+    }
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    // one connection's subscription to a publisher, each engine writes events its own way
+    private static abstract class EventStream {
+        private final EventPublisher publisher;
+        private final Set<EventStream> open; // the server's streams, for heartbeats and stop
+        private final AtomicBoolean done = new AtomicBoolean();
+        protected final long maxBacklog;
+        private volatile boolean active = false; // something was sent since the last heartbeat
+
+        public EventStream(EventPublisher publisher, Set<EventStream> open, long maxBacklog) {
+            this.publisher = publisher;
+            this.open = open;
+            this.maxBacklog = maxBacklog;
+        }
+
+        public void open() {
+            open.add(this);
+            publisher.subscribe(this);
+        }
+
+        // called on the publishing thread
+        public void send(byte[] event) {
+            if (done.get()) return;
+            active = true;
+            if (!write(event)) closed();
+        }
+
+        // only streams that were idle since the last one need a heartbeat
+        public void heartbeat() {
+            if (!active && !done.get() && !write(HEARTBEAT)) closed();
+            active = false;
+        }
+
+        // the publisher closed or the server is stopping, the stream ends once what's queued has been sent
+        public void end() {
+            if (remove()) finish();
+        }
+
+        // too far behind, its queue is dropped and it's disconnected
+        public void evict() {
+            if (!remove()) return;
+            log.warning("Disconnecting slow event stream subscriber, more than " + maxBacklog + " bytes behind");
+            abort();
+        }
+
+        // the connection has gone away
+        public void closed() {
+            remove();
+        }
+
+        private boolean remove() {
+            if (!done.compareAndSet(false, true)) return false;
+            open.remove(this);
+            publisher.unsubscribe(this);
+            return true;
+        }
+
+        protected abstract boolean write(byte[] event); // hands the event to the connection without waiting, false once it's gone
+        protected abstract void finish();
+        protected abstract void abort();
+    }
+
+    
+    public static class ErrorResponse {
+        private final int statusCode;
+        private String body;
+
+        public ErrorResponse(int statusCode, String body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+    }
+
+
+    private static class HttpResponse {
+        private static final byte[] EMPTY = new byte[0];
+
+        private final int status;
+        private final byte[] body;
+        private final StreamingBody stream; // sent chunked instead of the body when set
+        private EventPublisher events; // the connection subscribes to it instead of sending a body when set
+        private FileBody file; // sent instead of the body when set
+        private List<String> headers; // name, value pairs
+        private String contentType; // overrides the server's content type when set
+        private EndpointMetrics endpointMetrics; // endpoint that produced the response, for counting streamed bytes
+        private String etag;
+        private CachedResponse cached; // cache entry the body came from, so compressed copies are kept with it
+        private CompletableFuture<HttpResponse> pending; // the real response, while an async endpoint hasn't finished
+        private CompletableFuture<?> completion; // the async endpoint's own future, pending doesn't run until start
+        private CompletableFuture<Object> started; // where pending begins
+
+        public HttpResponse(int status, String body) {
+            this(status, (body == null)? EMPTY : body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public HttpResponse(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+            this.stream = null;
+        }
+
+        public HttpResponse(int status, StreamingBody stream) {
+            this.status = status;
+            this.body = EMPTY;
+            this.stream = stream;
+        }
+
+        public HttpResponse(int status, FileBody file) {
+            this(status, EMPTY);
+            this.file = file;
+        }
+
+        public HttpResponse(int status, EventPublisher events) {
+            this(status, EMPTY);
+            this.events = events;
+        }
+
+        public HttpResponse(CompletableFuture<?> completion, CompletableFuture<Object> started, CompletableFuture<HttpResponse> pending) {
+            this(0, EMPTY);
+            this.completion = completion;
+            this.started = started;
+            this.pending = pending;
+        }
+
+        // hands the async endpoint's result on to pending. Called once completion is done, building, serializing
+        // and compressing the response then all run on this thread instead of the one that completed the endpoint
+        public CompletableFuture<HttpResponse> start() {
+            completion.whenComplete((value, error) -> {
+                if (error != null) started.completeExceptionally(error);
+                else started.complete(value);
+            });
+            return pending;
+        }
+
+        // what Content-Length says, a HEAD response is the same length as the GET's without sending it
+        public long contentLength() {
+            return (file != null)? file.length : body.length;
+        }
+
+        // what's actually sent after the head
+        public long bodyLength() {
+            if (file != null) return file.head? 0 : file.length;
+            return body.length;
+        }
+
+        public HttpResponse header(String name, String value) {
+            if (headers == null) headers = new ArrayList<>(4);
+            headers.add(name);
+            headers.add(value);
+            return this;
+        }
+    }
+
+
+    private static class CachedDate {
+        private final long second;
+        private final String value;
+
+        public CachedDate(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * Reusable output buffer for encoded responses. Status lines, headers and small bodies are copied into one
+     * growing byte array, while large bodies are kept as their own segment instead of being copied. The segments
+     * are then sent together, with a gathering write on nio channels or back to back writes on a stream.
+     */
+    private static class ResponseBuffer {
+        private static final int INLINE_BODY_LIMIT = 8192;
+        private static final int FLUSH_THRESHOLD = 65536;
+
+        private byte[] bytes = new byte[4096];
+        private int length = 0;
+        private int segmentStart = 0;
+        private int size = 0;
+        private final List<ByteBuffer> segments = new ArrayList<>();
+
+        public void ascii(String value) {
+            ensureCapacity(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                bytes[length++] = (byte) value.charAt(i);
+            }
+            size += value.length();
+        }
+
+        public void number(long value) {
+            if (value < 0) {
+                ascii("-");
+                value = -value;
+            }
+            int digits = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) digits++;
+
+            ensureCapacity(digits);
+            for (int i = length + digits - 1; i >= length; i--) {
+                bytes[i] = (byte) ('0' + (value % 10));
+                value /= 10;
+            }
+            length += digits;
+            size += digits;
+        }
+
+        public void crlf() {
+            ensureCapacity(2);
+            bytes[length++] = '\r';
+            bytes[length++] = '\n';
+            size += 2;
+        }
+
+        public void header(String name, String value) {
+            ascii(name);
+            ascii(": ");
+            ascii(value);
+            crlf();
+        }
+
+        public void body(byte[] body) {
+            if (body.length <= INLINE_BODY_LIMIT) {
+                ensureCapacity(body.length);
+                System.arraycopy(body, 0, bytes, length, body.length);
+                length += body.length;
+            }
+            else {
+                cutSegment();
+                segments.add(ByteBuffer.wrap(body));
+            }
+            size += body.length;
+        }
+
+        // a buffer that isn't ours, like a mapped file, is always its own segment
+        public void body(ByteBuffer body) {
+            cutSegment();
+            segments.add(body.duplicate());
+            size += body.remaining();
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public ByteBuffer[] segments() {
+            cutSegment();
+            return segments.toArray(new ByteBuffer[0]);
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            for (ByteBuffer segment : segments()) {
+                if (segment.hasArray()) out.write(segment.array(), segment.arrayOffset() + segment.position(), segment.remaining());
+                else Channels.newChannel(out).write(segment);
+            }
+            out.flush();
+            reset();
+        }
+
+        public void reset() {
+            length = 0;
+            segmentStart = 0;
+            size = 0;
+            segments.clear();
+        }
+
+        private void cutSegment() {
+            if (length > segmentStart) segments.add(ByteBuffer.wrap(bytes, segmentStart, length - segmentStart));
+            segmentStart = length;
+        }
+
+        private void ensureCapacity(int extra) {
+            // segments already cut keep pointing at the old array, so growing never moves bytes out from under them
+            if (length + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+
+
+    private static enum ContentEncoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String token;
+
+        private ContentEncoding(String token) {
+            this.token = token;
+        }
+
+        public static ContentEncoding of(String token) {
+            token = token.trim();
+            if (token.equalsIgnoreCase("gzip") || token.equalsIgnoreCase("x-gzip")) return GZIP;
+            if (token.equalsIgnoreCase("deflate")) return DEFLATE;
+            return null;
+        }
+
+        // picks gzip over deflate from an Accept-Encoding header, skipping anything with q=0
+        public static ContentEncoding negotiate(String acceptEncoding) {
+            if (acceptEncoding == null) return null;
+
+            boolean gzip = false, deflate = false, any = false;
+            boolean gzipListed = false, deflateListed = false;
+            for (String part : acceptEncoding.split(",")) {
+                int parameters = part.indexOf(';');
+                String name = ((parameters == -1)? part : part.substring(0, parameters)).trim();
+                boolean accepted = parameters == -1 || qualityOf(part.substring(parameters + 1)) > 0;
+
+                if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                    gzip = accepted;
+                    gzipListed = true;
+                }
+                else if (name.equalsIgnoreCase("deflate")) {
+                    deflate = accepted;
+                    deflateListed = true;
+                }
+                else if (name.equals("*")) {
+                    any = accepted;
+                }
+            }
+
+            if (gzip || (any && !gzipListed)) return GZIP;
+            if (deflate || (any && !deflateListed)) return DEFLATE;
+            return null;
+        }
+
+        private static double qualityOf(String parameters) {
+            for (String parameter : parameters.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+            return 1;
+        }
+    }
+
+
+    /**
+     * Gzip and deflate for response and request bodies. Deflaters and inflaters hold native memory that's only
+     * freed by end() or the gc, so they're pooled and reset between bodies instead of created per request. Gzip
+     * is written as its header and trailer around a raw deflate stream, so it shares the same pooled objects.
+     */
+    private static class Compression {
+        private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+        private static final int FEXTRA = 4, FNAME = 8, FCOMMENT = 16, FHCRC = 2;
+
+        private final Pool<Deflater> rawDeflaters;
+        private final Pool<Deflater> zlibDeflaters;
+        private final Pool<Inflater> rawInflaters;
+        private final Pool<Inflater> zlibInflaters;
+
+        public Compression(int level, int poolSize) {
+            this.rawDeflaters = new Pool<>(poolSize, () -> new Deflater(level, true), Deflater::reset, Deflater::end);
+            this.zlibDeflaters = new Pool<>(poolSize, () -> new Deflater(level, false), Deflater::reset, Deflater::end);
+            this.rawInflaters = new Pool<>(poolSize, () -> new Inflater(true), Inflater::reset, Inflater::end);
+            this.zlibInflaters = new Pool<>(poolSize, () -> new Inflater(false), Inflater::reset, Inflater::end);
+        }
+
+        // frees the native memory of everything pooled
+        public void close() {
+            rawDeflaters.close();
+            zlibDeflaters.close();
+            rawInflaters.close();
+            zlibInflaters.close();
+        }
+
+        public byte[] compress(ContentEncoding encoding, byte[] body) {
+            boolean gzip = encoding == ContentEncoding.GZIP;
+            Pool<Deflater> pool = gzip? rawDeflaters : zlibDeflaters;
+            Deflater deflater = pool.acquire();
+            try {
+                byte[] out = new byte[body.length / 2 + 64];
+                int length = 0;
+                if (gzip) {
+                    System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+                    length = GZIP_HEADER.length;
+                }
+
+                deflater.setInput(body);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (length == out.length) out = Arrays.copyOf(out, out.length * 2);
+                    length += deflater.deflate(out, length, out.length - length);
+                }
+
+                if (gzip) {
+                    CRC32 crc = new CRC32();
+                    crc.update(body);
+                    if (length + 8 > out.length) out = Arrays.copyOf(out, length + 8);
+                    writeIntLE(out, length, (int) crc.getValue());
+                    writeIntLE(out, length + 4, body.length);
+                    length += 8;
+                }
+                return Arrays.copyOf(out, length);
+            } finally {
+                pool.release(deflater);
+            }
+        }
+
+        // inflates a whole request body, failing once it grows past maxSize
+        public byte[] decompress(ContentEncoding encoding, byte[] body, int maxSize) throws DataFormatException {
+            boolean gzip = encoding == ContentEncoding.GZIP;
+            int offset = gzip? gzipHeaderLength(body) : 0;
+
+            Pool<Inflater> pool = gzip? rawInflaters : zlibInflaters;
+            Inflater inflater = pool.acquire();
+            try {
+                inflater.setInput(body, offset, body.length - offset);
+                byte[] out = new byte[Math.max(64, Math.min(maxSize, body.length * 4))];
+                int length = 0;
+                while (!inflater.finished()) {
+                    if (length == out.length) {
+                        if (length >= maxSize)
+                            throw new ServerException("Request exceeded maximum size of " + maxSize, null);
+                        out = Arrays.copyOf(out, (int) Math.min(maxSize, out.length * 2L));
+                    }
+                    int inflated = inflater.inflate(out, length, out.length - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new DataFormatException("Truncated compressed body");
+                    length += inflated;
+                }
+
+                if (gzip) {
+                    int trailer = body.length - inflater.getRemaining();
+                    if (trailer + 8 > body.length) throw new DataFormatException("Missing gzip trailer");
+                    CRC32 crc = new CRC32();
+                    crc.update(out, 0, length);
+                    if (readIntLE(body, trailer) != (int) crc.getValue() || readIntLE(body, trailer + 4) != length)
+                        throw new DataFormatException("Gzip checksum mismatch");
+                }
+                return Arrays.copyOf(out, length);
+            } finally {
+                pool.release(inflater);
+            }
+        }
+
+        // streamed request bodies are inflated as they're read
+        public InputStream inputStream(ContentEncoding encoding, InputStream in) throws IOException {
+            if (encoding == ContentEncoding.GZIP) return new GZIPInputStream(in, 8192);
+            return new InflaterInputStream(in);
+        }
+
+        public CompressingOutputStream outputStream(ContentEncoding encoding, OutputStream out) throws IOException {
+            boolean gzip = encoding == ContentEncoding.GZIP;
+            Pool<Deflater> pool = gzip? rawDeflaters : zlibDeflaters;
+            return new CompressingOutputStream(out, gzip, pool);
+        }
+
+        private static int gzipHeaderLength(byte[] body) throws DataFormatException {
+            if (body.length < GZIP_HEADER.length || body[0] != 0x1f || body[1] != (byte) 0x8b || body[2] != 8)
+                throw new DataFormatException("Not in gzip format");
+
+            int flags = body[3];
+            int offset = GZIP_HEADER.length;
+            if ((flags & FEXTRA) != 0) {
+                if (offset + 2 > body.length) throw new DataFormatException("Truncated gzip header");
+                offset += 2 + ((body[offset] & 0xff) | ((body[offset + 1] & 0xff) << 8));
+            }
+            if ((flags & FNAME) != 0) offset = skipZeroTerminated(body, offset);
+            if ((flags & FCOMMENT) != 0) offset = skipZeroTerminated(body, offset);
+            if ((flags & FHCRC) != 0) offset += 2;
+            if (offset > body.length) throw new DataFormatException("Truncated gzip header");
+            return offset;
+        }
+
+        private static int skipZeroTerminated(byte[] bytes, int offset) throws DataFormatException {
+            while (offset < bytes.length && bytes[offset] != 0) offset++;
+            if (offset == bytes.length) throw new DataFormatException("Truncated gzip header");
+            return offset + 1;
+        }
+
+        private static void writeIntLE(byte[] bytes, int offset, int value) {
+            bytes[offset] = (byte) value;
+            bytes[offset + 1] = (byte) (value >> 8);
+            bytes[offset + 2] = (byte) (value >> 16);
+            bytes[offset + 3] = (byte) (value >> 24);
+        }
+
+        private static int readIntLE(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8)
+                | ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+        }
+    }
+
+
+    /**
+     * Compresses a streamed body with a pooled deflater. Flushing does a sync flush so everything written so far
+     * reaches the client, and finish writes the end of the stream without closing the one underneath.
+     */
+    private static class CompressingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final boolean gzip;
+        private final Pool<Deflater> pool;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[8192];
+        private boolean finished = false;
+
+        public CompressingOutputStream(OutputStream out, boolean gzip, Pool<Deflater> pool) throws IOException {
+            this.out = out;
+            this.gzip = gzip;
+            this.pool = pool;
+            this.deflater = pool.acquire();
+            if (gzip) out.write(Compression.GZIP_HEADER);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (finished) throw new IOException("Compressed stream already finished");
+            if (gzip) crc.update(bytes, offset, length);
+            deflater.setInput(bytes, offset, length);
+            while (!deflater.needsInput()) {
+                int compressed = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+                if (compressed > 0) out.write(buffer, 0, compressed);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (finished) return;
+            int compressed;
+            do {
+                compressed = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                if (compressed > 0) out.write(buffer, 0, compressed);
+            } while (compressed == buffer.length);
+            out.flush();
+        }
+
+        public void finish() throws IOException {
+            if (finished) return;
+            finished = true;
+            deflater.finish();
+            while (!deflater.finished()) {
+                int compressed = deflater.deflate(buffer, 0, buffer.length);
+                if (compressed > 0) out.write(buffer, 0, compressed);
+            }
+            if (gzip) {
+                byte[] trailer = new byte[8];
+                Compression.writeIntLE(trailer, 0, (int) crc.getValue());
+                Compression.writeIntLE(trailer, 4, (int) deflater.getBytesRead());
+                out.write(trailer);
+            }
+        }
+
+        // hands the deflater back, the stream can't be used after this
+        public void release() {
+            pool.release(deflater);
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+    }
+
+
+    /**
+     * Small bounded object pool. Objects over the bound are disposed of instead of pooled, so a burst can't pin
+     * more native memory than the pool size.
+     */
+    private static class Pool<T> {
+        private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final int capacity;
+        private final Supplier<T> factory;
+        private final Consumer<T> reset;
+        private final Consumer<T> dispose;
+
+        public Pool(int capacity, Supplier<T> factory, Consumer<T> reset, Consumer<T> dispose) {
+            this.capacity = capacity;
+            this.factory = factory;
+            this.reset = reset;
+            this.dispose = dispose;
+        }
+
+        public T acquire() {
+            T object = idle.poll();
+            if (object == null) return factory.get();
+            size.decrementAndGet();
+            return object;
+        }
+
+        public void close() {
+            T object;
+            while ((object = idle.poll()) != null) {
+                size.decrementAndGet();
+                dispose.accept(object);
+            }
+        }
+
+        public void release(T object) {
+            reset.accept(object);
+            if (size.incrementAndGet() <= capacity) {
+                idle.offer(object);
+            }
+            else {
+                size.decrementAndGet();
+                dispose.accept(object);
+            }
+        }
+    }
+
+
+    /**
+     * Files under the directories mapped with ServerConfig.staticFiles. Paths are resolved against the real path of
+     * the directory so neither .. nor symlinks reach outside it. Small files are memory mapped once and kept while
+     * their size and modified time stay the same, so they're sent straight from the mapping with no read. Once the
+     * mapped total would pass the limit the least recently used files are dropped. Bigger files are sent from disk.
+     */
+    private static class StaticFiles {
+        private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("htm", "text/html; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("mjs", "text/javascript; charset=utf-8"),
+            Map.entry("json", "application/json"),
+            Map.entry("map", "application/json"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("csv", "text/csv; charset=utf-8"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("avif", "image/avif"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("ttf", "font/ttf"),
+            Map.entry("otf", "font/otf"),
+            Map.entry("wasm", "application/wasm"),
+            Map.entry("pdf", "application/pdf"),
+            Map.entry("zip", "application/zip"),
+            Map.entry("gz", "application/gzip"),
+            Map.entry("mp3", "audio/mpeg"),
+            Map.entry("mp4", "video/mp4"),
+            Map.entry("webm", "video/webm")
+        );
+        private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+        private final List<String> mounts = new ArrayList<>(); // url paths, longest first
+        private final Map<String, Path> roots = new HashMap<>();
+        private final ConcurrentHashMap<Path, MappedFile> mapped = new ConcurrentHashMap<>();
+        private final AtomicLong mappedBytes = new AtomicLong();
+        private final int maxFileSize;
+        private final long maxSize;
+
+        public StaticFiles(Map<String, String> directories, int maxFileSize, long maxSize) {
+            for (Map.Entry<String, String> directory : directories.entrySet()) {
+                String mount = directory.getKey().endsWith("/")? directory.getKey().substring(0, directory.getKey().length() - 1) : directory.getKey();
+                try {
+                    Path root = Path.of(directory.getValue()).toRealPath();
+                    if (!Files.isDirectory(root)) throw new ServerException("Static file path isn't a directory: " + root, null);
+                    roots.put(mount, root);
+                    mounts.add(mount);
+                } catch (IOException e) {
+                    throw new ServerException("Failed to open static file directory " + directory.getValue(), e);
+                }
+            }
+            mounts.sort((a, b) -> b.length() - a.length());
+            this.maxFileSize = maxFileSize;
+            this.maxSize = maxSize;
+        }
+
+        public StaticFile find(String urlPath) {
+            for (String mount : mounts) {
+                if (!urlPath.startsWith(mount)) continue;
+                // /assets has /assets/app.js under it but not /assetsfoo
+                if (urlPath.length() > mount.length() && urlPath.charAt(mount.length()) != '/') continue;
+                return find(mount, roots.get(mount), percentDecode(urlPath.substring(mount.length())));
+            }
+            return null;
+        }
+
+        private StaticFile find(String mount, Path root, String relative) {
+            if (relative.indexOf('\0') != -1) return null;
+            try {
+                Path path = root.resolve(relative.startsWith("/")? relative.substring(1) : relative).normalize();
+                if (!path.startsWith(root)) return null;
+
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.isDirectory()) {
+                    path = path.resolve("index.html");
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                }
+                if (!attributes.isRegularFile()) return null;
+
+                // a symlink inside the directory can still point outside it
+                Path real = path.toRealPath();
+                if (!real.startsWith(root)) return null;
+
+                long size = attributes.size();
+                long modified = attributes.lastModifiedTime().toMillis();
+                String name = real.getFileName().toString();
+                int dot = name.lastIndexOf('.');
+                String contentType = (dot == -1)? DEFAULT_CONTENT_TYPE : CONTENT_TYPES.getOrDefault(name.substring(dot + 1).toLowerCase(Locale.ROOT), DEFAULT_CONTENT_TYPE);
+                return new StaticFile(mount, real, size, modified, contentType, map(real, size, modified));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        // the file's mapping, mapped now if it's small enough, null if it's sent from disk
+        private ByteBuffer map(Path path, long size, long modified) throws IOException {
+            if (size > maxFileSize || size == 0) return null;
+
+            MappedFile cached = mapped.get(path);
+            if (cached != null && cached.size == size && cached.modified == modified) {
+                cached.lastUsed = System.nanoTime();
+                return cached.buffer;
+            }
+
+            ByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            MappedFile file = new MappedFile(buffer, size, modified);
+            MappedFile replaced = mapped.put(path, file);
+            if (replaced != null) mappedBytes.addAndGet(-replaced.size);
+            if (mappedBytes.addAndGet(size) > maxSize) makeRoom();
+            return buffer;
+        }
+
+        // drops the least recently used mappings until the total is back under the limit
+        private void makeRoom() {
+            List<Map.Entry<Path, MappedFile>> entries = new ArrayList<>(mapped.entrySet());
+            entries.sort((a, b) -> Long.compare(a.getValue().lastUsed, b.getValue().lastUsed));
+            for (Map.Entry<Path, MappedFile> entry : entries) {
+                if (mappedBytes.get() <= maxSize) break;
+                if (mapped.remove(entry.getKey(), entry.getValue())) mappedBytes.addAndGet(-entry.getValue().size);
+            }
+        }
+    }
+
+    private static class MappedFile {
+        private final ByteBuffer buffer;
+        private final long size;
+        private final long modified;
+        private volatile long lastUsed = System.nanoTime();
+
+        public MappedFile(ByteBuffer buffer, long size, long modified) {
+            this.buffer = buffer;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private static class StaticFile {
+        private final String mount; // url path it was found under, for metrics
+        private final Path path;
+        private final long size;
+        private final long modifiedSeconds; // http dates don't go finer than a second
+        private final String lastModified;
+        private final String contentType;
+        private final ByteBuffer mapped; // null for files sent from disk
+
+        public StaticFile(String mount, Path path, long size, long modified, String contentType, ByteBuffer mapped) {
+            this.mount = mount;
+            this.path = path;
+            this.size = size;
+            this.modifiedSeconds = modified / 1000;
+            this.lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochSecond(modifiedSeconds).atZone(ZoneOffset.UTC));
+            this.contentType = contentType;
+            this.mapped = mapped;
+        }
+
+        public FileBody body(long offset, long length, boolean head) {
+            ByteBuffer slice = null;
+            if (mapped != null && !head) {
+                slice = mapped.duplicate();
+                slice.position((int) offset).limit((int) (offset + length));
+            }
+            return new FileBody(path, offset, length, slice, head);
+        }
+    }
+
+    // the part of a file a response sends
+    private static class FileBody {
+        private final Path path;
+        private final long offset;
+        private final long length;
+        private final ByteBuffer mapped; // the range in a cached mapping, sent like a body
+        private final boolean head; // only the length is sent
+
+        public FileBody(Path path, long offset, long length, ByteBuffer mapped, boolean head) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+            this.mapped = mapped;
+            this.head = head;
+        }
+
+        public boolean fromDisk() {
+            return mapped == null && !head && length > 0;
+        }
+    }
+
+
+    /**
+     * Serialized responses of one @Cached endpoint. Entries expire after the ttl, and once the cache is full the
+     * least recently used tenth is dropped to make room, so a full cache doesn't pay for a scan on every miss.
+     */
+    private static class ResponseCache {
+        private final ConcurrentHashMap<String, CachedResponse> entries = new ConcurrentHashMap<>();
+        private final long ttlNanos;
+        private final int maxEntries;
+        private final String[] headers;
+
+        public ResponseCache(Cached cached) {
+            this.ttlNanos = TimeUnit.SECONDS.toNanos(cached.ttlSeconds());
+            this.maxEntries = Math.max(1, cached.maxEntries());
+            this.headers = cached.headers();
+        }
+
+        public String key(String method, String path, QueryParams params, Map<String, String> requestHeaders) {
+            StringBuilder key = new StringBuilder(64).append(method).append(' ').append(path);
+
+            // params in a fixed order so ?a=1&b=2 and ?b=2&a=1 share an entry
+            if (params.size() > 0) {
+                for (String param : params.sortedPairs()) key.append('\0').append(param);
+            }
+            for (String header : headers) {
+                String value = getHeader(requestHeaders, header);
+                key.append('\n').append((value == null)? "" : value);
+            }
+            return key.toString();
+        }
+
+        public CachedResponse get(String key) {
+            CachedResponse cached = entries.get(key);
+            if (cached == null) return null;
+
+            long now = System.nanoTime();
+            if (now - cached.expiresAt >= 0) {
+                entries.remove(key, cached);
+                return null;
+            }
+            cached.lastUsed = now;
+            return cached;
+        }
+
+        public CachedResponse put(String key, int status, byte[] body) {
+            long now = System.nanoTime();
+            if (entries.size() >= maxEntries && !entries.containsKey(key)) makeRoom(now);
+
+            CachedResponse cached = new CachedResponse(status, body, now + ttlNanos);
+            cached.lastUsed = now;
+            entries.put(key, cached);
+            return cached;
+        }
+
+        public void evictExpired() {
+            long now = System.nanoTime();
+            entries.values().removeIf(cached -> now - cached.expiresAt >= 0);
+        }
+
+        private void makeRoom(long now) {
+            evictExpired();
+            if (entries.size() < maxEntries) return;
+
+            List<Map.Entry<String, CachedResponse>> oldest = new ArrayList<>(entries.entrySet());
+            oldest.sort((a, b) -> Long.compare(a.getValue().lastUsed, b.getValue().lastUsed));
+            int evict = Math.max(1, maxEntries / 10);
+            for (int i = 0; i < evict && i < oldest.size(); i++) {
+                entries.remove(oldest.get(i).getKey(), oldest.get(i).getValue());
+            }
+        }
+    }
+
+    private static class CachedResponse {
+        private final int status;
+        private final byte[] body;
+        private final String etag;
+        private final long expiresAt;
+        private volatile long lastUsed;
+        private volatile byte[] gzip; // compressed copies, made the first time a client asks for them
+        private volatile byte[] deflate;
+
+        public CachedResponse(int status, byte[] body, long expiresAt) {
+            this.status = status;
+            this.body = body;
+            this.expiresAt = expiresAt;
+            this.etag = "\"" + Long.toHexString(hash(body)) + "-" + Integer.toHexString(body.length) + "\"";
+        }
+
+        public byte[] compressed(ContentEncoding encoding, Compression compression) {
+            if (encoding == ContentEncoding.GZIP) {
+                byte[] bytes = gzip;
+                if (bytes == null) gzip = bytes = compression.compress(encoding, body);
+                return bytes;
+            }
+            byte[] bytes = deflate;
+            if (bytes == null) deflate = bytes = compression.compress(encoding, body);
+            return bytes;
+        }
+
+        // If-None-Match uses weak comparison, and a tag for any encoding of this body counts
+        public boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) return false;
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*")) return true;
+                if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+                if (candidate.equals(etag)) return true;
+                for (ContentEncoding encoding : ContentEncoding.values()) {
+                    if (candidate.equals(encodedTag(etag, encoding))) return true;
+                }
+            }
+            return false;
+        }
+
+        public static String encodedTag(String etag, ContentEncoding encoding) {
+            return etag.substring(0, etag.length() - 1) + "-" + encoding.token + "\"";
+        }
+
+        // 64 bit fnv-1a
+        private static long hash(byte[] bytes) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : bytes) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+
+
+    /**
+     * What happens when work arrives faster than it can be handled. Both turn work away with a 503 and a
+     * Retry-After header once the admission queue is full. CODEL also rejects work that waited longer than
+     * the target while the queue has stayed above the target for a whole interval.
+     */
+    public static enum OverloadPolicy {
+        REJECT,
+        CODEL
+    }
+
+
+    /**
+     * Queue time shedding in the style of CoDel, as adapted for server request queues. Each interval remembers the
+     * shortest wait seen. If even the shortest wait was over the target, the queue never drained in that interval,
+     * so it's a standing queue rather than a burst, and for the next interval anything that waited past the target
+     * is shed. A burst that drains keeps every request.
+     */
+    private static class CoDel {
+        private final long targetNanos;
+        private final long intervalNanos;
+        private final AtomicLong minWait = new AtomicLong(Long.MAX_VALUE);
+        private volatile long intervalEnd = System.nanoTime();
+        private volatile boolean overloaded = false;
+
+        public CoDel(int targetMillis, int intervalMillis) {
+            this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        }
+
+        public boolean shouldShed(long waitNanos, long now) {
+            if (now - intervalEnd >= 0) {
+                synchronized (this) {
+                    if (now - intervalEnd >= 0) {
+                        overloaded = minWait.getAndSet(Long.MAX_VALUE) > targetNanos;
+                        intervalEnd = now + intervalNanos;
+                    }
+                }
+            }
+            minWait.accumulateAndGet(waitNanos, Math::min);
+            return overloaded && waitNanos > targetNanos;
+        }
+    }
+
+
+    public static enum Engine {
+        BLOCKING, // one thread per connection with a blocking ServerSocket
+        NIO // a few selector threads multiplexing all connections
+    }
+
+
+    public static class ServerConfig {
+        private int timeoutMillis = 300000; // 5 mins
+        private String contentType = "application/json";
+        private int maxRequestSize = 5000000; // 5 mb
+        private int maxConnections = 20; // connection threads for BLOCKING, endpoint workers for NIO, in flight cap with virtual threads
+        private int rateLimitRequestsPerMinute = 1000;
+        private RateLimiter rateLimiter = null; // defaults to a token bucket allowing rateLimitRequestsPerMinute
+        private Engine engine = Engine.BLOCKING;
+        private boolean virtualThreads = false; // needs java 21+
+        private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2); // NIO only
+        private int maxOpenConnections = 10000; // NIO only
+        private int acceptBacklog = 1024; // NIO only
+        private int compressionThreshold = 1024; // smallest body that gets compressed, -1 turns compression off
+        private int compressionLevel = 6;
+        private String metricsPath = null; // e.g. "/metrics" to serve metrics in prometheus text format
+        private int admissionQueueSize = 1000; // connections for BLOCKING, request batches for NIO, waiting for a thread
+        private OverloadPolicy overloadPolicy = OverloadPolicy.REJECT;
+        private int codelTargetMillis = 5;
+        private int codelIntervalMillis = 100;
+        private int retryAfterSeconds = 1;
+        private String keyStorePath = null; // turns on https
+        private String keyStorePassword = null;
+        private String keyStoreType = "PKCS12";
+        private SSLContext sslContext = null; // turns on https with a context built elsewhere, instead of a key store
+        private int tlsSessionCacheSize = 10000; // sessions kept for resumption, 0 for no limit
+        private int tlsSessionTimeoutSeconds = 3600;
+        private boolean http2 = true; // h2c by prior knowledge or Upgrade, NIO only
+        private int http2MaxConcurrentStreams = 100;
+        private int eventHeartbeatSeconds = 15; // comment sent on idle event streams, 0 turns it off
+        private long maxEventBacklog = 1 << 20; // bytes an event stream subscriber can fall behind before it's dropped
+        private Map<String, String> staticDirectories = new LinkedHashMap<>(); // url path to directory
+        private int staticCacheFileSize = 65536; // files up to this size are kept memory mapped
+        private long staticCacheSize = 64L << 20; // total size of the mapped files
+        private Map<Class<?>, Converter<?>> converters = new HashMap<>(); // for endpoint argument types the server doesn't know
+
+        public ServerConfig timeoutMillis(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        public ServerConfig contentType(String contentType) {
+            this.contentType = contentType;
+            return this;
+        }
+
+        public ServerConfig maxRequestSize(int maxRequestSize) {
+            this.maxRequestSize = maxRequestSize;
+            return this;
+        }
+
+        public ServerConfig maxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        public ServerConfig rateLimitRequestsPerMinute(int rateLimitRequestsPerMinute) {
+            this.rateLimitRequestsPerMinute = rateLimitRequestsPerMinute;
+            return this;
+        }
+
+        public ServerConfig rateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        public ServerConfig engine(Engine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        public ServerConfig virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        public ServerConfig ioThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+            return this;
+        }
+
+        public ServerConfig maxOpenConnections(int maxOpenConnections) {
+            this.maxOpenConnections = maxOpenConnections;
+            return this;
+        }
+
+        public ServerConfig acceptBacklog(int acceptBacklog) {
+            this.acceptBacklog = acceptBacklog;
+            return this;
+        }
+
+        public ServerConfig compressionThreshold(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        public ServerConfig compressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        public ServerConfig metricsPath(String metricsPath) {
+            this.metricsPath = metricsPath;
+            return this;
+        }
+
+        public ServerConfig admissionQueueSize(int admissionQueueSize) {
+            this.admissionQueueSize = admissionQueueSize;
+            return this;
+        }
+
+        public ServerConfig overloadPolicy(OverloadPolicy overloadPolicy) {
+            this.overloadPolicy = overloadPolicy;
+            return this;
+        }
+
+        public ServerConfig codelTargetMillis(int codelTargetMillis) {
+            this.codelTargetMillis = codelTargetMillis;
+            return this;
+        }
+
+        public ServerConfig codelIntervalMillis(int codelIntervalMillis) {
+            this.codelIntervalMillis = codelIntervalMillis;
+            return this;
+        }
+
+        public ServerConfig retryAfterSeconds(int retryAfterSeconds) {
+            this.retryAfterSeconds = retryAfterSeconds;
+            return this;
+        }
+
+        public ServerConfig keyStore(String keyStorePath, String keyStorePassword) {
+            this.keyStorePath = keyStorePath;
+            this.keyStorePassword = keyStorePassword;
+            return this;
+        }
+
+        public ServerConfig keyStoreType(String keyStoreType) {
+            this.keyStoreType = keyStoreType;
+            return this;
+        }
+
+        public ServerConfig sslContext(SSLContext sslContext) {
+            this.sslContext = sslContext;
+            return this;
+        }
+
+        public ServerConfig tlsSessionCacheSize(int tlsSessionCacheSize) {
+            this.tlsSessionCacheSize = tlsSessionCacheSize;
+            return this;
+        }
+
+        public ServerConfig tlsSessionTimeoutSeconds(int tlsSessionTimeoutSeconds) {
+            this.tlsSessionTimeoutSeconds = tlsSessionTimeoutSeconds;
+            return this;
+        }
+
+        public ServerConfig http2(boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        public ServerConfig http2MaxConcurrentStreams(int http2MaxConcurrentStreams) {
+            this.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+            return this;
+        }
+
+        public ServerConfig eventHeartbeatSeconds(int eventHeartbeatSeconds) {
+            this.eventHeartbeatSeconds = eventHeartbeatSeconds;
+            return this;
+        }
+
+        public ServerConfig maxEventBacklog(long maxEventBacklog) {
+            this.maxEventBacklog = maxEventBacklog;
+            return this;
+        }
+
+        /**
+         * Serves the files under directory for GET and HEAD requests under urlPath, e.g. staticFiles("/assets", "web").
+         * A path that's a directory is answered with its index.html. Paths with no file fall through to the endpoints.
+         */
+        public ServerConfig staticFiles(String urlPath, String directory) {
+            this.staticDirectories.put(urlPath, directory);
+            return this;
+        }
+
+        public ServerConfig staticCacheFileSize(int staticCacheFileSize) {
+            this.staticCacheFileSize = staticCacheFileSize;
+            return this;
+        }
+
+        public ServerConfig staticCacheSize(long staticCacheSize) {
+            this.staticCacheSize = staticCacheSize;
+            return this;
+        }
+
+        // converts @Param, @Header and @PathVariable arguments of this type, taking over from any built in converter
+        public <T> ServerConfig converter(Class<T> type, Converter<T> converter) {
+            this.converters.put(type, converter);
+            return this;
+        }
+    }
+
+
+    @FunctionalInterface
+    public static interface DeserializeLambda<J, T, S, R, E extends Exception> {
+        R apply(J json, T type, S serializer) throws E;
+    }
+
+
+    @FunctionalInterface
+    public static interface SerializeLambda<O, S, R, E extends Exception> {
+        R apply(O object, S serializer) throws E;
+    }
+
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.ANNOTATION_TYPE})
+    public static @interface Endpoint {
+        String value() default "";
+    }
+
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.METHOD})
+    public static @interface Get {
+        String value() default "";
+    }
+    
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.METHOD})
+    public static @interface Put {
+        String value() default "";
+    }
+    
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.METHOD})
+    public static @interface Post {
+        String value() default "";
+    }
+    
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.METHOD})
+    public static @interface Patch {
+        String value() default "";
+    }
+    
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.METHOD})
+    public static @interface Delete {
+        String value() default "";
+    }
+    
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.METHOD})
+    public static @interface Options {
+        String value() default "";
+    }
+
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.PARAMETER})
+    public static @interface Body {}
+
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.PARAMETER})
+    public static @interface Param {
+        String value() default "";
+    }
+
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.PARAMETER})
+    public static @interface Header {
+        String value() default "";
+    }
+
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.PARAMETER})
+    public static @interface PathVariable {
+        String value() default "";
+    }
+
+    /**
+     * Caches the serialized responses of a @Get endpoint method, keyed by verb, path, query params and the listed
+     * request headers. Cached responses carry an ETag, and a request whose If-None-Match matches it gets a 304.
+     * Hits skip both the method and the serializer, so only use it where the result depends on nothing else. The
+     * body isn't part of the key, so the server refuses to start with it on any other verb.
+     */
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.METHOD})
+    public static @interface Cached {
+        int ttlSeconds() default 60;
+        int maxEntries() default 1000;
+        String[] headers() default {};
+    }
+
+
+    private static class HttpRequest {
+        private final String method;
+        private final String target;
+        private final String version;
+        private final Map<String, String> headers;
+        private final byte[] body;
+        private final BodyInputStream bodyStream; // set instead of the body when the endpoint streams it
+        private long parseNanos; // time spent in the parser on this request
+
+        public HttpRequest(String method, String target, String version, Map<String, String> headers, byte[] body) {
+            this(method, target, version, headers, body, null);
+        }
+
+        public HttpRequest(String method, String target, String version, Map<String, String> headers, byte[] body, BodyInputStream bodyStream) {
+            this.method = method;
+            this.target = target;
+            this.version = version;
+            this.headers = headers;
+            this.body = body;
+            this.bodyStream = bodyStream;
+        }
+    }
+
+
+    @FunctionalInterface
+    private static interface ByteSink {
+        void write(ByteBuffer[] buffers) throws IOException;
+    }
+
+    @FunctionalInterface
+    private static interface BodyPump {
+        void pump() throws IOException;
+    }
+
+
+    /**
+     * Request body handed to an endpoint while it's still arriving. The connection offers bytes as it parses them
+     * and the endpoint reads them from a bounded buffer. On the blocking engine the reader pulls more from the
+     * socket itself through the pump. On the nio engine the io thread pushes bytes in, stops reading while the
+     * buffer is full, and is told through onSpace once the endpoint has read enough to make room.
+     */
+    private static class BodyInputStream extends InputStream {
+        private final byte[] data;
+        private final int timeout;
+        private final Runnable onSpace;
+        private final BodyPump pump;
+        private int start = 0;
+        private int end = 0;
+        private boolean complete = false;
+        private boolean discard = false;
+        private boolean waitingForSpace = false;
+        private long received = 0;
+        private IOException failure;
+
+        public BodyInputStream(int capacity, int timeout, Runnable onSpace, BodyPump pump) {
+            this.data = new byte[capacity];
+            this.timeout = timeout;
+            this.onSpace = onSpace;
+            this.pump = pump;
+        }
+
+        // returns how many bytes were taken, fewer than offered when the buffer is full
+        public synchronized int offer(byte[] bytes, int offset, int length) {
+            if (discard) {
+                received += length;
+                return length;
+            }
+
+            if (end == data.length && start > 0) {
+                System.arraycopy(data, start, data, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int accepted = Math.min(length, data.length - end);
+            System.arraycopy(bytes, offset, data, end, accepted);
+            end += accepted;
+            received += accepted;
+            if (accepted < length) waitingForSpace = true;
+            notifyAll();
+            return accepted;
+        }
+
+        public synchronized void complete() {
+            complete = true;
+            notifyAll();
+        }
+
+        public synchronized void fail(IOException e) {
+            failure = e;
+            notifyAll();
+        }
+
+        public synchronized long received() {
+            return received;
+        }
+
+        public synchronized boolean isWaitingForSpace() {
+            return waitingForSpace;
+        }
+
+        // drops anything unread so the rest of the body is skipped
+        public void discardRest() {
+            Runnable wake;
+            synchronized (this) {
+                discard = true;
+                start = 0;
+                end = 0;
+                wake = takeSpaceCallback();
+            }
+            if (wake != null) wake.run();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return (read == -1)? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+
+            while (true) {
+                int read = -1;
+                Runnable wake = null;
+                synchronized (this) {
+                    if (end > start) {
+                        read = Math.min(length, end - start);
+                        System.arraycopy(data, start, bytes, offset, read);
+                        start += read;
+                        if (start == end) {
+                            start = 0;
+                            end = 0;
+                        }
+                        wake = takeSpaceCallback();
+                    }
+                    else if (failure != null) {
+                        throw failure;
+                    }
+                    else if (complete) {
+                        return -1;
+                    }
+                    else if (pump == null) {
+                        long waitStart = System.currentTimeMillis();
+                        try {
+                            wait(timeout);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted reading request body", e);
+                        }
+                        if (end == start && !complete && failure == null && System.currentTimeMillis() - waitStart >= timeout)
+                            throw new SocketTimeoutException("Timed out reading request body");
+                        continue;
+                    }
+                }
+
+                // tell the io thread there's room again, outside the lock
+                if (read != -1) {
+                    if (wake != null) wake.run();
+                    return read;
+                }
+                pump.pump();
+            }
+        }
+
+        @Override
+        public synchronized int available() {
+            return end - start;
+        }
+
+        private Runnable takeSpaceCallback() {
+            if (!waitingForSpace || onSpace == null) return null;
+            waitingForSpace = false;
+            return onSpace;
+        }
+    }
+
+
+    /**
+     * Writes a body as http chunks to a sink. Writes are gathered into an 8 kb chunk and sent when it fills or on
+     * flush, and close sends the final empty chunk.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        private static final byte[] CRLF = { '\r', '\n' };
+        private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+        private final ByteSink sink;
+        private final byte[] chunk = new byte[8192];
+        private int length = 0;
+        private long written = 0; // body bytes, not counting chunk framing
+        private boolean closed = false;
+
+        public ChunkedOutputStream(ByteSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == chunk.length) flush();
+            chunk[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            // big writes go straight out as their own chunk
+            if (count >= chunk.length) {
+                flush();
+                writeChunk(bytes, offset, count);
+                return;
+            }
+            if (length + count > chunk.length) flush();
+            System.arraycopy(bytes, offset, chunk, length, count);
+            length += count;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (length == 0) return;
+            writeChunk(chunk, 0, length);
+            length = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            flush();
+            sink.write(new ByteBuffer[] { ByteBuffer.wrap(LAST_CHUNK) });
+        }
+
+        private void writeChunk(byte[] bytes, int offset, int count) throws IOException {
+            written += count;
+            sink.write(chunk(bytes, offset, count));
+        }
+
+        public static ByteBuffer[] chunk(byte[] bytes) {
+            return chunk(bytes, 0, bytes.length);
+        }
+
+        public static ByteBuffer[] chunk(byte[] bytes, int offset, int count) {
+            byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            return new ByteBuffer[] {
+                ByteBuffer.wrap(size),
+                ByteBuffer.wrap(bytes, offset, count),
+                ByteBuffer.wrap(CRLF)
+            };
+        }
+    }
+
+
+    /**
+     * Incremental HTTP/1.1 request parser working directly on bytes. One instance is kept per connection
+     * and fed the connection's read buffer as bytes arrive. Complete lines and body bytes are consumed from
+     * the buffer, while a partial line is left in place for the next call. Bodies are framed by
+     * Content-Length or chunked transfer encoding.
+     */
+    private static class RequestParser {
+        private static final int REQUEST_LINE = 0;
+        private static final int HEADERS = 1;
+        private static final int BODY = 2;
+        private static final int CHUNK_SIZE = 3;
+        private static final int CHUNK_DATA = 4;
+        private static final int CHUNK_END = 5;
+        private static final int TRAILERS = 6;
+
+        private static final String[] METHODS = { "GET", "POST", "PUT", "PATCH", "DELETE", "OPTIONS", "HEAD" };
+        private static final byte[] EMPTY = new byte[0];
+
+        private final int maxRequestSize;
+        private int state = REQUEST_LINE;
+        private int requestSize = 0; // bytes consumed for the current request
+        private int scanned = 0; // bytes of a partial line already checked for a line feed
+
+        private String method;
+        private String target;
+        private String version;
+        private Map<String, String> headers;
+        private int contentLength;
+        private boolean chunked;
+        private int chunkRemaining;
+        private byte[] body;
+        private int bodyLength;
+        private byte[] chunkedBody = new byte[1024]; // reused across requests, copied out once the body is complete
+        private final BiFunction<String, String, BodyInputStream> bodyStreams; // null when no endpoint streams
+        private BodyInputStream stream; // body of the current request, when it's streamed
+        private boolean streamFinished = false;
+        private long parseNanos = 0; // time spent on the request so far, across calls
+
+        public RequestParser(int maxRequestSize) {
+            this(maxRequestSize, null);
+        }
+
+        public RequestParser(int maxRequestSize, BiFunction<String, String, BodyInputStream> bodyStreams) {
+            this.maxRequestSize = maxRequestSize;
+            this.bodyStreams = bodyStreams;
+        }
+
+        public boolean inProgress() {
+            return state != REQUEST_LINE || requestSize > 0;
+        }
+
+        // true between returning a streamed request and the end of its body
+        public boolean isStreamingBody() {
+            return stream != null;
+        }
+
+        // consumes bytes from the buffer (in read mode) and returns a request once one is complete, or null if more bytes are needed.
+        // a streamed request is returned as soon as its headers are parsed, and later calls feed its body until it ends
+        public HttpRequest parse(ByteBuffer buffer) {
+            boolean feedingBody = stream != null;
+            long start = System.nanoTime();
+            HttpRequest request = parseRequest(buffer);
+            if (feedingBody) return request;
+
+            parseNanos += System.nanoTime() - start;
+            if (request != null) {
+                request.parseNanos = parseNanos;
+                parseNanos = 0;
+            }
+            return request;
+        }
+
+        private HttpRequest parseRequest(ByteBuffer buffer) {
+            byte[] bytes = buffer.array();
+            int offset = buffer.arrayOffset();
+
+            while (true) {
+                if (state == BODY || state == CHUNK_DATA) {
+                    int needed = (state == BODY)? contentLength - bodyLength : chunkRemaining;
+                    int available = Math.min(needed, buffer.remaining());
+                    if (stream != null) {
+                        available = stream.offer(bytes, offset + buffer.position(), available);
+                        if (state == CHUNK_DATA) chunkRemaining -= available;
+                    }
+                    else if (state == BODY) {
+                        System.arraycopy(bytes, offset + buffer.position(), body, bodyLength, available);
+                    }
+                    else {
+                        ensureChunkedCapacity(bodyLength + available);
+                        System.arraycopy(bytes, offset + buffer.position(), chunkedBody, bodyLength, available);
+                        chunkRemaining -= available;
+                    }
+                    bodyLength += available;
+                    consume(buffer, available);
+
+                    if (available < needed) return null;
+                    if (state == BODY) return finish(body);
+                    state = CHUNK_END;
+                    continue;
+                }
+
+                // every other state works on a single line
+                int start = offset + buffer.position();
+                int limit = offset + buffer.limit();
+                int lineFeed = -1;
+                for (int i = start + scanned; i < limit; i++) {
+                    if (bytes[i] == '\n') {
+                        lineFeed = i;
+                        break;
+                    }
+                }
+                if (lineFeed == -1) {
+                    scanned = limit - start;
+                    if (requestSize + scanned > maxRequestSize)
+                        throw new ServerException("Request exceeded maximum size of " + maxRequestSize, null);
+                    return null;
+                }
+                scanned = 0;
+
+                int end = (lineFeed > start && bytes[lineFeed - 1] == '\r')? lineFeed - 1 : lineFeed;
+                consume(buffer, lineFeed + 1 - start);
+
+                HttpRequest request = onLine(bytes, start, end - start);
+                if (request != null) return request;
+                if (streamFinished) {
+                    // stop at the end of a streamed body, the connection decides when to parse the next request
+                    streamFinished = false;
+                    return null;
+                }
+            }
+        }
+
+        private HttpRequest onLine(byte[] bytes, int start, int length) {
+            switch (state) {
+                case REQUEST_LINE:
+                    // ignore empty lines before a request
+                    if (length == 0) {
+                        requestSize = 0;
+                        return null;
+                    }
+                    parseRequestLine(bytes, start, length);
+                    headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER); // header names are case insensitive
+                    state = HEADERS;
+                    return null;
+
+                case HEADERS:
+                    if (length == 0) return endOfHeaders();
+                    parseHeader(bytes, start, length, true);
+                    return null;
+
+                case CHUNK_SIZE:
+                    chunkRemaining = parseChunkSize(bytes, start, length);
+                    if (requestSize + chunkRemaining > maxRequestSize)
+                        throw new ServerException("Request exceeded maximum size of " + maxRequestSize, null);
+                    state = (chunkRemaining == 0)? TRAILERS : CHUNK_DATA;
+                    return null;
+
+                case CHUNK_END:
+                    if (length != 0) throw new ServerException("Malformed chunked body", null);
+                    state = CHUNK_SIZE;
+                    return null;
+
+                case TRAILERS:
+                    if (length == 0) {
+                        if (stream == null) return finish(Arrays.copyOf(chunkedBody, bodyLength));
+                        streamFinished = true;
+                        return finish(EMPTY);
+                    }
+                    parseHeader(bytes, start, length, false);
+                    return null;
+
+                default:
+                    throw new ServerException("Request parser in unexpected state " + state, null);
+            }
+        }
+
+        private void parseRequestLine(byte[] bytes, int start, int length) {
+            int end = start + length;
+            int firstSpace = indexOf(bytes, start, end, (byte) ' ');
+            int secondSpace = (firstSpace == -1)? -1 : indexOf(bytes, firstSpace + 1, end, (byte) ' ');
+            if (secondSpace == -1) throw new ServerException("Malformed request line", null);
+
+            method = methodName(bytes, start, firstSpace - start);
+            target = new String(bytes, firstSpace + 1, secondSpace - firstSpace - 1, StandardCharsets.ISO_8859_1);
+            version = new String(bytes, secondSpace + 1, end - secondSpace - 1, StandardCharsets.ISO_8859_1);
+        }
+
+        private void parseHeader(byte[] bytes, int start, int length, boolean framing) {
+            int end = start + length;
+            int separator = indexOf(bytes, start, end, (byte) ':');
+            if (separator == -1) return;
+
+            // trim whitespace around the value
+            int valueStart = separator + 1;
+            while (valueStart < end && (bytes[valueStart] == ' ' || bytes[valueStart] == '\t')) valueStart++;
+            int valueEnd = end;
+            while (valueEnd > valueStart && (bytes[valueEnd - 1] == ' ' || bytes[valueEnd - 1] == '\t')) valueEnd--;
+
+            String name = new String(bytes, start, separator - start, StandardCharsets.ISO_8859_1);
+            String value = new String(bytes, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+            headers.put(name, value);
+
+            if (!framing) return;
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new ServerException("Invalid Content-Length " + value, e);
+                }
+                if (contentLength < 0) throw new ServerException("Invalid Content-Length " + value, null);
+            }
+            else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.regionMatches(true, value.length() - 7, "chunked", 0, 7);
+            }
+        }
+
+        private HttpRequest endOfHeaders() {
+            bodyLength = 0;
+            if (bodyStreams != null) stream = bodyStreams.apply(method, target);
+            if (stream != null) {
+                if (!chunked && requestSize + contentLength > maxRequestSize)
+                    throw new ServerException("Request exceeded maximum size of " + maxRequestSize, null);
+
+                // hand the request over now, the body follows through the stream
+                HttpRequest request = new HttpRequest(method, target, version, headers, EMPTY, stream);
+                if (chunked) {
+                    state = CHUNK_SIZE;
+                }
+                else if (contentLength == 0) {
+                    stream.complete();
+                    reset();
+                }
+                else {
+                    state = BODY;
+                }
+                return request;
+            }
+
+            if (chunked) {
+                state = CHUNK_SIZE;
+                return null;
+            }
+            if (contentLength == 0) return finish(EMPTY);
+            if (requestSize + contentLength > maxRequestSize)
+                throw new ServerException("Request exceeded maximum size of " + maxRequestSize, null);
+
+            body = new byte[contentLength];
+            state = BODY;
+            return null;
+        }
+
+        private int parseChunkSize(byte[] bytes, int start, int length) {
+            int size = 0;
+            int digits = 0;
+            for (int i = start; i < start + length; i++) {
+                int digit = Character.digit(bytes[i], 16);
+                if (digit == -1) break; // chunk extensions start with ';'
+                if (size > (Integer.MAX_VALUE >> 4)) throw new ServerException("Chunk size too large", null);
+                size = (size << 4) + digit;
+                digits++;
+            }
+            if (digits == 0) throw new ServerException("Malformed chunk size", null);
+            return size;
+        }
+
+        private HttpRequest finish(byte[] requestBody) {
+            if (stream != null) {
+                // the request was already returned when its headers were parsed, the connection decides when to parse the next one
+                stream.complete();
+                reset();
+                return null;
+            }
+
+            HttpRequest request = new HttpRequest(method, target, version, headers, requestBody);
+            reset();
+            return request;
+        }
+
+        // reset for the next request on this connection
+        private void reset() {
+            stream = null;
+            state = REQUEST_LINE;
+            requestSize = 0;
+            method = null;
+            target = null;
+            version = null;
+            headers = null;
+            contentLength = 0;
+            chunked = false;
+            body = null;
+            bodyLength = 0;
+        }
+
+        private void consume(ByteBuffer buffer, int count) {
+            buffer.position(buffer.position() + count);
+            requestSize += count;
+            if (requestSize > maxRequestSize)
+                throw new ServerException("Request exceeded maximum size of " + maxRequestSize, null);
+        }
+
+        private void ensureChunkedCapacity(int capacity) {
+            if (capacity > chunkedBody.length)
+                chunkedBody = Arrays.copyOf(chunkedBody, Math.max(capacity, chunkedBody.length * 2));
+        }
+
+        private static int indexOf(byte[] bytes, int start, int end, byte value) {
+            for (int i = start; i < end; i++) {
+                if (bytes[i] == value) return i;
+            }
+            return -1;
+        }
+
+        // returns a shared constant for the standard methods so they aren't allocated per request
+        private static String methodName(byte[] bytes, int start, int length) {
+            for (String method : METHODS) {
+                if (method.length() != length) continue;
+                boolean matches = true;
+                for (int i = 0; i < length && matches; i++) {
+                    matches = bytes[start + i] == method.charAt(i);
+                }
+                if (matches) return method;
+            }
+            return new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+
+    /**
+     * Radix tree mapping path templates to a handler per http verb. Templates are plain text plus whole segment
+     * patterns: {name} captures one segment, * matches any one segment and a trailing ** matches the rest of the
+     * path. Static text is compressed into shared prefixes, so a lookup walks the path once comparing characters,
+     * only backtracking when a static branch dead ends next to a pattern.
+     */
+    private static class Router<H> {
+        private static final String[] VERBS = { "GET", "PUT", "POST", "PATCH", "DELETE", "OPTIONS", "HEAD" };
+
+        private final RouteNode<H> root = new RouteNode<>(RouteNode.STATIC, "");
+
+        // one name per captured segment, in the order find captures them. A * captures too but has no name, it gets
+        // a null so the indexes of the names after it still line up
+        public static List<String> variableNames(String template) {
+            List<String> names = new ArrayList<>();
+            for (String segment : template.split("/")) {
+                if (segment.startsWith("{") && segment.endsWith("}"))
+                    names.add(segment.substring(1, segment.length() - 1));
+                else if (segment.equals("*"))
+                    names.add(null);
+            }
+            return names;
+        }
+
+        public void add(String verb, String template, H handler) {
+            int verbIndex = verbIndex(verb);
+            if (verbIndex == -1) throw new ServerException("Unsupported http verb " + verb, null);
+
+            RouteNode<H> node = root;
+            int staticStart = 0;
+            int segmentStart = 0;
+            for (int i = 0; i <= template.length(); i++) {
+                if (i < template.length() && template.charAt(i) != '/') continue;
+
+                // a full segment is template[segmentStart, i)
+                String segment = template.substring(segmentStart, i);
+                int kind = RouteNode.STATIC;
+                if (segment.startsWith("{") && segment.endsWith("}")) kind = RouteNode.PARAM;
+                else if (segment.equals("*")) kind = RouteNode.PARAM;
+                else if (segment.equals("**")) kind = RouteNode.CATCH_ALL;
+
+                if (kind != RouteNode.STATIC) {
+                    node = node.addStatic(template.substring(staticStart, segmentStart));
+                    if (kind == RouteNode.CATCH_ALL) {
+                        if (i != template.length())
+                            throw new ServerException("** can only be used at the end of a path " + template, null);
+                        if (node.catchAllChild == null) node.catchAllChild = new RouteNode<>(RouteNode.CATCH_ALL, "");
+                        node = node.catchAllChild;
+                    }
+                    else {
+                        if (node.paramChild == null) node.paramChild = new RouteNode<>(RouteNode.PARAM, "");
+                        node = node.paramChild;
+                    }
+                    staticStart = i;
+                }
+                segmentStart = i + 1;
+            }
+            node = node.addStatic(template.substring(staticStart));
+
+            if (node.handlers == null) node.handlers = new Object[VERBS.length];
+            if (node.handlers[verbIndex] != null)
+                throw new ServerException("Duplicate endpoint " + verb + " " + template, null);
+            node.handlers[verbIndex] = handler;
+        }
+
+        // returns null when no template matches the path
+        public Match<H> find(String path) {
+            int[] captures = new int[8];
+            Match<H> match = new Match<>();
+            if (!root.match(path, 0, captures, 0, match)) return null;
+            return match;
+        }
 
-    @FunctionalInterface
-    public static interface SerializeLambda<O, S, R, E extends Exception> {
-        R apply(O object, S serializer) throws E;
+        private static int verbIndex(String verb) {
+            switch (verb) {
+                case "GET": return 0;
+                case "PUT": return 1;
+                case "POST": return 2;
+                case "PATCH": return 3;
+                case "DELETE": return 4;
+                case "OPTIONS": return 5;
+                case "HEAD": return 6;
+                default: return -1;
+            }
+        }
+
+
+        public static class Match<H> {
+            private Object[] handlers;
+            private String[] variables;
+
+            @SuppressWarnings("unchecked")
+            public H handler(String verb) {
+                int index = verbIndex(verb);
+                return (index == -1)? null : (H) handlers[index];
+            }
+        }
+
+
+        private static class RouteNode<H> {
+            private static final int STATIC = 0;
+            private static final int PARAM = 1;
+            private static final int CATCH_ALL = 2;
+
+            private final int kind;
+            private String prefix; // only for static nodes
+            private char[] indices = new char[0]; // first character of each static child
+            private List<RouteNode<H>> children = new ArrayList<>();
+            private RouteNode<H> paramChild;
+            private RouteNode<H> catchAllChild;
+            private Object[] handlers; // indexed by verb, null when no template ends here
+
+            public RouteNode(int kind, String prefix) {
+                this.kind = kind;
+                this.prefix = prefix;
+            }
+
+            // walks/creates static nodes for the text and returns the node it ends on
+            public RouteNode<H> addStatic(String text) {
+                if (text.isEmpty()) return this;
+
+                for (int i = 0; i < indices.length; i++) {
+                    if (indices[i] != text.charAt(0)) continue;
+
+                    RouteNode<H> child = children.get(i);
+                    int common = 0;
+                    int max = Math.min(child.prefix.length(), text.length());
+                    while (common < max && child.prefix.charAt(common) == text.charAt(common)) common++;
+
+                    // split the child when the text only shares part of its prefix
+                    if (common < child.prefix.length()) {
+                        RouteNode<H> split = new RouteNode<>(STATIC, child.prefix.substring(0, common));
+                        child.prefix = child.prefix.substring(common);
+                        split.indices = new char[] { child.prefix.charAt(0) };
+                        split.children.add(child);
+                        children.set(i, split);
+                        child = split;
+                    }
+                    return child.addStatic(text.substring(common));
+                }
+
+                RouteNode<H> child = new RouteNode<>(STATIC, text);
+                indices = Arrays.copyOf(indices, indices.length + 1);
+                indices[indices.length - 1] = text.charAt(0);
+                children.add(child);
+                return child;
+            }
+
+            public boolean match(String path, int position, int[] captures, int captureCount, Match<H> match) {
+                int end = position;
+                if (kind == STATIC) {
+                    if (!path.startsWith(prefix, position)) return false;
+                    end = position + prefix.length();
+                }
+                else if (kind == PARAM) {
+                    end = path.indexOf('/', position);
+                    if (end == -1) end = path.length();
+                    if (end == position) return false; // segments can't be empty
+
+                    if (captureCount * 2 + 2 > captures.length) captures = Arrays.copyOf(captures, captures.length * 2);
+                    captures[captureCount * 2] = position;
+                    captures[captureCount * 2 + 1] = end;
+                    captureCount++;
+                }
+                else {
+                    end = path.length();
+                }
+
+                if (end == path.length() && handlers != null) {
+                    match.handlers = handlers;
+                    match.variables = new String[captureCount];
+                    for (int i = 0; i < captureCount; i++) {
+                        match.variables[i] = percentDecode(path.substring(captures[i * 2], captures[i * 2 + 1]));
+                    }
+                    return true;
+                }
+
+                // static children first, then a single segment, then the rest of the path
+                if (end < path.length()) {
+                    char next = path.charAt(end);
+                    for (int i = 0; i < indices.length; i++) {
+                        if (indices[i] == next && children.get(i).match(path, end, captures, captureCount, match)) return true;
+                    }
+                }
+                if (paramChild != null && (end == 0 || path.charAt(end - 1) == '/') && paramChild.match(path, end, captures, captureCount, match))
+                    return true;
+                if (catchAllChild != null && (end == 0 || path.charAt(end - 1) == '/') && catchAllChild.match(path, end, captures, captureCount, match))
+                    return true;
+                return false;
+            }
+        }
     }
 
-    @Documented
-    @Retention(RetentionPolicy.RUNTIME)
-    @Target({ElementType.TYPE, ElementType.ANNOTATION_TYPE})
-    public static @interface Endpoint {
-        String value() default "";
+
+    /**
+     * Decides whether a client may make another request. Implementations are called concurrently from every
+     * connection thread, and evictIdle is called every 30 seconds so idle client state can be dropped.
+     */
+    public static interface RateLimiter {
+        boolean tryAcquire(InetAddress client);
+
+        default void evictIdle() {}
     }
 
-    @Documented
-    @Retention(RetentionPolicy.RUNTIME)
-    @Target({ElementType.TYPE, ElementType.METHOD})
-    public static @interface Get {
-        String value() default "";
+
+    /**
+     * Per client state for the rate limiters, bounded by a max number of clients and dropped once a client has
+     * been idle for the ttl. Idle clients are only dropped by evictIdle, which the server runs from its maintenance
+     * task, so a request never pays for a sweep. When the table is full new clients are refused until then.
+     */
+    private static class ClientTable<T> {
+        private final ConcurrentHashMap<InetAddress, ClientEntry<T>> clients = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger(); // entries plus slots being filled, never past maxClients
+        private final long idleTtlNanos;
+        private final int maxClients;
+
+        public ClientTable(Duration idleTtl, int maxClients) {
+            this.idleTtlNanos = idleTtl.toNanos();
+            this.maxClients = maxClients;
+        }
+
+        // returns null when the table is full
+        public T get(InetAddress client, long now, Function<InetAddress, T> create) {
+            ClientEntry<T> entry = clients.get(client);
+            if (entry == null) {
+                // the slot is claimed inside the mapping so racing new clients can't take the table past the max
+                entry = clients.computeIfAbsent(client, key -> {
+                    if (size.incrementAndGet() > maxClients) {
+                        size.decrementAndGet();
+                        return null;
+                    }
+                    return new ClientEntry<>(create.apply(key));
+                });
+                if (entry == null) return null;
+            }
+            entry.lastSeen = now;
+            return entry.state;
+        }
+
+        public void evictIdle(long now) {
+            for (Map.Entry<InetAddress, ClientEntry<T>> entry : clients.entrySet()) {
+                if (now - entry.getValue().lastSeen > idleTtlNanos && clients.remove(entry.getKey(), entry.getValue()))
+                    size.decrementAndGet();
+            }
+        }
     }
-    
-    @Documented
-    @Retention(RetentionPolicy.RUNTIME)
-    @Target({ElementType.TYPE, ElementType.METHOD})
-    public static @interface Put {
-        String value() default "";
+
+    private static class ClientEntry<T> {
+        private final T state;
+        private volatile long lastSeen;
+
+        public ClientEntry(T state) {
+            this.state = state;
+        }
     }
-    
-    @Documented
-    @Retention(RetentionPolicy.RUNTIME)
-    @Target({ElementType.TYPE, ElementType.METHOD})
-    public static @interface Post {
-        String value() default "";
+
+
+    /**
+     * Token bucket rate limiter, kept as one atomic long per client using the generic cell rate algorithm. The
+     * cell holds the time the bucket will be full again, each request pushes it one interval later, and a request
+     * is refused when that would put it more than the burst ahead of now.
+     */
+    public static class TokenBucketRateLimiter implements RateLimiter {
+        private final long intervalNanos; // time to earn back one request
+        private final long burstNanos; // how far ahead of now the bucket can be spent
+        private final ClientTable<AtomicLong> clients;
+        private final LongAdder rejected = new LongAdder();
+
+        public TokenBucketRateLimiter(int requestsPerMinute) {
+            this(requestsPerMinute, requestsPerMinute, Duration.ofMinutes(2), 1000000);
+        }
+
+        public TokenBucketRateLimiter(int requestsPerMinute, int burst, Duration idleTtl, int maxClients) {
+            this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / Math.max(1, requestsPerMinute);
+            this.burstNanos = this.intervalNanos * Math.max(1, burst);
+            // a bucket idle for longer than it takes to refill is the same as a new one
+            Duration refill = Duration.ofNanos(this.burstNanos);
+            this.clients = new ClientTable<>(idleTtl.compareTo(refill) > 0? idleTtl : refill, maxClients);
+        }
+
+        @Override
+        public boolean tryAcquire(InetAddress client) {
+            long now = System.nanoTime();
+            AtomicLong fullAt = clients.get(client, now, key -> new AtomicLong(now));
+            if (fullAt == null) {
+                rejected.increment();
+                return false;
+            }
+
+            while (true) {
+                long current = fullAt.get();
+                long next = Math.max(current, now) + intervalNanos;
+                if (next - now > burstNanos) {
+                    rejected.increment();
+                    return false;
+                }
+                if (fullAt.compareAndSet(current, next)) return true;
+            }
+        }
+
+        @Override
+        public void evictIdle() {
+            clients.evictIdle(System.nanoTime());
+        }
+
+        public long getRejectedCount() {
+            return rejected.sum();
+        }
     }
-    
-    @Documented
-    @Retention(RetentionPolicy.RUNTIME)
-    @Target({ElementType.TYPE, ElementType.METHOD})
-    public static @interface Patch {
-        String value() default "";
+
+
+    /**
+     * Sliding window log rate limiter. Each client keeps a ring of the times of its last N allowed requests, and a
+     * request is allowed when the oldest of them has left the window. This is exact rather than smoothed like the
+     * token bucket, at the cost of 8 bytes per allowed request per client.
+     */
+    public static class SlidingWindowRateLimiter implements RateLimiter {
+        private final int limit;
+        private final long windowNanos;
+        private final ClientTable<SlidingLog> clients;
+        private final LongAdder rejected = new LongAdder();
+
+        public SlidingWindowRateLimiter(int requestsPerMinute) {
+            this(requestsPerMinute, Duration.ofMinutes(1), 100000);
+        }
+
+        public SlidingWindowRateLimiter(int limit, Duration window, int maxClients) {
+            this.limit = Math.max(1, limit);
+            this.windowNanos = window.toNanos();
+            // a log idle for a whole window is the same as a new one
+            this.clients = new ClientTable<>(window, maxClients);
+        }
+
+        @Override
+        public boolean tryAcquire(InetAddress client) {
+            long now = System.nanoTime();
+            SlidingLog log = clients.get(client, now, key -> new SlidingLog(limit));
+            if (log == null) {
+                rejected.increment();
+                return false;
+            }
+
+            while (true) {
+                long count = log.count.get();
+                int slot = (int) (count % limit);
+                if (count >= limit && now - log.times.get(slot) < windowNanos) {
+                    rejected.increment();
+                    return false;
+                }
+                if (log.count.compareAndSet(count, count + 1)) {
+                    log.times.set(slot, now);
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void evictIdle() {
+            clients.evictIdle(System.nanoTime());
+        }
+
+        public long getRejectedCount() {
+            return rejected.sum();
+        }
+
+        private static class SlidingLog {
+            private final AtomicLong count = new AtomicLong(); // allowed requests so far, the next slot is count % limit
+            private final AtomicLongArray times;
+
+            public SlidingLog(int limit) {
+                this.times = new AtomicLongArray(limit);
+            }
+        }
     }
-    
-    @Documented
-    @Retention(RetentionPolicy.RUNTIME)
-    @Target({ElementType.TYPE, ElementType.METHOD})
-    public static @interface Delete {
-        String value() default "";
+
+
+    /**
+     * Request metrics for a server, from getMetrics(). Every endpoint gets its own counters and latency
+     * histograms when it's registered, so recording a request never allocates or locks. Use snapshot() to read
+     * them in code, or set ServerConfig.metricsPath to serve them in prometheus text format.
+     */
+    public static class ServerMetrics {
+        private final Map<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+        private final EndpointMetrics unmatched = new EndpointMetrics("unmatched"); // 404s, 405s and anything before routing
+        private final LatencyHistogram parse = new LatencyHistogram();
+        private final LongAdder connectionsAccepted = new LongAdder();
+        private final LongAdder rateLimited = new LongAdder();
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        private final LongAdder queueFull = new LongAdder();
+        private final LongAdder queueTimeShed = new LongAdder();
+        private final IntSupplier activeConnections;
+        private final IntSupplier queueDepth;
+
+        private ServerMetrics(IntSupplier activeConnections, IntSupplier queueDepth) {
+            this.activeConnections = activeConnections;
+            this.queueDepth = queueDepth;
+        }
+
+        private EndpointMetrics endpoint(String name) {
+            return endpoints.computeIfAbsent(name, EndpointMetrics::new);
+        }
+
+        private void connectionAccepted() {
+            connectionsAccepted.increment();
+        }
+
+        public MetricsSnapshot snapshot() {
+            Map<String, EndpointSnapshot> endpointSnapshots = new TreeMap<>();
+            for (EndpointMetrics endpoint : endpoints.values()) {
+                endpointSnapshots.put(endpoint.name, endpoint.snapshot());
+            }
+            endpointSnapshots.put(unmatched.name, unmatched.snapshot());
+
+            return new MetricsSnapshot(
+                activeConnections.getAsInt(),
+                queueDepth.getAsInt(),
+                connectionsAccepted.sum(),
+                rateLimited.sum(),
+                queueFull.sum(),
+                queueTimeShed.sum(),
+                parse.snapshot(),
+                queueWait.snapshot(),
+                endpointSnapshots
+            );
+        }
+
+        // text exposition format 0.0.4, latencies as summaries in seconds
+        public String prometheus() {
+            MetricsSnapshot snapshot = snapshot();
+            StringBuilder out = new StringBuilder(4096);
+
+            gauge(out, "server_active_connections", "Open client connections", snapshot.getActiveConnections());
+            gauge(out, "server_queue_depth", "Work waiting for a thread", snapshot.getQueueDepth());
+            counter(out, "server_connections_total", "Connections accepted", snapshot.getConnectionsAccepted());
+            counter(out, "server_rate_limited_total", "Requests rejected by the rate limiter", snapshot.getRateLimited());
+            out.append("# HELP server_shed_total Work turned away with a 503 by reason\n");
+            out.append("# TYPE server_shed_total counter\n");
+            out.append("server_shed_total{reason=\"queue_full\"} ").append(snapshot.getQueueFull()).append('\n');
+            out.append("server_shed_total{reason=\"queue_time\"} ").append(snapshot.getQueueTimeShed()).append('\n');
+            summary(out, "server_queue_wait_seconds", "Time spent in the admission queue");
+            summaryValues(out, "server_queue_wait_seconds", null, snapshot.getQueueWait());
+            summary(out, "server_parse_seconds", "Time spent parsing each request");
+            summaryValues(out, "server_parse_seconds", null, snapshot.getParse());
+
+            out.append("# HELP server_requests_total Requests handled by endpoint and status\n");
+            out.append("# TYPE server_requests_total counter\n");
+            for (EndpointSnapshot endpoint : snapshot.getEndpoints().values()) {
+                for (Map.Entry<Integer, Long> status : endpoint.getStatusCounts().entrySet()) {
+                    out.append("server_requests_total{endpoint=\"").append(escapeLabel(endpoint.getName()))
+                        .append("\",status=\"").append(status.getKey()).append("\"} ").append(status.getValue()).append('\n');
+                }
+            }
+
+            perEndpoint(out, "server_request_bytes_total", "Request body bytes received", snapshot, EndpointSnapshot::getBytesIn);
+            perEndpoint(out, "server_response_bytes_total", "Response body bytes sent", snapshot, EndpointSnapshot::getBytesOut);
+            perEndpoint(out, "server_cache_hits_total", "Requests answered from the response cache", snapshot, EndpointSnapshot::getCacheHits);
+
+            summary(out, "server_request_seconds", "Time from routing to a finished response");
+            for (EndpointSnapshot endpoint : snapshot.getEndpoints().values())
+                summaryValues(out, "server_request_seconds", endpoint.getName(), endpoint.getRequestLatency());
+            summary(out, "server_dispatch_seconds", "Time spent in endpoint methods");
+            for (EndpointSnapshot endpoint : snapshot.getEndpoints().values())
+                summaryValues(out, "server_dispatch_seconds", endpoint.getName(), endpoint.getDispatchLatency());
+            summary(out, "server_serialize_seconds", "Time spent serializing endpoint results");
+            for (EndpointSnapshot endpoint : snapshot.getEndpoints().values())
+                summaryValues(out, "server_serialize_seconds", endpoint.getName(), endpoint.getSerializeLatency());
+
+            return out.toString();
+        }
+
+        private static void gauge(StringBuilder out, String name, String help, long value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(value).append('\n');
+        }
+
+        private static void counter(StringBuilder out, String name, String help, long value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(value).append('\n');
+        }
+
+        private static void perEndpoint(StringBuilder out, String name, String help, MetricsSnapshot snapshot, ToLongFunction<EndpointSnapshot> value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            for (EndpointSnapshot endpoint : snapshot.getEndpoints().values()) {
+                out.append(name).append("{endpoint=\"").append(escapeLabel(endpoint.getName())).append("\"} ")
+                    .append(value.applyAsLong(endpoint)).append('\n');
+            }
+        }
+
+        private static void summary(StringBuilder out, String name, String help) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" summary\n");
+        }
+
+        private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+        private static void summaryValues(StringBuilder out, String name, String endpoint, HistogramSnapshot histogram) {
+            String labels = (endpoint == null)? "" : "endpoint=\"" + escapeLabel(endpoint) + "\",";
+            for (double quantile : QUANTILES) {
+                out.append(name).append('{').append(labels).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            String plainLabels = (endpoint == null)? "" : "{endpoint=\"" + escapeLabel(endpoint) + "\"}";
+            out.append(name).append("_sum").append(plainLabels).append(' ').append(histogram.getSum() / 1e9).append('\n');
+            out.append(name).append("_count").append(plainLabels).append(' ').append(histogram.getCount()).append('\n');
+        }
+
+        private static String escapeLabel(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
     }
-    
-    @Documented
-    @Retention(RetentionPolicy.RUNTIME)
-    @Target({ElementType.TYPE, ElementType.METHOD})
-    public static @interface Options {
-        String value() default "";
+
+    // counters for one endpoint, updated from any thread
+    private static class EndpointMetrics {
+        private static final int MIN_STATUS = 100;
+
+        private final String name;
+        private final AtomicLongArray statusCounts = new AtomicLongArray(500); // 100 to 599
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LatencyHistogram request = new LatencyHistogram();
+        private final LatencyHistogram dispatch = new LatencyHistogram();
+        private final LatencyHistogram serialize = new LatencyHistogram();
+        private final LongAdder cacheHits = new LongAdder();
+
+        public EndpointMetrics(String name) {
+            this.name = name;
+        }
+
+        public void record(int status, long requestBytes, long responseBytes, long nanos) {
+            int index = status - MIN_STATUS;
+            if (index >= 0 && index < statusCounts.length()) statusCounts.incrementAndGet(index);
+            bytesIn.add(requestBytes);
+            bytesOut.add(responseBytes);
+            request.record(nanos);
+        }
+
+        public EndpointSnapshot snapshot() {
+            Map<Integer, Long> statuses = new TreeMap<>();
+            long total = 0;
+            for (int i = 0; i < statusCounts.length(); i++) {
+                long count = statusCounts.get(i);
+                if (count == 0) continue;
+                statuses.put(i + MIN_STATUS, count);
+                total += count;
+            }
+            return new EndpointSnapshot(
+                name, total, statuses, bytesIn.sum(), bytesOut.sum(), cacheHits.sum(),
+                request.snapshot(), dispatch.snapshot(), serialize.snapshot()
+            );
+        }
     }
 
-    @Documented
-    @Retention(RetentionPolicy.RUNTIME)
-    @Target({ElementType.TYPE, ElementType.PARAMETER})
-    public static @interface Body {}
 
-    @Documented
-    @Retention(RetentionPolicy.RUNTIME)
-    @Target({ElementType.TYPE, ElementType.PARAMETER})
-    public static @interface Param {
-        String value() default "";
+    /**
+     * Lock free latency histogram in the style of HdrHistogram. Values land in log linear buckets, 32 per power of
+     * two, so any value is reported within about 3% of what was recorded while recording stays a single atomic
+     * increment. Values are nanoseconds and anything over about 36 minutes is counted in the last bucket.
+     */
+    private static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 40;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts.incrementAndGet(bucketOf(nanos));
+            sum.add(nanos);
+
+            long currentMax = max.get();
+            while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) currentMax = max.get();
+        }
+
+        public HistogramSnapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+                count += copy[i];
+            }
+            return new HistogramSnapshot(copy, count, sum.sum(), max.get());
+        }
+
+        // values under 32 get a bucket each. Above that a value's top 6 bits, always 32 to 63, pick one of the 32
+        // buckets of its power of two, so the bucket for shift s covers [32 + 32s, 63 + 32s]
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            int index = shift * SUB_BUCKETS + (int) (value >>> shift);
+            return Math.min(index, BUCKETS - 1);
+        }
+
+        // highest value that lands in the bucket, the inverse of bucketOf
+        private static long highestValueIn(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
     }
 
-    @Documented
-    @Retention(RetentionPolicy.RUNTIME)
-    @Target({ElementType.TYPE, ElementType.PARAMETER})
-    public static @interface Header {
-        String value() default "";
+
+    public static class MetricsSnapshot {
+        private final int activeConnections;
+        private final int queueDepth;
+        private final long connectionsAccepted;
+        private final long rateLimited;
+        private final long queueFull;
+        private final long queueTimeShed;
+        private final HistogramSnapshot parse;
+        private final HistogramSnapshot queueWait;
+        private final Map<String, EndpointSnapshot> endpoints;
+
+        private MetricsSnapshot(int activeConnections, int queueDepth, long connectionsAccepted, long rateLimited, long queueFull, long queueTimeShed, HistogramSnapshot parse, HistogramSnapshot queueWait, Map<String, EndpointSnapshot> endpoints) {
+            this.activeConnections = activeConnections;
+            this.queueDepth = queueDepth;
+            this.connectionsAccepted = connectionsAccepted;
+            this.rateLimited = rateLimited;
+            this.queueFull = queueFull;
+            this.queueTimeShed = queueTimeShed;
+            this.parse = parse;
+            this.queueWait = queueWait;
+            this.endpoints = Collections.unmodifiableMap(endpoints);
+        }
+
+        public int getActiveConnections() {
+            return activeConnections;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getConnectionsAccepted() {
+            return connectionsAccepted;
+        }
+
+        public long getRateLimited() {
+            return rateLimited;
+        }
+
+        // rejected because the admission queue was full
+        public long getQueueFull() {
+            return queueFull;
+        }
+
+        // rejected by CODEL after waiting too long in the queue
+        public long getQueueTimeShed() {
+            return queueTimeShed;
+        }
+
+        public HistogramSnapshot getParse() {
+            return parse;
+        }
+
+        public HistogramSnapshot getQueueWait() {
+            return queueWait;
+        }
+
+        // keyed by "VERB /path/{template}", plus "unmatched" for requests that never reached an endpoint
+        public Map<String, EndpointSnapshot> getEndpoints() {
+            return endpoints;
+        }
     }
 
 
-    private static class Count {
-        private int count = 0;
+    public static class EndpointSnapshot {
+        private final String name;
+        private final long requests;
+        private final Map<Integer, Long> statusCounts;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long cacheHits;
+        private final HistogramSnapshot requestLatency;
+        private final HistogramSnapshot dispatchLatency;
+        private final HistogramSnapshot serializeLatency;
+
+        private EndpointSnapshot(String name, long requests, Map<Integer, Long> statusCounts, long bytesIn, long bytesOut, long cacheHits, HistogramSnapshot requestLatency, HistogramSnapshot dispatchLatency, HistogramSnapshot serializeLatency) {
+            this.name = name;
+            this.requests = requests;
+            this.statusCounts = Collections.unmodifiableMap(statusCounts);
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.cacheHits = cacheHits;
+            this.requestLatency = requestLatency;
+            this.dispatchLatency = dispatchLatency;
+            this.serializeLatency = serializeLatency;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public Map<Integer, Long> getStatusCounts() {
+            return statusCounts;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getCacheHits() {
+            return cacheHits;
+        }
+
+        public HistogramSnapshot getRequestLatency() {
+            return requestLatency;
+        }
+
+        public HistogramSnapshot getDispatchLatency() {
+            return dispatchLatency;
+        }
 
-        public void add(int amount) {
-            count += amount;
+        public HistogramSnapshot getSerializeLatency() {
+            return serializeLatency;
         }
+    }
 
 
-        public int getCount() {
+    // latencies are in nanoseconds
+    public static class HistogramSnapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private HistogramSnapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
             return count;
         }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return (count == 0)? 0 : (double) sum / count;
+        }
+
+        // e.g. 99.9 for p999
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(LatencyHistogram.highestValueIn(i), max);
+            }
+            return max;
+        }
     }
 }